@@ -0,0 +1,102 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+
+/**
+ * Synthetic projects and file trees for the benchmarks, made in a temp dir.
+ */
+final class BenchmarkTrees {
+
+	private BenchmarkTrees() {
+	}
+
+	static File makeTempDir(final String name) throws IOException {
+		return Files.createTempDirectory("javappackager-jmh-" + name).toFile();
+	}
+
+	/**
+	 * A git repository with a minimal app pom, and fileCount files in src/main/config, spread in sub dirs with .gitignore files.
+	 * @return the created files, ignored or not
+	 */
+	static List<File> makeGitProject(final File projectDir, final int fileCount) throws IOException {
+		try (Git git = Git.init().setDirectory(projectDir).call()) {
+			FileUtils.writeStringToFile(new File(projectDir, "pom.xml"), makePom(), StandardCharsets.UTF_8);
+			FileUtils.writeStringToFile(new File(projectDir, ".gitignore"), "/target/\n*.log\n", StandardCharsets.UTF_8);
+			FileUtils.writeStringToFile(new File(projectDir, "README.md"), "Benchmark project", StandardCharsets.UTF_8);
+			git.add().addFilepattern(".").call();
+			git.commit().setMessage("Init").setAuthor("jmh", "jmh@localhost").setCommitter("jmh", "jmh@localhost").call();
+		} catch (final GitAPIException e) {
+			throw new IOException("Can't init git repository in " + projectDir, e);
+		}
+
+		final File configDir = new File(projectDir, "src/main/config");
+		final int filesByDir = 50;
+		final List<File> files = new ArrayList<>(fileCount);
+		for (int pos = 0; pos < fileCount; pos++) {
+			final File dir = new File(configDir, "d" + pos / filesByDir / 10 + File.separator + "s" + pos / filesByDir);
+			if (pos % filesByDir == 0) {
+				FileUtils.writeStringToFile(new File(dir, ".gitignore"), "*.tmp\nbuild/\n!keep.tmp\n", StandardCharsets.UTF_8);
+			}
+			final File file = new File(dir, "f" + pos + (pos % 7 == 0 ? ".tmp" : ".properties"));
+			FileUtils.writeStringToFile(file, "key" + pos + "=value" + pos + "\n", StandardCharsets.UTF_8);
+			files.add(file);
+		}
+		return files;
+	}
+
+	private static String makePom() {
+		return "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n"
+		       + "<modelVersion>4.0.0</modelVersion>\n"
+		       + "<groupId>tv.hd3g</groupId>\n"
+		       + "<artifactId>jmhapp</artifactId>\n"
+		       + "<version>1.0.0</version>\n"
+		       + "<packaging>jar</packaging>\n"
+		       + "<name>jmhapp</name>\n"
+		       + "<url>https://hd3g.tv</url>\n"
+		       + "<properties>\n"
+		       + "<maven.compiler.source>11</maven.compiler.source>\n"
+		       + "<maven.compiler.target>11</maven.compiler.target>\n"
+		       + "<javappackager.mainclass>tv.hd3g.jmhapp.Main</javappackager.mainclass>\n"
+		       + "</properties>\n"
+		       + "</project>\n";
+	}
+
+	/**
+	 * fileCount files of fileSize random bytes, in sub dirs of 100 files.
+	 */
+	static void makeFiles(final File dir, final int fileCount, final int fileSize) throws IOException {
+		final Random random = new Random(0);
+		final byte[] content = new byte[fileSize];
+		for (int pos = 0; pos < fileCount; pos++) {
+			random.nextBytes(content);
+			FileUtils.writeByteArrayToFile(new File(dir, "d" + pos / 100 + File.separator + "f" + pos + ".bin"), content);
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.model.building.ModelBuildingException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tv.hd3g.javappackager.AppToPackage.Destination;
+
+/**
+ * Destination.copyToDest with the same total size, as many small files or few large files.
+ * The destination is removed before each copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CopyBenchmark {
+
+	private static final int totalSize = 32 * 1024 * 1024;
+
+	/**
+	 * Files count for 32 MB.
+	 */
+	@Param({ "8192", "4" })
+	private int fileCount;
+
+	private File projectDir;
+	private File sourceDir;
+	private AppToPackage app;
+	private Destination dest;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, ModelBuildingException {
+		projectDir = BenchmarkTrees.makeTempDir("copy");
+		BenchmarkTrees.makeGitProject(projectDir, 0);
+		sourceDir = new File(projectDir, "data");
+		BenchmarkTrees.makeFiles(sourceDir, fileCount, totalSize / fileCount);
+
+		app = new AppToPackage(projectDir, new GitInfo(projectDir));
+		dest = app.getDestination();
+	}
+
+	@Setup(Level.Invocation)
+	public void cleanDest() {
+		dest.deleteDest("data");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		app.close();
+		FileUtils.deleteQuietly(projectDir);
+	}
+
+	@Benchmark
+	public void copyToDest() {
+		dest.copyToDest(sourceDir, "data");
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * GitInfo construction, and test() on all the files of a repository, with a cold rules cache (like for a packaging run).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GitInfoBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	private int fileCount;
+
+	private File projectDir;
+	private List<File> files;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		projectDir = BenchmarkTrees.makeTempDir("git");
+		files = BenchmarkTrees.makeGitProject(projectDir, fileCount);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(projectDir);
+	}
+
+	@Benchmark
+	public GitInfo newGitInfo() throws IOException {
+		return new GitInfo(projectDir);
+	}
+
+	@Benchmark
+	public void testAllFiles(final Blackhole blackhole) throws IOException {
+		final GitInfo gitInfo = new GitInfo(projectDir);
+		for (final File file : files) {
+			blackhole.consume(gitInfo.test(file));
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tv.hd3g.processlauncher.cmdline.ExecutableFinder;
+
+/**
+ * WinRun4J ini generation, and the full exec file making (ini embedded in the launcher copy).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LauncherBenchmark {
+
+	@Param({ "10", "300" })
+	private int classPathSize;
+
+	private WinRun4J winRun4J;
+	private File outputDir;
+	private File execFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		outputDir = BenchmarkTrees.makeTempDir("launcher");
+		execFile = new File(outputDir, "app.exe");
+		winRun4J = new WinRun4J(new ExecutableFinder(), "jmhapp", "1.0.0", "master 01234567", "https://hd3g.tv");
+		winRun4J.setMainClass("tv.hd3g.jmhapp.Main");
+		winRun4J.setMinVMVersion("11");
+		winRun4J.setJVMDir("jvm");
+		winRun4J.setVMArgs(List.of("-XX:+UseSerialGC", "-XX:MaxRAMPercentage=50.0"));
+		winRun4J.setClassPath(IntStream.range(0, classPathSize).mapToObj(pos -> "lib/dependency-" + pos + "-1.0.0.jar").collect(Collectors.toUnmodifiableList()));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(outputDir);
+	}
+
+	@Benchmark
+	public String getIniContent() {
+		return winRun4J.getIniContent();
+	}
+
+	@Benchmark
+	public void makeExecFile() throws IOException {
+		winRun4J.makeExecFile(execFile, Optional.empty());
+	}
+
+}
@@ -16,32 +16,39 @@
 */
 package tv.hd3g.javappackager;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.core.Appender;
-import org.apache.logging.log4j.core.LoggerContext;
-import org.apache.logging.log4j.core.appender.FileAppender;
-import org.apache.logging.log4j.core.config.AppenderRef;
-import org.apache.logging.log4j.core.config.Configuration;
-import org.apache.logging.log4j.core.config.LoggerConfig;
-import org.apache.logging.log4j.core.layout.PatternLayout;
 import org.apache.maven.cli.MavenCli;
 import org.apache.maven.model.Model;
 import org.apache.maven.model.building.DefaultModelBuilder;
@@ -52,6 +59,7 @@ import org.apache.maven.model.building.ModelBuildingRequest;
 import org.apache.maven.model.inheritance.DefaultInheritanceAssembler;
 import org.apache.maven.model.interpolation.StringSearchModelInterpolator;
 import org.apache.maven.model.io.DefaultModelReader;
+import org.apache.maven.model.io.xpp3.MavenXpp3Writer;
 import org.apache.maven.model.management.DefaultDependencyManagementInjector;
 import org.apache.maven.model.management.DefaultPluginManagementInjector;
 import org.apache.maven.model.normalization.DefaultModelNormalizer;
@@ -63,12 +71,18 @@ import org.apache.maven.model.profile.DefaultProfileSelector;
 import org.apache.maven.model.superpom.DefaultSuperPomProvider;
 import org.apache.maven.model.validation.DefaultModelValidator;
 import org.codehaus.plexus.classworlds.ClassWorld;
+import org.eclipse.aether.artifact.Artifact;
 
+import tv.hd3g.javappackager.ClassPathLayout.Layout;
+import tv.hd3g.javappackager.JvmStaging.CopyStrategy;
+import tv.hd3g.javappackager.StageCache.Fingerprint;
 import tv.hd3g.processlauncher.cmdline.ExecutableFinder;
 
-public class AppToPackage {
+public class AppToPackage implements Closeable {
 	private static Logger log = LogManager.getLogger();
 	private static final String destinationDirName = "javappackager";
+	private static final String mavenLogFileName = "javappackager-maven.log";
+	private static final String stageCacheFileName = "javappackager-stages.properties";
 
 	private final File mvnDir;
 	private final GitInfo gitInfo;
@@ -83,8 +97,20 @@ public class AppToPackage {
 	private final Properties appProperties;
 
 	private final MavenCli mavenCli;
+	private final Map<String, Integer> batchedGoals;
+	private final StageCache stageCache;
+	private final CopyEngine copyEngine;
+	private final DependencyResolver dependencyResolver;
+	private final LicenseAggregator licenseAggregator;
 
 	public AppToPackage(final File mvnDir, final GitInfo gitInfo) throws IOException, ModelBuildingException {
+		this(mvnDir, gitInfo, false);
+	}
+
+	/**
+	 * @param incremental keep the previous target dir, and let the stageCache skip the unchanged packaging stages.
+	 */
+	public AppToPackage(final File mvnDir, final GitInfo gitInfo, final boolean incremental) throws IOException, ModelBuildingException {
 		this.mvnDir = Objects.requireNonNull(mvnDir, "\"mvnDir\" can't to be null");
 		this.gitInfo = Objects.requireNonNull(gitInfo, "\"gitInfo\" can't to be null");
 
@@ -106,36 +132,45 @@ public class AppToPackage {
 			throw new IOException("Can't read " + pomFile);
 		}
 
-		FileUtils.deleteQuietly(targetDir);
+		if (incremental == false) {
+			FileUtils.deleteQuietly(targetDir);
+		}
+		stageCache = new StageCache(new File(targetDir.getPath() + File.separator + stageCacheFileName), incremental);
 
-		/**
-		 * Inject maven log configuration
-		 */
-		final LoggerContext ctx = (LoggerContext) LogManager.getContext(false);
-		final Configuration config = ctx.getConfiguration();
+		pom = readEffectivePom(pomFile);
 
-		final PatternLayout layout = PatternLayout.newBuilder().withConfiguration(config).withPattern("%m%n").build();
-		final File mavenLog = new File(targetDir.getPath() + File.separator + "javappackager-maven.log");
-		FileUtils.forceMkdirParent(mavenLog);
+		if ("jar".equalsIgnoreCase(pom.getPackaging()) == false) {
+			throw new IOException("This pom is package as \"" + pom.getPackaging() + "\", only \"jar\" is managed");
+		}
+		appVersion = pom.getVersion();
+		gitVersion = gitInfo.getVersion();
+		appName = pom.getName();
+		appUrl = pom.getUrl();
 
-		final Appender appender = FileAppender.newBuilder().withFileName(mavenLog.getPath()).withName("Maven log file").withBufferSize(128).withLayout(layout).setConfiguration(config).build();
-		appender.start();
-		config.addAppender(appender);
+		log.info("Operate on " + appName + "-" + appVersion + " / git " + gitVersion);
 
-		final AppenderRef ref = AppenderRef.createAppenderRef("Maven log file", null, null);
-		final AppenderRef[] refs = new AppenderRef[] { ref };
+		appProperties = pom.getProperties();
 
-		Stream.of("org.apache.maven", "Sisu", "org.codehaus.mojo").forEach(loggerName -> {
-			final LoggerConfig loggerConfig = LoggerConfig.createLogger(false, Level.INFO, loggerName, "true", refs, null, config, null);
-			loggerConfig.addAppender(appender, Level.INFO, null);
-			config.addLogger(loggerName, loggerConfig);
-		});
+		if (appProperties.getProperty("javappackager.mainclass") == null) {
+			throw new RuntimeException("You must provide in pom file at least properties > javappackager.mainclass");
+		}
 
-		ctx.updateLoggers();
+		final ClassWorld world = new ClassWorld("default", Thread.currentThread().getContextClassLoader());
+		mavenCli = new MavenCli(world);
+		batchedGoals = new LinkedHashMap<>();
+
+		final int copyThreads = Integer.parseInt(appProperties.getProperty("javappackager.copy.threads", String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+		copyEngine = new CopyEngine(copyThreads);
+		copyEngine.setContentHash(isContentManifest());
+		final File localRepositoryDir = DependencyResolver.getDefaultLocalRepositoryDir();
+		dependencyResolver = new DependencyResolver(localRepositoryDir);
+		licenseAggregator = new LicenseAggregator(localRepositoryDir, LicenseAggregator.getDefaultCacheFile(localRepositoryDir));
+	}
 
-		/**
-		 * Parse pom file
-		 */
+	/**
+	 * Parse pom file, without plugin processing.
+	 */
+	static Model readEffectivePom(final File pomFile) throws ModelBuildingException {
 		final DefaultModelBuilder builder = new DefaultModelBuilder();
 		final DefaultProfileSelector profileSelector = new DefaultProfileSelector();
 		builder.setProfileSelector(profileSelector);
@@ -183,26 +218,60 @@ public class AppToPackage {
 		req.setPomFile(pomFile);
 		req.setValidationLevel(ModelBuildingRequest.VALIDATION_LEVEL_MINIMAL);
 
-		pom = builder.build(req).getEffectiveModel();
-
-		if ("jar".equalsIgnoreCase(pom.getPackaging()) == false) {
-			throw new IOException("This pom is package as \"" + pom.getPackaging() + "\", only \"jar\" is managed");
-		}
-		appVersion = pom.getVersion();
-		gitVersion = gitInfo.getVersion();
-		appName = pom.getName();
-		appUrl = pom.getUrl();
+		return builder.build(req).getEffectiveModel();
+	}
 
-		log.info("Operate on " + appName + "-" + appVersion + " / git " + gitVersion);
+	public StageCache getStageCache() {
+		return stageCache;
+	}
 
-		appProperties = pom.getProperties();
+	public String getEffectivePom() {
+		final StringWriter sw = new StringWriter();
+		try {
+			new MavenXpp3Writer().write(sw, pom);
+		} catch (final IOException e) {
+			throw new RuntimeException("Can't serialize pom", e);
+		}
+		return sw.toString();
+	}
 
-		if (appProperties.getProperty("javappackager.mainclass") == null) {
-			throw new RuntimeException("You must provide in pom file at least properties > javappackager.mainclass");
+	/**
+	 * Effective pom, all sources (without the config dir, it's not a maven input), and each dependency jar resolved from the local repository (path, size, date),
+	 * for a re-downloaded snapshot or a rebuilt reactor module.
+	 */
+	public Fingerprint getMavenFingerprint() {
+		final Path configDir = Path.of(mvnDir.getAbsolutePath(), "src", "main", "config");
+		final Fingerprint fingerprint = new Fingerprint().add(getEffectivePom()).addTree(Path.of(mvnDir.getAbsolutePath(), "src").toFile(), p -> p.startsWith(configDir));
+		getRepackClassList().ifPresent(fingerprint::addFile);
+		try {
+			dependencyResolver.resolve(pom, getDependenciesScope()).forEach((name, artifact) -> {
+				fingerprint.add(name);
+				Optional.ofNullable(artifact.getFile()).ifPresent(fingerprint::addFile);
+			});
+		} catch (final IOException e) {
+			/**
+			 * Some dependencies are not yet in the local repository: the maven build will get them.
+			 */
+			log.debug("Can't resolve dependencies before maven build", e);
+			fingerprint.add("unresolved dependencies");
 		}
+		return fingerprint;
+	}
 
-		final ClassWorld world = new ClassWorld("default", Thread.currentThread().getContextClassLoader());
-		mavenCli = new MavenCli(world);
+	public Fingerprint getConfigFingerprint() {
+		return new Fingerprint().addFile(Path.of(mvnDir.getAbsolutePath(), "src", "main", "config").toFile());
+	}
+
+	/**
+	 * Remove maven build results, but keep previous javappackager destination dir, logs and stage cache.
+	 * Needed before a maven run in incremental mode, as a replacement of the "clean" goal.
+	 */
+	public void cleanMavenOutputs() {
+		final Set<String> keep = Set.of(destinationDirName, mavenLogFileName, stageCacheFileName);
+		Optional.ofNullable(targetDir.listFiles()).map(Arrays::stream).orElse(Stream.empty()).filter(f -> keep.contains(f.getName()) == false).forEach(f -> {
+			log.debug("Delete previous maven output {}", f);
+			FileUtils.deleteQuietly(f);
+		});
 	}
 
 	public List<File> getExternalDeps(final ExecutableFinder execFinder) {
@@ -231,6 +300,10 @@ public class AppToPackage {
 		return Optional.empty();
 	}
 
+	public String getArtifactId() {
+		return pom.getArtifactId();
+	}
+
 	public String getAppName() {
 		return appName;
 	}
@@ -247,33 +320,162 @@ public class AppToPackage {
 		return mvnDir;
 	}
 
-	private void doMaven(final String verb) throws IOException {
+	/**
+	 * Maven use global System properties, only one run at a time in this JVM.
+	 */
+	private static final ReentrantLock mavenLock = new ReentrantLock();
+
+	private static final String goalPackage = "package";
+	/**
+	 * Only download the dependencies to the local repository, the copy is done by resolveDependencies.
+	 */
+	private static final String goalResolveDependencies = "dependency:resolve";
+
+	private int runMaven(final List<String> goals) {
+		return runMaven(mavenCli, mvnDir, appProperties, goals);
+	}
+
+	/**
+	 * @param properties for "javappackager.maven.threads"
+	 */
+	static int runMaven(final MavenCli mavenCli, final File mvnDir, final Properties properties, final List<String> goals) {
+		if (mavenLock.tryLock() == false) {
+			log.info("Wait the end of another maven run");
+			mavenLock.lock();
+		}
+		final MavenLogAppender mavenLog = MavenLogAppender.getInstance();
+		try {
+			mavenLog.redirect(Path.of(mvnDir.getAbsolutePath(), "target", mavenLogFileName).toFile());
+			return runMavenLocked(mavenCli, mvnDir, properties, goals);
+		} catch (final IOException e) {
+			throw new RuntimeException("Can't open maven log file", e);
+		} finally {
+			try {
+				mavenLog.redirect(null);
+			} catch (final IOException e) {
+				log.warn("Can't close maven log file", e);
+			}
+			mavenLock.unlock();
+		}
+	}
+
+	private static int runMavenLocked(final MavenCli mavenCli, final File mvnDir, final Properties properties, final List<String> goals) {
 		System.setProperty("maven.multiModuleProjectDirectory", mvnDir.getPath());
 
-		final int result = mavenCli.doMain(new String[] { "-Dmaven.test.skip=true", verb }, mvnDir.getPath(), System.out, System.err);
-		if (result != 0) {
+		final List<String> args = new ArrayList<>();
+		args.add("-Dmaven.test.skip=true");
+		if (isOffline(properties)) {
+			args.add("-o");
+		}
+		Optional.ofNullable(properties.getProperty("javappackager.maven.threads")).map(String::trim).filter(t -> t.isEmpty() == false).ifPresent(t -> {
+			args.add("-T");
+			args.add(t);
+		});
+		args.addAll(goals);
+
+		log.debug("Start maven with {}", args);
+		return mavenCli.doMain(args.toArray(new String[0]), mvnDir.getPath(), System.out, System.err);
+	}
+
+	/**
+	 * "javappackager.offline" pom property or system property: maven runs without any remote repository access.
+	 */
+	static boolean isOffline(final Properties properties) {
+		return Boolean.parseBoolean(System.getProperty("javappackager.offline", properties.getProperty("javappackager.offline", "false")).trim());
+	}
+
+	private void doMaven(final String verb) throws IOException {
+		if (batchedGoals.containsKey(verb)) {
+			/**
+			 * Already done by mavenBatch, the caller will check its own result.
+			 */
+			return;
+		}
+		if (runMaven(List.of(verb)) != 0) {
 			System.err.println();
 			throw new IOException("Failed maven execution \"-Dmaven.test.skip=true " + verb);
 		}
 	}
 
-	public List<File> mavenCopyDependencies() throws IOException {
-		doMaven("dependency:copy-dependencies");
+	/**
+	 * Run package and dependency resolve goals in a single maven session (one container bootstrap, one settings read, one reactor build).
+	 * Next calls to mavenPackage and resolveDependencies will only check the batch result, and fail if it was failed.
+	 * Set "javappackager.maven.threads" pom property (like "4" or "1C") for a parallel reactor build.
+	 */
+	public void mavenBatch() {
+		final int result = runMaven(batchGoals);
+		if (result != 0) {
+			System.err.println();
+		}
+		setBatchResult(result);
+	}
+
+	static final List<String> batchGoals = List.of(goalPackage, goalResolveDependencies);
 
-		return Files.walk(Path.of(targetDir.getPath(), "dependency")).map(Path::toFile).filter(founded -> {
-			assertExists(founded);
-			return founded.isFile() && founded.isHidden() == false && founded.getName().startsWith(".") == false && founded.getName().toLowerCase().endsWith(".jar");
-		}).collect(Collectors.toUnmodifiableList());
+	/**
+	 * For a mavenBatch done by someone else, like a reactor build on the parent project.
+	 */
+	void setBatchResult(final int result) {
+		batchGoals.forEach(goal -> batchedGoals.put(goal, result));
+	}
+
+	/**
+	 * Throw an IOException if the mavenBatch was failed: its goals outputs can be stale ones, from a previous build.
+	 */
+	private void checkBatchResult(final String verb) throws IOException {
+		final int result = batchedGoals.getOrDefault(verb, 0);
+		if (result != 0) {
+			throw new IOException("Failed maven execution \"-Dmaven.test.skip=true " + String.join(" ", batchGoals) + "\" for " + verb + " (batch result: " + result + ")");
+		}
+	}
+
+	/**
+	 * @return expected, only if verb (or the mavenBatch with verb) was not failed.
+	 */
+	private File checkMavenResult(final String verb, final File expected) throws IOException {
+		checkBatchResult(verb);
+		assertExists(expected);
+		log.debug("Maven goal {} is ok", verb);
+		return expected;
+	}
+
+	/**
+	 * Resolve the dependencies from the effective pom, in this JVM and only with the local repository (filled by the maven dependency:resolve goal).
+	 * Set "javappackager.dependencies.scope" pom property for change the copied scopes: compile, runtime (default) or test.
+	 * @return jar file name in lib dir -> resolved artifact, with its jar file in the local repository
+	 */
+	public Map<String, Artifact> resolveDependencies() throws IOException {
+		doMaven(goalResolveDependencies);
+		checkBatchResult(goalResolveDependencies);
+		return dependencyResolver.resolve(pom, getDependenciesScope());
+	}
+
+	private String getDependenciesScope() {
+		return appProperties.getProperty("javappackager.dependencies.scope", "runtime").trim();
+	}
+
+	/**
+	 * @param modules reactor module dir -> module effective pom, for resolve the dependencies to other modules from the reactor build
+	 */
+	void setReactorModules(final Map<File, Model> modules) {
+		modules.forEach(dependencyResolver::addWorkspaceModule);
+	}
+
+	public String getMainJarName() {
+		return appName + "-" + appVersion + ".jar";
 	}
 
 	public File mavenPackage() throws IOException {
-		doMaven("package");
-		return assertExists(Path.of(targetDir.getPath(), appName + "-" + appVersion + ".jar").toFile());
+		doMaven(goalPackage);
+		return checkMavenResult(goalPackage, Path.of(targetDir.getPath(), getMainJarName()).toFile());
 	}
 
-	public File mavenLicenses() throws IOException {
-		doMaven("license:add-third-party");
-		return assertExists(Path.of(targetDir.getPath(), "generated-sources", "license", "THIRD-PARTY.txt").toFile());
+	/**
+	 * Write the dependencies licenses list, without any maven plugin, with a persistent cache by groupId:artifactId:version.
+	 * @param dependencies from resolveDependencies
+	 */
+	public void makeThirdPartyLicenses(final Collection<Artifact> dependencies, final File thirdPartyFile) throws IOException {
+		licenseAggregator.writeThirdParty(dependencies, thirdPartyFile);
 	}
 
 	public Optional<File> getWindowsIcon() throws IOException {
@@ -292,23 +494,202 @@ public class AppToPackage {
 		return appProperties.getProperty("javappackager.mainclass");
 	}
 
+	/**
+	 * Set "javappackager.jlink" pom property to true for build a minimal runtime image with jlink, instead of copy all the JAVA_HOME.
+	 * Add modules loaded only by reflection with "javappackager.jlink.addmodules" (comma or space separated),
+	 * and strip debug informations with "javappackager.jlink.stripdebug".
+	 */
+	public boolean isJlinkRuntime() {
+		return Boolean.parseBoolean(appProperties.getProperty("javappackager.jlink", "false").trim());
+	}
+
+	/**
+	 * @return comma or space separated values
+	 */
+	private List<String> getListProperty(final String name) {
+		return Arrays.stream(appProperties.getProperty(name, "").split("[,\\s]+")).map(String::trim).filter(m -> m.isEmpty() == false).collect(Collectors.toUnmodifiableList());
+	}
+
+	public List<String> getJlinkAddModules() {
+		return getListProperty("javappackager.jlink.addmodules");
+	}
+
+	/**
+	 * JVM copy rules from "javappackager.jvm.includes" and "javappackager.jvm.excludes" pom properties (Ant-like patterns, relative to JAVA_HOME),
+	 * and "javappackager.jvm.copystrategy" (hardlink, clone or copy).
+	 */
+	public JvmStaging getJvmStaging(final File javaHome) {
+		final CopyStrategy copyStrategy = CopyStrategy.parse(appProperties.getProperty("javappackager.jvm.copystrategy"));
+		return new JvmStaging(javaHome, copyStrategy, getListProperty("javappackager.jvm.includes"), getListProperty("javappackager.jvm.excludes"));
+	}
+
+	public boolean isJlinkStripDebug() {
+		return Boolean.parseBoolean(appProperties.getProperty("javappackager.jlink.stripdebug", "false").trim());
+	}
+
+	/**
+	 * Launcher class path layout from "javappackager.classpath" pom property: wildcard, explicit (default) or merged.
+	 */
+	public ClassPathLayout getClassPathLayout(final Destination dest) {
+		return new ClassPathLayout(dest.getDir(), Layout.parse(appProperties.getProperty("javappackager.classpath")));
+	}
+
+	/**
+	 * Set "javappackager.repack" pom property to true for rewrite lib jars with uncompressed entries.
+	 */
+	public boolean isRepackJars() {
+		return Boolean.parseBoolean(appProperties.getProperty("javappackager.repack", "false").trim());
+	}
+
+	/**
+	 * @return "javappackager.repack.classlist" pom property, a training run class list file, relative to the project dir.
+	 */
+	public Optional<File> getRepackClassList() {
+		return Optional.ofNullable(appProperties.getProperty("javappackager.repack.classlist")).map(String::trim).filter(p -> p.isEmpty() == false).map(p -> assertExists(new File(mvnDir, p)));
+	}
+
+	public JarRepacker getJarRepacker() {
+		try {
+			final Optional<File> classList = getRepackClassList();
+			return new JarRepacker(classList.isPresent() ? JarRepacker.readClassList(classList.get()) : List.of());
+		} catch (final IOException e) {
+			throw new RuntimeException("Can't read class list", e);
+		}
+	}
+
+	/**
+	 * Set "javappackager.shrink" pom property to true for remove from the lib jars the classes not reachable from the main class.
+	 */
+	public boolean isShrinkJars() {
+		return Boolean.parseBoolean(appProperties.getProperty("javappackager.shrink", "false").trim());
+	}
+
+	/**
+	 * @return with "javappackager.shrink.keep" (class names and packages, for reflection) and "javappackager.shrink.keepjars" (jars to never shrink) pom properties.
+	 */
+	public JarShrinker getJarShrinker() {
+		return new JarShrinker(getListProperty("javappackager.shrink.keep"), getListProperty("javappackager.shrink.keepjars"));
+	}
+
+	/**
+	 * @return "javappackager.classpath.conflicts" pom property, for the duplicate classes and split packages in the class path jars: warn (default), fail or ignore
+	 */
+	public ClassIndex.ConflictPolicy getClassPathConflictPolicy() {
+		return ClassIndex.ConflictPolicy.parse(appProperties.getProperty("javappackager.classpath.conflicts"));
+	}
+
+	/**
+	 * Set "javappackager.classindex" pom property to true for add the class path jars index file to the package.
+	 */
+	public boolean isClassIndex() {
+		return Boolean.parseBoolean(appProperties.getProperty("javappackager.classindex", "false").trim());
+	}
+
+	/**
+	 * @return the runtime direct dependencies jar file names, as copied by resolveDependencies, in pom order.
+	 */
+	public List<String> getDependencyOrder() {
+		return pom.getDependencies().stream()
+		        .filter(d -> "test".equals(d.getScope()) == false && "provided".equals(d.getScope()) == false && "system".equals(d.getScope()) == false)
+		        .filter(d -> "jar".equals(d.getType()))
+		        .map(d -> d.getArtifactId() + "-" + d.getVersion() + Optional.ofNullable(d.getClassifier()).map(c -> "-" + c).orElse("") + ".jar")
+		        .collect(Collectors.toUnmodifiableList());
+	}
+
+	/**
+	 * @return true for write a SHA-256 manifest of the package ("javappackager.manifest" or "javappackager.delta.from" pom property)
+	 */
+	public boolean isContentManifest() {
+		return ContentManifest.isEnabled(appProperties);
+	}
+
+	/**
+	 * Write the package SHA-256 manifest, and the delta package from "javappackager.delta.from" previous release manifest, if set.
+	 * @return the delta package dir, if any
+	 */
+	public Optional<File> makeContentManifest(final Destination dest) throws IOException {
+		return ContentManifest.makeFor(appProperties, mvnDir, dest.getDir(), copyEngine);
+	}
+
+	CopyEngine getCopyEngine() {
+		return copyEngine;
+	}
+
+	/**
+	 * Stop the copy threads. This app can't copy files after that.
+	 */
+	@Override
+	public void close() {
+		copyEngine.close();
+	}
+
+	/**
+	 * @return the archive maker, if "javappackager.archive" pom property is set (zip or tar.gz, only tar.gz with an AppCDS archive)
+	 */
+	public Optional<PackageArchiver> getArchiver() {
+		final Optional<PackageArchiver> archiver = PackageArchiver.fromProperties(appProperties);
+		if (isCdsArchive()) {
+			CdsArchive.checkArchiveFormat(archiver);
+		}
+		return archiver;
+	}
+
+	/**
+	 * Launcher JVM options, from "javappackager.profile", "javappackager.heap" and "javappackager.vmargs" pom properties, checked for the target JVM version.
+	 */
+	public List<String> getVMArgs() {
+		try {
+			return new JvmTuning(appProperties).getVMArgs(getJVMVersion());
+		} catch (final IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid JVM tuning for " + getAppName() + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return "javappackager.stages.threads" system or pom property: max packaging stages at the same time, 4 by default, 1 for one by one
+	 */
+	public int getStageThreads() {
+		return Math.max(1, Integer.parseInt(System.getProperty("javappackager.stages.threads", appProperties.getProperty("javappackager.stages.threads", "4")).trim()));
+	}
+
+	/**
+	 * Set "javappackager.cds" pom property to true for make an AppCDS archive with a training run of the app, during the packaging.
+	 */
+	public boolean isCdsArchive() {
+		return Boolean.parseBoolean(appProperties.getProperty("javappackager.cds", "false").trim());
+	}
+
+	/**
+	 * @return "javappackager.cds.timeout" pom property, in seconds, 60 by default
+	 */
+	public Duration getCdsTrainingTimeout() {
+		return Duration.ofSeconds(Long.parseLong(appProperties.getProperty("javappackager.cds.timeout", "60").trim()));
+	}
+
 	public String getJVMVersion() {
 		return appProperties.getProperty("maven.compiler.target", System.getProperty("java.specification.version", System.getProperty("java.version")));
 	}
 
 	public Destination getDestination() {
+		return getDestination(Path.of(targetDir.getPath(), destinationDirName).toFile());
+	}
+
+	/**
+	 * @param destDir like a package dir shared with other apps
+	 */
+	Destination getDestination(final File destDir) {
 		try {
-			return new Destination();
+			return new Destination(destDir);
 		} catch (final IOException e) {
-			throw new RuntimeException("Can't prepare destination dir " + destinationDirName, e);
+			throw new RuntimeException("Can't prepare destination dir " + destDir, e);
 		}
 	}
 
 	class Destination {
 		private final File destDir;
 
-		private Destination() throws IOException {
-			destDir = Path.of(targetDir.getPath(), destinationDirName).toFile();
+		private Destination(final File destDir) throws IOException {
+			this.destDir = destDir;
 			FileUtils.forceMkdir(destDir);
 		}
 
@@ -325,6 +706,15 @@ public class AppToPackage {
 			return destFile;
 		}
 
+		/**
+		 * Remove a previous sub dir content, like before re-run an incremental packaging stage.
+		 */
+		public void deleteDest(final String... relativeSubPath) {
+			final File item = new File(destDir.getPath() + File.separator + String.join(File.separator, relativeSubPath));
+			log.debug("Delete previous \"{}\"", item);
+			FileUtils.deleteQuietly(item);
+		}
+
 		public void moveToDest(final File item, final String... relativeSubPath) {
 			try {
 				final File destFile = getDestFile(relativeSubPath, item.getName());
@@ -335,6 +725,22 @@ public class AppToPackage {
 			}
 		}
 
+		/**
+		 * Parallel copy, straight from the local repository.
+		 * @param jars jar file name in lib dir -> artifact to copy
+		 */
+		public void copyToLibDir(final Map<String, Artifact> jars) {
+			final File libDir = getTargetLibDir();
+			final Map<File, File> copies = jars.entrySet().stream().collect(Collectors.toMap(entry -> entry.getValue().getFile(), entry -> new File(libDir, entry.getKey())));
+			log.debug("Copy {} jar(s) to \"{}\"", copies.size(), libDir);
+			try {
+				FileUtils.forceMkdir(libDir);
+				copyEngine.copyFiles(copies);
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
 		public void copyToDest(final File item, final String... relativeSubPath) {
 			try {
 				if (item.isDirectory()) {
@@ -343,17 +749,29 @@ public class AppToPackage {
 
 					final String itemPath = item.getAbsolutePath();
 					final String copyDestDirPath = copyDestDir.getAbsolutePath();
-					Files.walk(item.toPath()).filter(Files::isRegularFile).map(Path::toFile).filter(gitInfo.negate()).forEach(o -> {
-						final String relativePath = FilenameUtils.normalizeNoEndSeparator(o.getAbsolutePath().substring(itemPath.length()));
-						final File destFile = new File(copyDestDirPath + File.separator + relativePath);
-
-						try {
-							FileUtils.forceMkdirParent(destFile);
-							FileUtils.copyFileToDirectory(o, destFile.getParentFile());
-						} catch (final IOException e) {
-							throw new RuntimeException("Can't copy to " + destFile, e);
+					final Map<File, File> copies = new HashMap<>();
+					Files.walkFileTree(item.toPath(), new SimpleFileVisitor<Path>() {
+
+						@Override
+						public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+							if (gitInfo.test(dir.toFile())) {
+								log.debug("Ignore copy dir \"{}\"", dir);
+								return FileVisitResult.SKIP_SUBTREE;
+							}
+							return FileVisitResult.CONTINUE;
+						}
+
+						@Override
+						public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+							final File o = file.toFile();
+							if (attrs.isRegularFile() && gitInfo.test(o) == false) {
+								final String relativePath = FilenameUtils.normalizeNoEndSeparator(o.getAbsolutePath().substring(itemPath.length()));
+								copies.put(o, new File(copyDestDirPath + File.separator + relativePath));
+							}
+							return FileVisitResult.CONTINUE;
 						}
 					});
+					copyEngine.copyFiles(copies);
 				} else {
 					if (gitInfo.test(item)) {
 						log.debug("Ignore copy file \"{}\"", item);
@@ -369,10 +787,43 @@ public class AppToPackage {
 			}
 		}
 
+		/**
+		 * Parallel repack of all lib jars.
+		 */
+		public void repackLibJars(final JarRepacker repacker) {
+			final List<File> jars = Optional.ofNullable(getTargetLibDir().listFiles((dir, name) -> name.toLowerCase().endsWith(".jar"))).map(Arrays::asList).orElse(List.of());
+			log.info("Repack {} jar(s) in lib dir", jars.size());
+			try {
+				copyEngine.processFiles(jars, "repack", repacker::repack);
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Remove the classes not reachable from mainClass from all lib jars (but not the main jar), and write the shrink report next to the package dir.
+		 */
+		public void shrinkLibJars(final JarShrinker shrinker, final String mainJarName, final String mainClass) throws IOException {
+			final File mainJar = new File(getTargetLibDir(), mainJarName);
+			final List<File> jars = Optional.ofNullable(getTargetLibDir().listFiles((dir, name) -> name.toLowerCase().endsWith(".jar") && name.equals(mainJarName) == false)).map(Arrays::asList).orElse(List.of());
+			log.info("Shrink {} jar(s) in lib dir", jars.size());
+
+			final JarShrinker.Analysis analysis = shrinker.analyse(mainJar, jars, mainClass);
+			final List<Map<String, Object>> reports = Collections.synchronizedList(new ArrayList<>());
+			copyEngine.processFiles(jars, "shrink", jar -> reports.add(analysis.shrink(jar)));
+
+			final List<Map<String, Object>> sortedReports = reports.stream().sorted(Comparator.comparing(r -> String.valueOf(r.get("jar")))).collect(Collectors.toUnmodifiableList());
+			JarShrinker.writeReport(sortedReports, destDir.getParentFile());
+		}
+
 		public File getTargetExecFile() {
 			return new File(destDir.getPath() + File.separator + appName + ".exe");
 		}
 
+		public File getTargetLibDir() {
+			return new File(destDir.getPath() + File.separator + "lib");
+		}
+
 		public File getTargetJVMDir() {
 			return new File(destDir.getPath() + File.separator + "jvm");
 		}
@@ -383,8 +834,8 @@ public class AppToPackage {
 			return new File(destDir.getPath() + File.separator + licenseDir);
 		}
 
-		public void moveToLicensesDir(final File mavenLicenses) {
-			moveToDest(mavenLicenses, licenseDir);
+		public File getTargetThirdPartyFile() {
+			return new File(getTargetLicensesDir(), "THIRD-PARTY.txt");
 		}
 
 		public void makeAppLicenseFile() throws IOException {
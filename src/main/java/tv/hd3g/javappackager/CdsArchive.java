@@ -0,0 +1,244 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Dynamic AppCDS archive, made by a training run of the app with the packaged JVM (Java 13 or more), on the build host.
+ * During the training run, the "javappackager.training" system property is set to true: the app must check it, and exit by itself after its startup.
+ * The archive is written on the JVM exit: a training run stopped after the timeout makes an archive on Linux/macOS (SIGTERM), but never on Windows (hard kill).
+ * At runtime, the JVM only uses the archive if it matches the JVM and the class path, else it's silently ignored.
+ */
+public class CdsArchive {
+	private static Logger log = LogManager.getLogger();
+
+	public static final String trainingProperty = "javappackager.training";
+	private static final int minJavaVersion = 13;
+	private static final boolean isWindowsHost = File.separatorChar == '\\';
+
+	private final File packageDir;
+	private final File jvmDir;
+	private final File archiveFile;
+
+	/**
+	 * @param archiveName like "app.jsa", will be put in jvmDir
+	 */
+	public CdsArchive(final File packageDir, final File jvmDir, final String archiveName) {
+		this.packageDir = Objects.requireNonNull(packageDir, "\"packageDir\" can't to be null");
+		this.jvmDir = Objects.requireNonNull(jvmDir, "\"jvmDir\" can't to be null");
+		archiveFile = new File(jvmDir, Objects.requireNonNull(archiveName, "\"archiveName\" can't to be null"));
+	}
+
+	public File getArchiveFile() {
+		return archiveFile;
+	}
+
+	/**
+	 * The JVM checks the date of each class path jar against the archive: set them to the package archive entries date,
+	 * before the training run, so the archive stays valid after the package archive extraction.
+	 */
+	static void setClassPathJarsTime(final File libDir) throws IOException {
+		final FileTime time = PackageArchiver.getEntryTime();
+		final List<Path> jars;
+		try (Stream<Path> walk = Files.walk(libDir.toPath())) {
+			jars = walk.filter(p -> p.getFileName().toString().toLowerCase().endsWith(".jar")).collect(Collectors.toUnmodifiableList());
+		}
+		for (final Path jar : jars) {
+			Files.setLastModifiedTime(jar, time);
+		}
+		log.debug("Set {} jar(s) date to {}, for AppCDS", jars.size(), time);
+	}
+
+	/**
+	 * A zip entry date is in the local time of the extraction host: the class path jars dates can't match the archive.
+	 */
+	static void checkArchiveFormat(final Optional<PackageArchiver> archiver) {
+		if (archiver.map(PackageArchiver::getFormat).filter(PackageArchiver.Format.ZIP::equals).isPresent()) {
+			throw new IllegalArgumentException("AppCDS archive (javappackager.cds) can't be used with a zip package archive (javappackager.archive), the JVM will never use it after the extraction: use tar.gz");
+		}
+	}
+
+	/**
+	 * @return JAVA_VERSION feature number from the JVM "release" file, or -1
+	 */
+	static int getJavaVersion(final File jvmDir) {
+		final Path release = Path.of(jvmDir.getPath(), "release");
+		if (Files.exists(release) == false) {
+			return -1;
+		}
+		try {
+			return Files.readAllLines(release, StandardCharsets.UTF_8).stream()
+			        .filter(l -> l.startsWith("JAVA_VERSION="))
+			        .map(l -> l.substring(13).replace("\"", "").trim())
+			        .findFirst()
+			        .map(JvmTuning::getFeatureVersion)
+			        .orElse(-1);
+		} catch (final IOException | IllegalArgumentException e) {
+			log.debug("Can't read {}", release, e);
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the jvmDir java exec, only if it can run on this host
+	 */
+	static Optional<File> findJavaExec(final File jvmDir) {
+		final Optional<File> exec = Optional.of(Path.of(jvmDir.getPath(), "bin", "java").toFile())
+		        .filter(File::canExecute)
+		        .or(() -> Optional.of(Path.of(jvmDir.getPath(), "bin", "java.exe").toFile()).filter(File::canExecute));
+		if (exec.isEmpty()) {
+			log.debug("Can't found a java exec in {}", jvmDir);
+			return Optional.empty();
+		}
+		try {
+			final Process check = new ProcessBuilder(exec.get().getPath(), "-version").redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+			if (check.waitFor(30, TimeUnit.SECONDS) && check.exitValue() == 0) {
+				return exec;
+			}
+			check.destroyForcibly();
+		} catch (final IOException e) {
+			log.debug("Can't start {}", exec.get(), e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.debug("The JVM {} can't run on this host", jvmDir);
+		return Optional.empty();
+	}
+
+	/**
+	 * @return the packaged JVM java exec, only if it can run on this host, with dynamic CDS archives
+	 */
+	Optional<File> getJavaExec() {
+		final int version = getJavaVersion(jvmDir);
+		if (version < minJavaVersion) {
+			log.warn("Dynamic CDS archives needs Java {} or more, packaged JVM is {}, no CDS archive will be made", minJavaVersion, version);
+			return Optional.empty();
+		}
+		final Optional<File> exec = findJavaExec(jvmDir);
+		if (exec.isEmpty()) {
+			log.warn("The packaged JVM {} can't run on this host, no CDS archive will be made", jvmDir);
+		}
+		return exec;
+	}
+
+	/**
+	 * Make the base CDS archive (lib/server/classes.jsa) of a JVM without it, like a jlink runtime image: a dynamic archive can't be made without it.
+	 * @return false if the JVM can't run on this host, or if the dump fails
+	 */
+	static boolean makeBaseArchive(final File jvmDir) throws IOException {
+		final Optional<File> exec = findJavaExec(jvmDir);
+		if (exec.isEmpty()) {
+			log.warn("The JVM {} can't run on this host, it will not have a base CDS archive", jvmDir);
+			return false;
+		}
+		log.info("Make base CDS archive for {}", jvmDir.getName());
+		final Process process = new ProcessBuilder(exec.get().getPath(), "-Xshare:dump").redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		try {
+			if (process.waitFor(5, TimeUnit.MINUTES) && process.exitValue() == 0) {
+				return true;
+			}
+			process.destroyForcibly();
+		} catch (final InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted base CDS archive dump", e);
+		}
+		log.warn("Can't make the base CDS archive for {}", jvmDir);
+		return false;
+	}
+
+	/**
+	 * Start the app from packageDir and wait its exit, up to timeout, then stop it (on Windows, a stopped run can't write the archive).
+	 * @param classPath relative to packageDir, as for the launcher, without wildcards
+	 * @param vmArgs the launcher JVM options
+	 * @param logFile training run stdout and stderr
+	 * @return true if the archive was made
+	 */
+	public boolean train(final List<String> classPath, final String mainClass, final List<String> vmArgs, final Duration timeout, final File logFile) throws IOException {
+		final Optional<File> javaExec = getJavaExec();
+		if (javaExec.isEmpty()) {
+			return false;
+		}
+		FileUtils.deleteQuietly(archiveFile);
+
+		final List<String> command = new ArrayList<>();
+		command.add(javaExec.get().getPath());
+		command.add("-XX:ArchiveClassesAtExit=" + archiveFile.getAbsolutePath());
+		command.add("-D" + trainingProperty + "=true");
+		command.addAll(vmArgs);
+		command.add("-cp");
+		command.add(String.join(File.pathSeparator, classPath));
+		command.add(mainClass);
+
+		log.info("Start AppCDS training run of {}, for {} sec max", mainClass, timeout.toSeconds());
+		log.debug("Training run: {}", command);
+		final Process process = new ProcessBuilder(command).directory(packageDir).redirectErrorStream(true).redirectOutput(logFile).start();
+		try {
+			if (process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS) == false) {
+				if (isWindowsHost) {
+					log.warn("Stop AppCDS training run after {} sec: on Windows, no archive can be made if the app don't exits by itself when \"{}\" is set", timeout.toSeconds(), trainingProperty);
+				} else {
+					log.warn("Stop AppCDS training run after {} sec, the app should exits by itself when \"{}\" is set", timeout.toSeconds(), trainingProperty);
+				}
+				process.destroy();
+				if (process.waitFor(30, TimeUnit.SECONDS) == false) {
+					process.destroyForcibly();
+				}
+			} else if (process.exitValue() != 0) {
+				log.warn("AppCDS training run ends with exit code {}, see {}", process.exitValue(), logFile);
+			}
+		} catch (final InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted AppCDS training run", e);
+		}
+
+		if (archiveFile.exists() == false || archiveFile.length() == 0) {
+			log.warn("No AppCDS archive was made by the training run, see {}", logFile);
+			FileUtils.deleteQuietly(archiveFile);
+			return false;
+		}
+		log.info("AppCDS archive {} is ready ({} bytes)", archiveFile.getName(), archiveFile.length());
+		return true;
+	}
+
+	/**
+	 * @return launcher JVM options for this archive, with a path relative to the WinRun4J exec dir
+	 */
+	public List<String> getLauncherVMArgs() {
+		return List.of("-XX:SharedArchiveFile=%WinRun4J:module.dir%\\" + jvmDir.getName() + "\\" + archiveFile.getName(), "-Xshare:auto");
+	}
+
+}
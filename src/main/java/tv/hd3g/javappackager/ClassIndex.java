@@ -0,0 +1,210 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Package to jars and class to jars index, for the class path jars, in class path order.
+ * The jars are read in parallel, only by their zip central directory: the entries are never inflated.
+ * The index file lines are "a/b/<tab>lib/x.jar lib/y.jar" for each package, then "a/b/C.class<tab>lib/y.jar" for the classes of the split packages,
+ * so a class loader can found the jar of a class without probe all the jars.
+ */
+public class ClassIndex {
+	private static Logger log = LogManager.getLogger();
+
+	public static final String indexFileName = "CLASSINDEX.TXT";
+	private static final int maxLoggedConflicts = 20;
+
+	public enum ConflictPolicy {
+		IGNORE,
+		WARN,
+		FAIL;
+
+		static ConflictPolicy parse(final String value) {
+			if (value == null || value.trim().isEmpty()) {
+				return WARN;
+			}
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * Class name ("a/b/C") -> jar path -> CRC, in class path order
+	 */
+	private final Map<String, Map<String, Long>> classes;
+	/**
+	 * Package ("a/b") -> jar paths, in class path order
+	 */
+	private final Map<String, Set<String>> packages;
+
+	private ClassIndex(final Map<String, Map<String, Long>> classes, final Map<String, Set<String>> packages) {
+		this.classes = classes;
+		this.packages = packages;
+	}
+
+	/**
+	 * @param classPath launcher class path, relative to packageDir, with jars or "dir/*.jar" entries (the others are ignored)
+	 * @return all the jars, in class path order
+	 */
+	static List<File> getJars(final File packageDir, final List<String> classPath) {
+		final Set<File> jars = new LinkedHashSet<>();
+		for (final String entry : classPath) {
+			if (entry.endsWith("*.jar")) {
+				final File dir = new File(packageDir, entry.substring(0, entry.length() - "*.jar".length()));
+				Optional.ofNullable(dir.listFiles((d, name) -> name.toLowerCase().endsWith(".jar"))).map(Arrays::asList).orElse(List.of()).stream().sorted().forEach(jars::add);
+			} else if (entry.toLowerCase().endsWith(".jar")) {
+				jars.add(new File(packageDir, entry));
+			}
+		}
+		return List.copyOf(jars);
+	}
+
+	/**
+	 * @return class name -> CRC, from the central directory only
+	 */
+	private static Map<String, Long> readClasses(final File jar) throws IOException {
+		final Map<String, Long> jarClasses = new LinkedHashMap<>();
+		try (ZipFile zip = new ZipFile(jar)) {
+			for (final ZipEntry entry : Collections.list(zip.entries())) {
+				final String className = JarShrinker.getClassName(entry.getName());
+				if (className != null && entry.getName().startsWith("META-INF/") == false) {
+					jarClasses.put(className, entry.getCrc());
+				}
+			}
+		}
+		return jarClasses;
+	}
+
+	/**
+	 * @param classPath launcher class path, relative to packageDir
+	 */
+	public static ClassIndex build(final File packageDir, final List<String> classPath, final CopyEngine copyEngine) throws IOException {
+		final Path packagePath = packageDir.toPath().toAbsolutePath();
+		final List<File> jars = getJars(packageDir, classPath);
+		final Map<File, Map<String, Long>> jarsClasses = new ConcurrentHashMap<>();
+		copyEngine.processFiles(jars, "index", jar -> jarsClasses.put(jar, readClasses(jar)));
+
+		final Map<String, Map<String, Long>> classes = new TreeMap<>();
+		final Map<String, Set<String>> packages = new TreeMap<>();
+		for (final File jar : jars) {
+			final String jarPath = packagePath.relativize(jar.toPath().toAbsolutePath()).toString().replace(File.separatorChar, '/');
+			jarsClasses.get(jar).forEach((className, crc) -> {
+				classes.computeIfAbsent(className, k -> new LinkedHashMap<>()).put(jarPath, crc);
+				final int slash = className.lastIndexOf('/');
+				if (slash > 0) {
+					packages.computeIfAbsent(className.substring(0, slash), k -> new LinkedHashSet<>()).add(jarPath);
+				}
+			});
+		}
+		log.debug("Index {} classes and {} packages in {} jars", classes.size(), packages.size(), jars.size());
+		return new ClassIndex(classes, packages);
+	}
+
+	/**
+	 * @return class name -> jar paths, in class path order, only for the classes in more than one jar
+	 */
+	public Map<String, List<String>> getDuplicateClasses() {
+		return classes.entrySet().stream()
+		        .filter(c -> c.getValue().size() > 1)
+		        .collect(Collectors.toMap(Map.Entry::getKey, c -> List.copyOf(c.getValue().keySet()), (l, r) -> l, TreeMap::new));
+	}
+
+	/**
+	 * @return package -> jar paths, in class path order, only for the packages in more than one jar
+	 */
+	public Map<String, List<String>> getSplitPackages() {
+		return packages.entrySet().stream()
+		        .filter(p -> p.getValue().size() > 1)
+		        .collect(Collectors.toMap(Map.Entry::getKey, p -> List.copyOf(p.getValue()), (l, r) -> l, TreeMap::new));
+	}
+
+	/**
+	 * @return true if a class is in many jars, with a different content: the loaded one depends on the class path order
+	 */
+	private boolean isConflicting(final String className) {
+		return classes.get(className).values().stream().distinct().count() > 1;
+	}
+
+	/**
+	 * Log the duplicate classes and the split packages, or throw an IOException.
+	 */
+	public void check(final ConflictPolicy policy) throws IOException {
+		if (policy == ConflictPolicy.IGNORE) {
+			return;
+		}
+		final Map<String, List<String>> duplicates = getDuplicateClasses();
+		final Map<String, List<String>> splitPackages = getSplitPackages();
+		if (duplicates.isEmpty() && splitPackages.isEmpty()) {
+			log.info("No duplicate classes and split packages in the class path jars");
+			return;
+		}
+
+		final List<String> conflicts = new ArrayList<>();
+		duplicates.forEach((className, jars) -> conflicts.add("Class " + className.replace('/', '.') + " is in " + String.join(", ", jars) + (isConflicting(className) ? " (different content)" : " (same content)")));
+		splitPackages.forEach((packageName, jars) -> conflicts.add("Package " + packageName.replace('/', '.') + " is split in " + String.join(", ", jars)));
+		final String summary = duplicates.size() + " duplicate class(es) and " + splitPackages.size() + " split package(s) in the class path jars";
+
+		if (policy == ConflictPolicy.FAIL) {
+			throw new IOException(summary + ":" + System.lineSeparator() + String.join(System.lineSeparator(), conflicts));
+		}
+		log.warn(summary);
+		conflicts.stream().limit(maxLoggedConflicts).forEach(log::warn);
+		if (conflicts.size() > maxLoggedConflicts) {
+			log.warn("... and {} more", conflicts.size() - maxLoggedConflicts);
+			conflicts.stream().skip(maxLoggedConflicts).forEach(log::debug);
+		}
+	}
+
+	/**
+	 * Write the index file: all packages, then the classes of the split packages, with the jar that will be used first.
+	 */
+	public void write(final File indexFile) throws IOException {
+		final Map<String, List<String>> splitPackages = getSplitPackages();
+		try (PrintStream out = new PrintStream(indexFile, "UTF-8")) {
+			packages.forEach((packageName, jars) -> out.println(packageName + "/\t" + String.join(" ", jars)));
+			classes.forEach((className, jars) -> {
+				final int slash = className.lastIndexOf('/');
+				if (slash > 0 && splitPackages.containsKey(className.substring(0, slash))) {
+					out.println(className + ".class\t" + jars.keySet().iterator().next());
+				}
+			});
+		}
+		log.info("Class index ({} packages, {} split) is in {}", packages.size(), splitPackages.size(), indexFile.getName());
+	}
+
+}
@@ -0,0 +1,275 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Make the launcher class path from the package content.
+ */
+public class ClassPathLayout {
+	private static Logger log = LogManager.getLogger();
+
+	/**
+	 * Fixed entries date, for reproducible jars (local time, so it don't depends on the time zone).
+	 */
+	private static final LocalDateTime zipEntryTime = LocalDateTime.of(1980, 2, 1, 0, 0);
+
+	public enum Layout {
+		/**
+		 * Old way: "lib/*.jar", "lib", "bin", "config", the launcher resolve it on each start.
+		 */
+		WILDCARD,
+		/**
+		 * Each jar, main jar first, then direct dependencies, then the others. Only the directories with classpath resources.
+		 */
+		EXPLICIT,
+		/**
+		 * Like EXPLICIT, but all jars are merged in the main jar.
+		 */
+		MERGED;
+
+		static Layout parse(final String value) {
+			if (value == null || value.trim().isEmpty()) {
+				return EXPLICIT;
+			}
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	private static final List<String> directories = List.of("lib", "bin", "config");
+
+	private final File packageDir;
+	private final Layout layout;
+
+	public ClassPathLayout(final File packageDir, final Layout layout) {
+		this.packageDir = Objects.requireNonNull(packageDir, "\"packageDir\" can't to be null");
+		this.layout = Objects.requireNonNull(layout, "\"layout\" can't to be null");
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * @param dependencyOrder jar file names, by load priority (after the main jar). Jars not listed here will be added after, by name.
+	 */
+	public static List<File> orderJars(final Collection<File> jars, final String mainJarName, final List<String> dependencyOrder) {
+		final Map<String, Integer> priorities = new LinkedHashMap<>();
+		priorities.put(mainJarName, -1);
+		for (int pos = 0; pos < dependencyOrder.size(); pos++) {
+			priorities.putIfAbsent(dependencyOrder.get(pos), pos);
+		}
+		return jars.stream().sorted(Comparator.<File> comparingInt(jar -> priorities.getOrDefault(jar.getName(), Integer.MAX_VALUE)).thenComparing(File::getName)).collect(Collectors.toUnmodifiableList());
+	}
+
+	private List<File> listLibJars() {
+		final File libDir = new File(packageDir, "lib");
+		return Optional.ofNullable(libDir.listFiles((dir, name) -> name.toLowerCase().endsWith(".jar"))).map(Arrays::asList).orElse(List.of());
+	}
+
+	/**
+	 * @return true if dir contains a file that can be loaded as a class path resource (not a jar)
+	 */
+	private static boolean hasClassPathResources(final File dir) {
+		if (dir.isDirectory() == false) {
+			return false;
+		}
+		try (Stream<Path> walk = Files.walk(dir.toPath())) {
+			return walk.anyMatch(p -> Files.isRegularFile(p) && p.getFileName().toString().toLowerCase().endsWith(".jar") == false);
+		} catch (final IOException e) {
+			throw new RuntimeException("Can't walk " + dir, e);
+		}
+	}
+
+	/**
+	 * @return launcher class path entries, relative to the package dir.
+	 */
+	public List<String> getClassPath(final String mainJarName, final List<String> dependencyOrder) {
+		if (layout == Layout.WILDCARD) {
+			return List.of("lib/*.jar", "lib", "bin", "config");
+		}
+
+		return getClassPath(orderJars(listLibJars(), mainJarName, dependencyOrder), directories);
+	}
+
+	/**
+	 * Explicit class path, like for an app sharing its package dir with others.
+	 * @param jars ordered jars, in the package dir
+	 * @param dirs directories relative to the package dir, only added if they contains classpath resources
+	 */
+	public List<String> getClassPath(final List<File> jars, final List<String> dirs) {
+		final Path packagePath = packageDir.toPath().toAbsolutePath();
+		final List<String> classPath = new ArrayList<>();
+		jars.forEach(jar -> classPath.add(packagePath.relativize(jar.toPath().toAbsolutePath()).toString().replace(File.separatorChar, '/')));
+		dirs.stream().filter(d -> hasClassPathResources(new File(packageDir, d))).forEach(classPath::add);
+		log.debug("Class path: {}", classPath);
+		return classPath;
+	}
+
+	/**
+	 * Only for MERGED layout: merge all lib jars in the main jar, and remove them.
+	 * Duplicate entries are taken from the first jar (in class path order), META-INF/services files are merged, and jar signatures are removed.
+	 * Only the main jar module-info classes are kept: a dependency one would declare the merged jar as its module.
+	 */
+	public void mergeJars(final String mainJarName, final List<String> dependencyOrder) throws IOException {
+		if (layout != Layout.MERGED) {
+			return;
+		}
+		final List<File> jars = orderJars(listLibJars(), mainJarName, dependencyOrder);
+		final File mainJar = new File(new File(packageDir, "lib"), mainJarName);
+		if (jars.isEmpty() || jars.get(0).equals(mainJar) == false) {
+			throw new IOException("Can't found main jar " + mainJar);
+		}
+		log.info("Merge {} jars in {}", jars.size(), mainJar.getName());
+
+		final File mergedJar = new File(mainJar.getPath() + ".merged");
+		final Set<String> entries = new HashSet<>();
+		final Map<String, Set<String>> services = new LinkedHashMap<>();
+
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(mergedJar))) {
+			out.putNextEntry(newEntry(JarFile.MANIFEST_NAME));
+			makeMergedManifest(jars).write(out);
+			out.closeEntry();
+			entries.add(JarFile.MANIFEST_NAME);
+
+			for (final File jar : jars) {
+				try (JarFile in = new JarFile(jar)) {
+					for (final ZipEntry entry : in.stream().collect(Collectors.toList())) {
+						final String name = entry.getName();
+						if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME) || isSignature(name)) {
+							continue;
+						} else if (isModuleInfo(name) && jar.equals(mainJar) == false) {
+							log.trace("Ignore {} from {}", name, jar.getName());
+							continue;
+						} else if (name.startsWith("META-INF/services/") && entry.isDirectory() == false) {
+							try (BufferedReader reader = new BufferedReader(new InputStreamReader(in.getInputStream(entry), StandardCharsets.UTF_8))) {
+								final Set<String> providers = services.computeIfAbsent(name, n -> new LinkedHashSet<>());
+								reader.lines().map(l -> l.replaceAll("#.*", "").trim()).filter(l -> l.isEmpty() == false).forEach(providers::add);
+							}
+							continue;
+						} else if (entries.add(name) == false) {
+							log.trace("Duplicate entry {} in {}, ignore it", name, jar.getName());
+							continue;
+						}
+						out.putNextEntry(newEntry(name));
+						if (entry.isDirectory() == false) {
+							try (InputStream entryIn = in.getInputStream(entry)) {
+								entryIn.transferTo(out);
+							}
+						}
+						out.closeEntry();
+					}
+				}
+			}
+
+			for (final Map.Entry<String, Set<String>> service : services.entrySet()) {
+				out.putNextEntry(newEntry(service.getKey()));
+				out.write((String.join("\n", service.getValue()) + "\n").getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+
+		for (final File jar : jars) {
+			FileUtils.forceDelete(jar);
+		}
+		FileUtils.moveFile(mergedJar, mainJar);
+	}
+
+	/**
+	 * @return the main jar manifest, without Class-Path and per-entry attributes (digests), Multi-Release if one jar is.
+	 */
+	private static Manifest makeMergedManifest(final List<File> jars) throws IOException {
+		Manifest manifest = null;
+		boolean multiRelease = false;
+		for (final File jar : jars) {
+			try (JarFile in = new JarFile(jar)) {
+				final Manifest jarManifest = in.getManifest();
+				if (jarManifest == null) {
+					continue;
+				} else if (manifest == null) {
+					manifest = new Manifest(jarManifest);
+				}
+				multiRelease |= "true".equalsIgnoreCase(jarManifest.getMainAttributes().getValue(Attributes.Name.MULTI_RELEASE));
+			}
+		}
+		if (manifest == null) {
+			manifest = new Manifest();
+			manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		}
+		manifest.getEntries().clear();
+		manifest.getMainAttributes().remove(Attributes.Name.CLASS_PATH);
+		if (multiRelease) {
+			manifest.getMainAttributes().put(Attributes.Name.MULTI_RELEASE, "true");
+		}
+		return manifest;
+	}
+
+	static ZipEntry newEntry(final String name) {
+		final ZipEntry entry = new ZipEntry(name);
+		entry.setTimeLocal(zipEntryTime);
+		return entry;
+	}
+
+	/**
+	 * @return true for module-info.class and META-INF/versions/N/module-info.class
+	 */
+	static boolean isModuleInfo(final String name) {
+		return name.equals("module-info.class") || name.matches("META-INF/versions/[0-9]+/module-info\\.class");
+	}
+
+	private static boolean isSignature(final String name) {
+		if (name.startsWith("META-INF/") == false || name.indexOf('/', "META-INF/".length()) > -1) {
+			return false;
+		}
+		final String upper = name.toUpperCase();
+		return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC") || upper.startsWith("META-INF/SIG-");
+	}
+
+}
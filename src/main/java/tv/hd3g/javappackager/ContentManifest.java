@@ -0,0 +1,196 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * SHA-256 of all the files of a package dir (sha256sum format), and delta package from a previous release manifest:
+ * only the added and changed files, and the list of the deleted files.
+ */
+public class ContentManifest {
+	private static Logger log = LogManager.getLogger();
+
+	public static final String manifestFileName = "SHA256SUMS";
+	static final String deletedFileName = "DELETED.TXT";
+
+	/**
+	 * Package relative path, with "/" -> SHA-256
+	 */
+	private final SortedMap<String, String> hashes;
+
+	private ContentManifest(final Map<String, String> hashes) {
+		this.hashes = Collections.unmodifiableSortedMap(new TreeMap<>(hashes));
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String sha256(final File file) throws IOException {
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			final MessageDigest digest = newDigest();
+			final byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) > -1) {
+				digest.update(buffer, 0, read);
+			}
+			return StageCache.Fingerprint.toHex(digest.digest());
+		}
+	}
+
+	/**
+	 * "javappackager.manifest" pom property, or implicit with "javappackager.delta.from".
+	 */
+	public static boolean isEnabled(final Properties properties) {
+		return Boolean.parseBoolean(properties.getProperty("javappackager.manifest", "false").trim()) || getDeltaFrom(properties, new File(".")).isPresent();
+	}
+
+	/**
+	 * @return "javappackager.delta.from" system or pom property: a previous release manifest file, relative to baseDir
+	 */
+	public static Optional<File> getDeltaFrom(final Properties properties, final File baseDir) {
+		return Optional.ofNullable(System.getProperty("javappackager.delta.from", properties.getProperty("javappackager.delta.from")))
+		        .map(String::trim)
+		        .filter(p -> p.isEmpty() == false)
+		        .map(p -> {
+			        final File file = new File(p);
+			        return file.isAbsolute() ? file : new File(baseDir, p);
+		        });
+	}
+
+	/**
+	 * Parallel hash of all packageDir files. The hashes already computed during the copies (and still valid) are reused.
+	 */
+	public static ContentManifest compute(final File packageDir, final CopyEngine copyEngine) throws IOException {
+		final Path root = packageDir.toPath();
+		final List<File> files;
+		try (Stream<Path> walk = Files.walk(root)) {
+			files = walk.filter(Files::isRegularFile)
+			        .filter(p -> p.equals(root.resolve(manifestFileName)) == false)
+			        .map(Path::toFile)
+			        .collect(Collectors.toUnmodifiableList());
+		}
+
+		final Map<String, String> hashes = new ConcurrentHashMap<>();
+		final Map<String, Boolean> reused = new ConcurrentHashMap<>();
+		copyEngine.processFiles(files, "hash", file -> {
+			final String relativePath = root.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+			final Optional<String> copyHash = copyEngine.getContentHash(file);
+			copyHash.ifPresent(h -> reused.put(relativePath, true));
+			hashes.put(relativePath, copyHash.isPresent() ? copyHash.get() : sha256(file));
+		});
+		log.debug("Hash {} file(s) in {}, {} hash(es) from copies", hashes.size(), packageDir, reused.size());
+		return new ContentManifest(hashes);
+	}
+
+	/**
+	 * @param manifestFile sha256sum format ("hash  path" or "hash *path")
+	 */
+	public static ContentManifest read(final File manifestFile) throws IOException {
+		final Map<String, String> hashes = Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8).stream()
+		        .filter(l -> l.length() > 66 && l.startsWith("#") == false)
+		        .collect(Collectors.toMap(l -> l.substring(66), l -> l.substring(0, 64).toLowerCase(), (l, r) -> r));
+		return new ContentManifest(hashes);
+	}
+
+	public void write(final File manifestFile) throws IOException {
+		try (PrintStream out = new PrintStream(manifestFile, StandardCharsets.UTF_8)) {
+			hashes.forEach((path, hash) -> out.print(hash + "  " + path + "\n"));
+		}
+	}
+
+	public SortedMap<String, String> getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * Copy the added and changed files (from previous) to deltaDir, with this manifest, and the deleted files list in DELETED.TXT.
+	 */
+	public void makeDelta(final ContentManifest previous, final File packageDir, final File deltaDir, final CopyEngine copyEngine) throws IOException {
+		Objects.requireNonNull(previous, "\"previous\" can't to be null");
+		FileUtils.deleteQuietly(deltaDir);
+		FileUtils.forceMkdir(deltaDir);
+
+		final Map<File, File> copies = hashes.entrySet().stream()
+		        .filter(entry -> entry.getValue().equals(previous.hashes.get(entry.getKey())) == false)
+		        .collect(Collectors.toMap(entry -> new File(packageDir, entry.getKey()), entry -> new File(deltaDir, entry.getKey())));
+		final List<String> deleted = previous.hashes.keySet().stream()
+		        .filter(path -> hashes.containsKey(path) == false)
+		        .collect(Collectors.toUnmodifiableList());
+
+		copyEngine.copyFiles(copies);
+		try (PrintStream out = new PrintStream(new File(deltaDir, deletedFileName), StandardCharsets.UTF_8)) {
+			deleted.forEach(path -> out.print(path + "\n"));
+		}
+		write(new File(deltaDir, manifestFileName));
+
+		final long deltaBytes = copies.keySet().stream().mapToLong(File::length).sum();
+		log.info("Delta package {}: {} added or changed file(s) ({} bytes), {} deleted file(s), {} unchanged file(s)",
+		        deltaDir, copies.size(), deltaBytes, deleted.size(), hashes.size() - copies.size());
+	}
+
+	/**
+	 * Write packageDir/SHA256SUMS, and make a delta package (packageDir-delta) if "javappackager.delta.from" is set.
+	 * @return the delta package dir, if any
+	 */
+	public static Optional<File> makeFor(final Properties properties, final File baseDir, final File packageDir, final CopyEngine copyEngine) throws IOException {
+		final ContentManifest manifest = compute(packageDir, copyEngine);
+		manifest.write(new File(packageDir, manifestFileName));
+		log.info("Write {} hashes in {}", manifest.hashes.size(), manifestFileName);
+
+		final Optional<File> deltaFrom = getDeltaFrom(properties, baseDir);
+		if (deltaFrom.isEmpty()) {
+			return Optional.empty();
+		}
+		if (deltaFrom.get().exists() == false) {
+			throw new FileNotFoundException("Can't found previous release manifest " + deltaFrom.get());
+		}
+		final File deltaDir = new File(packageDir.getParentFile(), packageDir.getName() + "-delta");
+		manifest.makeDelta(read(deltaFrom.get()), packageDir, deltaDir, copyEngine);
+		return Optional.of(deltaDir);
+	}
+
+}
@@ -0,0 +1,301 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Parallel copy and move of files, on a bounded work-stealing pool.
+ * Parent directories are created only one time by copy or move call (a dest dir can be deleted between two calls), big files are copied with FileChannel.transferTo,
+ * and all errors are collected in one report, after all other files are done.
+ */
+public class CopyEngine implements Closeable {
+	private static Logger log = LogManager.getLogger();
+
+	/**
+	 * Under this size, a simple Files.copy is faster than open two channels.
+	 */
+	private static final long transferToThreshold = 1024 * 1024;
+
+	private final ForkJoinPool pool;
+	private final Map<Path, ContentHash> contentHashes;
+	private volatile boolean contentHash;
+
+	/**
+	 * @param parallelism max parallel file operations
+	 */
+	public CopyEngine(final int parallelism) {
+		pool = new ForkJoinPool(Math.max(1, parallelism));
+		contentHashes = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Stop the pool threads, after the running operations.
+	 */
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+
+	/**
+	 * @param contentHash compute the SHA-256 of each copied file during the copy (no more zero-copy transferTo), for getContentHash.
+	 */
+	public void setContentHash(final boolean contentHash) {
+		this.contentHash = contentHash;
+	}
+
+	/**
+	 * @return the SHA-256 computed during the copy to this destination file, only if it has not changed since
+	 */
+	public Optional<String> getContentHash(final File dest) {
+		final Path path = dest.toPath().toAbsolutePath();
+		return Optional.ofNullable(contentHashes.get(path)).filter(h -> {
+			try {
+				return h.size == Files.size(path) && h.lastModified.equals(Files.getLastModifiedTime(path));
+			} catch (final IOException e) {
+				return false;
+			}
+		}).map(h -> h.sha256);
+	}
+
+	private static class ContentHash {
+		private final String sha256;
+		private final long size;
+		private final FileTime lastModified;
+
+		private ContentHash(final String sha256, final long size, final FileTime lastModified) {
+			this.sha256 = sha256;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * @param sourceToDest source file to destination file (not directories)
+	 * @throws IOException after all the possible copies are done, with a failed file list and all errors as suppressed
+	 */
+	public void copyFiles(final Map<File, File> sourceToDest) throws IOException {
+		process(sourceToDest, false);
+	}
+
+	/**
+	 * @param sourceToDest source file to destination file (not directories)
+	 * @throws IOException after all the possible moves are done, with a failed file list and all errors as suppressed
+	 */
+	public void moveFiles(final Map<File, File> sourceToDest) throws IOException {
+		process(sourceToDest, true);
+	}
+
+	@FunctionalInterface
+	public interface FileOperation {
+		void apply(File file) throws IOException;
+	}
+
+	/**
+	 * Run an in-place operation on each file, on the same pool.
+	 * @throws IOException after all the possible operations are done, with a failed file list and all errors as suppressed
+	 */
+	public void processFiles(final Collection<File> files, final String operationName, final FileOperation operation) throws IOException {
+		final ConcurrentLinkedQueue<FileError> errors = new ConcurrentLinkedQueue<>();
+		try {
+			pool.submit(() -> files.parallelStream().forEach(file -> {
+				try {
+					operation.apply(file);
+				} catch (final IOException | UncheckedIOException e) {
+					errors.add(new FileError(file.toPath(), file.toPath(), e));
+				}
+			})).get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted during files " + operationName, e);
+		} catch (final ExecutionException e) {
+			throw new IOException("Can't " + operationName + " files", e.getCause());
+		}
+
+		if (errors.isEmpty() == false) {
+			final String report = errors.stream().map(FileError::toString).collect(Collectors.joining(System.lineSeparator()));
+			final IOException e = new IOException("Can't " + operationName + " " + errors.size() + "/" + files.size() + " file(s):" + System.lineSeparator() + report);
+			errors.forEach(error -> e.addSuppressed(error.cause));
+			throw e;
+		}
+	}
+
+	private void process(final Map<File, File> sourceToDest, final boolean move) throws IOException {
+		final ConcurrentLinkedQueue<FileError> errors = new ConcurrentLinkedQueue<>();
+		final List<Map.Entry<File, File>> operations = new ArrayList<>(sourceToDest.entrySet());
+		final Map<Path, Boolean> createdDirs = new ConcurrentHashMap<>();
+		/**
+		 * Get it from the calling stage thread, not from the pool threads.
+		 */
+		final StageMetrics.CopyCounter stageCopies = StageMetrics.getStageCopyCounter();
+
+		try {
+			pool.submit(() -> operations.parallelStream().forEach(entry -> {
+				final Path source = entry.getKey().toPath();
+				final Path dest = entry.getValue().toPath();
+				try {
+					mkdirParent(dest, createdDirs);
+					stageCopies.add(move ? move(source, dest) : copy(source, dest));
+				} catch (final IOException | UncheckedIOException e) {
+					errors.add(new FileError(source, dest, e));
+				}
+			})).get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted during files " + (move ? "move" : "copy"), e);
+		} catch (final ExecutionException e) {
+			throw new IOException("Can't " + (move ? "move" : "copy") + " files", e.getCause());
+		}
+
+		if (errors.isEmpty() == false) {
+			final String report = errors.stream().map(FileError::toString).collect(Collectors.joining(System.lineSeparator()));
+			final IOException e = new IOException("Can't " + (move ? "move " : "copy ") + errors.size() + "/" + operations.size() + " file(s):" + System.lineSeparator() + report);
+			errors.forEach(error -> e.addSuppressed(error.cause));
+			throw e;
+		}
+	}
+
+	private static void mkdirParent(final Path dest, final Map<Path, Boolean> createdDirs) {
+		final Path parent = dest.toAbsolutePath().getParent();
+		if (parent == null) {
+			return;
+		}
+		createdDirs.computeIfAbsent(parent, p -> {
+			try {
+				Files.createDirectories(p);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * @return written bytes
+	 */
+	private long copy(final Path source, final Path dest) throws IOException {
+		final long size = Files.size(source);
+		if (contentHash) {
+			copyWithHash(source, dest, size);
+		} else if (size < transferToThreshold) {
+			Files.copy(source, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+		} else {
+			try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			     FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				long position = 0;
+				while (position < size) {
+					position += in.transferTo(position, size - position, out);
+				}
+			}
+			copyAttributes(source, dest);
+		}
+		return size;
+	}
+
+	/**
+	 * Like COPY_ATTRIBUTES, for the channel copies: last modified date, and POSIX permissions (like an exec bit) if the file system has it.
+	 * @return the source last modified date
+	 */
+	private static FileTime copyAttributes(final Path source, final Path dest) throws IOException {
+		final FileTime lastModified = Files.getLastModifiedTime(source);
+		final PosixFileAttributeView sourcePosix = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+		final PosixFileAttributeView destPosix = Files.getFileAttributeView(dest, PosixFileAttributeView.class);
+		if (sourcePosix != null && destPosix != null) {
+			destPosix.setPermissions(sourcePosix.readAttributes().permissions());
+		}
+		Files.setLastModifiedTime(dest, lastModified);
+		return lastModified;
+	}
+
+	private void copyWithHash(final Path source, final Path dest, final long size) throws IOException {
+		final MessageDigest digest = ContentManifest.newDigest();
+		final ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+		     FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (in.read(buffer) > -1) {
+				buffer.flip();
+				digest.update(buffer.array(), 0, buffer.limit());
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				buffer.clear();
+			}
+		}
+		final FileTime lastModified = copyAttributes(source, dest);
+		contentHashes.put(dest.toAbsolutePath(), new ContentHash(StageCache.Fingerprint.toHex(digest.digest()), size, lastModified));
+	}
+
+	/**
+	 * @return written bytes, 0 for a simple rename
+	 */
+	private long move(final Path source, final Path dest) throws IOException {
+		try {
+			Files.move(source, dest, StandardCopyOption.ATOMIC_MOVE);
+			return 0;
+		} catch (final AtomicMoveNotSupportedException e) {
+			log.trace("Can't rename {}, copy it", source);
+			final long size = copy(source, dest);
+			Files.delete(source);
+			return size;
+		}
+	}
+
+	private static class FileError {
+		private final Path source;
+		private final Path dest;
+		private final Exception cause;
+
+		private FileError(final Path source, final Path dest, final Exception cause) {
+			this.source = Objects.requireNonNull(source);
+			this.dest = Objects.requireNonNull(dest);
+			this.cause = Objects.requireNonNull(cause);
+		}
+
+		@Override
+		public String toString() {
+			return " - " + source + " -> " + dest + ": " + cause.getMessage();
+		}
+	}
+
+}
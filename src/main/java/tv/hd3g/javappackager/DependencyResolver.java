@@ -0,0 +1,214 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Model;
+import org.apache.maven.repository.internal.MavenRepositorySystemUtils;
+import org.apache.maven.settings.Settings;
+import org.apache.maven.settings.building.DefaultSettingsBuilderFactory;
+import org.apache.maven.settings.building.DefaultSettingsBuildingRequest;
+import org.apache.maven.settings.building.SettingsBuildingException;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.ArtifactType;
+import org.eclipse.aether.artifact.ArtifactTypeRegistry;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.graph.Exclusion;
+import org.eclipse.aether.impl.DefaultServiceLocator;
+import org.eclipse.aether.repository.LocalRepository;
+import org.eclipse.aether.repository.WorkspaceReader;
+import org.eclipse.aether.repository.WorkspaceRepository;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.resolution.DependencyRequest;
+import org.eclipse.aether.resolution.DependencyResolutionException;
+import org.eclipse.aether.util.artifact.JavaScopes;
+import org.eclipse.aether.util.filter.DependencyFilterUtils;
+
+/**
+ * Resolve the dependencies of an effective pom in this JVM, only with the local maven repository (no remote repositories).
+ * The artifacts must be already in the local repository, like after a maven "dependency:resolve" goal.
+ */
+public class DependencyResolver {
+	private static Logger log = LogManager.getLogger();
+
+	private static RepositorySystem repositorySystem;
+
+	private final File localRepositoryDir;
+	/**
+	 * "groupId:artifactId:extension:version" -> reactor module pom or jar file
+	 */
+	private final Map<String, File> workspaceArtifacts;
+
+	public DependencyResolver(final File localRepositoryDir) {
+		this.localRepositoryDir = Objects.requireNonNull(localRepositoryDir, "\"localRepositoryDir\" can't to be null");
+		workspaceArtifacts = new ConcurrentHashMap<>();
+	}
+
+	private static String getWorkspaceKey(final String groupId, final String artifactId, final String extension, final String version) {
+		return groupId + ":" + artifactId + ":" + extension + ":" + version;
+	}
+
+	/**
+	 * Let a reactor module be resolved from its dir (pom file and packaged jar in target), like maven do with a reactor build, even if it was never installed.
+	 * @param modulePom the module effective pom
+	 */
+	public void addWorkspaceModule(final File moduleDir, final Model modulePom) {
+		final String groupId = modulePom.getGroupId();
+		final String artifactId = modulePom.getArtifactId();
+		final String version = modulePom.getVersion();
+		workspaceArtifacts.put(getWorkspaceKey(groupId, artifactId, "pom", version), new File(moduleDir, "pom.xml"));
+		if ("pom".equals(modulePom.getPackaging()) == false) {
+			final String finalName = Optional.ofNullable(modulePom.getBuild()).map(Build::getFinalName).orElse(artifactId + "-" + version);
+			workspaceArtifacts.put(getWorkspaceKey(groupId, artifactId, "jar", version), Path.of(moduleDir.getPath(), "target", finalName + ".jar").toFile());
+		}
+	}
+
+	private class Workspace implements WorkspaceReader {
+		private final WorkspaceRepository repository = new WorkspaceRepository("reactor");
+
+		@Override
+		public WorkspaceRepository getRepository() {
+			return repository;
+		}
+
+		@Override
+		public File findArtifact(final Artifact artifact) {
+			if (artifact.getClassifier().isEmpty() == false) {
+				return null;
+			}
+			return workspaceArtifacts.get(getWorkspaceKey(artifact.getGroupId(), artifact.getArtifactId(), artifact.getExtension(), artifact.getBaseVersion()));
+		}
+
+		@Override
+		public List<String> findVersions(final Artifact artifact) {
+			return Optional.ofNullable(findArtifact(artifact)).map(f -> List.of(artifact.getBaseVersion())).orElse(List.of());
+		}
+	}
+
+	/**
+	 * @return "maven.repo.local" system property, or the localRepository from the maven user/global settings, or ~/.m2/repository
+	 */
+	public static File getDefaultLocalRepositoryDir() {
+		final String repoLocal = System.getProperty("maven.repo.local");
+		if (repoLocal != null && repoLocal.isBlank() == false) {
+			return new File(repoLocal);
+		}
+
+		final File userM2Dir = Path.of(System.getProperty("user.home"), ".m2").toFile();
+		final DefaultSettingsBuildingRequest request = new DefaultSettingsBuildingRequest();
+		request.setUserSettingsFile(new File(userM2Dir, "settings.xml"));
+		Optional.ofNullable(System.getProperty("maven.home")).ifPresent(mavenHome -> request.setGlobalSettingsFile(Path.of(mavenHome, "conf", "settings.xml").toFile()));
+		request.setSystemProperties(System.getProperties());
+		try {
+			final Settings settings = new DefaultSettingsBuilderFactory().newInstance().build(request).getEffectiveSettings();
+			if (settings.getLocalRepository() != null && settings.getLocalRepository().isBlank() == false) {
+				return new File(settings.getLocalRepository());
+			}
+		} catch (final SettingsBuildingException e) {
+			log.warn("Can't read maven settings, use default local repository", e);
+		}
+		return new File(userM2Dir, "repository");
+	}
+
+	private static synchronized RepositorySystem getRepositorySystem() {
+		if (repositorySystem == null) {
+			final DefaultServiceLocator locator = MavenRepositorySystemUtils.newServiceLocator();
+			locator.setErrorHandler(new DefaultServiceLocator.ErrorHandler() {
+				@Override
+				public void serviceCreationFailed(final Class<?> type, final Class<?> impl, final Throwable exception) {
+					log.error("Can't create resolver service {}", impl, exception);
+				}
+			});
+			repositorySystem = Objects.requireNonNull(locator.getService(RepositorySystem.class), "Can't create maven repository system");
+		}
+		return repositorySystem;
+	}
+
+	private static Dependency toDependency(final org.apache.maven.model.Dependency d, final ArtifactTypeRegistry types) {
+		final ArtifactType type = Optional.ofNullable(types.get(d.getType())).orElseGet(() -> types.get("jar"));
+		final String classifier = Optional.ofNullable(d.getClassifier()).filter(c -> c.isEmpty() == false).orElse(type.getClassifier());
+		final Artifact artifact = new DefaultArtifact(d.getGroupId(), d.getArtifactId(), classifier, type.getExtension(), d.getVersion(), type);
+		final List<Exclusion> exclusions = d.getExclusions().stream()
+		        .map(e -> new Exclusion(e.getGroupId(), e.getArtifactId(), "*", "*"))
+		        .collect(Collectors.toUnmodifiableList());
+		return new Dependency(artifact, d.getScope(), d.isOptional(), exclusions);
+	}
+
+	/**
+	 * @param scope maven classpath scope: compile, runtime or test
+	 * @return jar file name, as "artifactId-version[-classifier].jar" -> resolved artifact (with its file in the local repository), in resolution order.
+	 *         A second artifact with the same jar file name, from another groupId, is named "groupId-artifactId-version[-classifier].jar".
+	 */
+	public Map<String, Artifact> resolve(final Model pom, final String scope) throws IOException {
+		final RepositorySystem system = getRepositorySystem();
+		final DefaultRepositorySystemSession session = MavenRepositorySystemUtils.newSession();
+		session.setOffline(true);
+		/**
+		 * The "simple" manager don't check from which remote repository each artifact was downloaded (_remote.repositories files).
+		 */
+		session.setLocalRepositoryManager(system.newLocalRepositoryManager(session, new LocalRepository(localRepositoryDir, "simple")));
+		if (workspaceArtifacts.isEmpty() == false) {
+			session.setWorkspaceReader(new Workspace());
+		}
+
+		final ArtifactTypeRegistry types = session.getArtifactTypeRegistry();
+		final CollectRequest collectRequest = new CollectRequest();
+		pom.getDependencies().forEach(d -> collectRequest.addDependency(toDependency(d, types)));
+		Optional.ofNullable(pom.getDependencyManagement()).ifPresent(dm -> dm.getDependencies().forEach(d -> collectRequest.addManagedDependency(toDependency(d, types))));
+
+		final DependencyRequest request = new DependencyRequest(collectRequest, DependencyFilterUtils.classpathFilter(Optional.ofNullable(scope).orElse(JavaScopes.RUNTIME)));
+		final List<ArtifactResult> results;
+		try {
+			results = system.resolveDependencies(session, request).getArtifactResults();
+		} catch (final DependencyResolutionException e) {
+			throw new IOException("Can't resolve dependencies of " + pom.getArtifactId() + " from local repository " + localRepositoryDir, e);
+		}
+
+		final Map<String, Artifact> jars = new LinkedHashMap<>();
+		results.stream().map(ArtifactResult::getArtifact).filter(a -> "jar".equals(a.getExtension())).forEach(a -> {
+			final String classifier = a.getClassifier().isEmpty() ? "" : "-" + a.getClassifier();
+			final String jarName = a.getArtifactId() + "-" + a.getBaseVersion() + classifier + ".jar";
+			final Artifact first = jars.get(jarName);
+			if (first == null) {
+				jars.put(jarName, a);
+			} else if (first.getGroupId().equals(a.getGroupId()) == false) {
+				log.warn("Jar name {} is used by {}:{} and {}:{}, name the last as {}-{}", jarName, first.getGroupId(), first.getArtifactId(), a.getGroupId(), a.getArtifactId(), a.getGroupId(), jarName);
+				jars.putIfAbsent(a.getGroupId() + "-" + jarName, a);
+			}
+		});
+		log.debug("Resolved {} jar(s) for {} with {} scope", jars.size(), pom.getArtifactId(), scope);
+		return jars;
+	}
+
+}
@@ -17,54 +17,155 @@
 package tv.hd3g.javappackager;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.ignore.IgnoreNode;
+import org.eclipse.jgit.ignore.IgnoreNode.MatchResult;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.CoreConfig;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.treewalk.FileTreeIterator;
-import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.util.FS;
 
+/**
+ * Test if a file is git ignored. Rules are loaded on demand, only for the tested directories:
+ * memory depends on the rules and the tested directories count, not on the working tree size.
+ */
 public class GitInfo implements Predicate<File> {
 	private static Logger log = LogManager.getLogger();
 
-	private final Set<File> ignored;
+	private final File workTree;
 	private final String version;
+	private final IgnoreNode infoExcludeRules;
+	private final IgnoreNode globalExcludeRules;
+	/**
+	 * Parsed .gitignore files, by directory (empty if no .gitignore file).
+	 */
+	private final Map<File, Optional<IgnoreNode>> ignoreNodes;
+	/**
+	 * Already resolved directories.
+	 */
+	private final Map<File, Boolean> ignoredDirs;
 
 	public GitInfo(final File rootDir) throws IOException {
 		final Git git = Git.open(rootDir);
 		final Repository repository = git.getRepository();
+		workTree = repository.getWorkTree().toPath().toAbsolutePath().normalize().toFile();
 
 		/**
-		 * See from https://github.com/eclipse/jgit/blob/master/org.eclipse.jgit.test/tst/org/eclipse/jgit/ignore/CGitIgnoreTest.java
+		 * Same rules sources as jgit WorkingTreeIterator, see https://github.com/eclipse/jgit/blob/master/org.eclipse.jgit/src/org/eclipse/jgit/treewalk/WorkingTreeIterator.java
 		 */
-		ignored = new HashSet<>();
-		try (TreeWalk walk = new TreeWalk(repository)) {
-			final FileTreeIterator iter = new FileTreeIterator(repository);
-			iter.setWalkIgnoredDirectories(true);
-			walk.addTree(iter);
-			walk.setRecursive(true);
-			while (walk.next()) {
-				if (walk.getTree(WorkingTreeIterator.class).isEntryIgnored()) {
-					final File f = new File(rootDir.getPath() + File.separator + walk.getPathString().replace('/', File.separatorChar));
-					log.trace("Found ignored file \"{}\"", f.getPath());
-					ignored.add(f);
-				}
+		final FS fs = repository.getFS();
+		final String excludesFile = repository.getConfig().get(CoreConfig.KEY).getExcludesFile();
+		if (excludesFile != null) {
+			if (excludesFile.startsWith("~/")) {
+				globalExcludeRules = loadRules(fs.resolve(fs.userHome(), excludesFile.substring(2)));
+			} else {
+				globalExcludeRules = loadRules(fs.resolve(null, excludesFile));
 			}
+		} else {
+			globalExcludeRules = new IgnoreNode();
 		}
+		infoExcludeRules = loadRules(fs.resolve(repository.getDirectory(), Constants.INFO_EXCLUDE));
+
+		ignoreNodes = new ConcurrentHashMap<>();
+		ignoredDirs = new ConcurrentHashMap<>();
 
 		version = repository.getBranch() + " " + repository.getRefDatabase().exactRef(Constants.HEAD).getObjectId().abbreviate(8).name();
 	}
 
+	private static IgnoreNode loadRules(final File rulesFile) {
+		final IgnoreNode node = new IgnoreNode();
+		if (rulesFile.isFile() == false) {
+			return node;
+		}
+		try (InputStream in = new FileInputStream(rulesFile)) {
+			node.parse(in);
+		} catch (final IOException e) {
+			throw new RuntimeException("Can't read " + rulesFile, e);
+		}
+		log.trace("Load {} ignore rule(s) from \"{}\"", node.getRules().size(), rulesFile.getPath());
+		return node;
+	}
+
+	private Optional<IgnoreNode> getIgnoreNode(final File dir) {
+		return ignoreNodes.computeIfAbsent(dir, d -> {
+			final File gitIgnore = new File(d, Constants.DOT_GIT_IGNORE);
+			if (gitIgnore.isFile() == false) {
+				return Optional.empty();
+			}
+			return Optional.of(loadRules(gitIgnore));
+		});
+	}
+
+	private static String relativePath(final File parent, final File item) {
+		return item.getPath().substring(parent.getPath().length() + 1).replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Only the rules, without parents directories.
+	 */
+	private boolean matchRules(final File item, final boolean isDirectory) {
+		for (File dir = item.getParentFile(); dir != null; dir = dir.getParentFile()) {
+			final String path = relativePath(dir, item);
+			final MatchResult result = getIgnoreNode(dir).map(node -> node.isIgnored(path, isDirectory)).orElse(MatchResult.CHECK_PARENT);
+			if (result == MatchResult.IGNORED) {
+				return true;
+			} else if (result == MatchResult.NOT_IGNORED) {
+				return false;
+			}
+			if (dir.equals(workTree)) {
+				break;
+			}
+		}
+
+		final String path = relativePath(workTree, item);
+		final MatchResult result = infoExcludeRules.isIgnored(path, isDirectory);
+		if (result == MatchResult.IGNORED) {
+			return true;
+		} else if (result == MatchResult.NOT_IGNORED) {
+			return false;
+		}
+		return globalExcludeRules.isIgnored(path, isDirectory) == MatchResult.IGNORED;
+	}
+
+	private boolean isDirIgnored(final File dir) {
+		if (dir.equals(workTree)) {
+			return false;
+		}
+		final Boolean cached = ignoredDirs.get(dir);
+		if (cached != null) {
+			return cached;
+		}
+		final boolean ignored = isDirIgnored(dir.getParentFile()) || matchRules(dir, true);
+		if (ignored) {
+			log.trace("Found ignored dir \"{}\"", dir.getPath());
+		}
+		ignoredDirs.put(dir, ignored);
+		return ignored;
+	}
+
+	/**
+	 * @return true if f (file or directory) is git ignored, or is in an ignored directory.
+	 */
 	@Override
 	public boolean test(final File f) {
-		return ignored.contains(f);
+		final File item = f.toPath().toAbsolutePath().normalize().toFile();
+		if (item.getPath().startsWith(workTree.getPath() + File.separator) == false) {
+			return false;
+		}
+		if (item.isDirectory()) {
+			return isDirIgnored(item);
+		}
+		return isDirIgnored(item.getParentFile()) || matchRules(item, false);
 	}
 
 	public String getVersion() {
@@ -0,0 +1,153 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Rewrite jars with STORED (uncompressed) entries, and the classes loaded during a training run first.
+ * Entries have fixed dates, so a same jar and a same class list always produce the same bytes.
+ * Entries content is never changed, and the signature files are kept just after the manifest: a signed jar stays verifiable.
+ */
+public class JarRepacker {
+	private static Logger log = LogManager.getLogger();
+
+	/**
+	 * -Xlog:class+load line, like "[0.012s][info][class,load] java.lang.Object source: jrt:/java.base"
+	 */
+	private static final Pattern xlogClassLoad = Pattern.compile("^(?:\\[[^\\]]*\\])+\\s*(\\S+).*$");
+	private static final String versionsPrefix = "META-INF/versions/";
+	/**
+	 * Like in java.util.jar.JarVerifier, for META-INF/ entries only
+	 */
+	private static final Pattern signatureFile = Pattern.compile("^META-INF/([^/]+\\.(SF|DSA|RSA|EC)|SIG-[^/]+)$", Pattern.CASE_INSENSITIVE);
+
+	private final Map<String, Integer> trainingOrder;
+
+	/**
+	 * @param trainingClassList class entry names ("a/b/C.class"), in load order
+	 */
+	public JarRepacker(final List<String> trainingClassList) {
+		Objects.requireNonNull(trainingClassList, "\"trainingClassList\" can't to be null");
+		final Map<String, Integer> order = new HashMap<>();
+		for (int pos = 0; pos < trainingClassList.size(); pos++) {
+			order.putIfAbsent(trainingClassList.get(pos), pos);
+		}
+		trainingOrder = Collections.unmodifiableMap(order);
+	}
+
+	/**
+	 * Read a class list made by a training run with "-XX:DumpLoadedClassList=file" or "-Xlog:class+load:file".
+	 * @return class entry names ("a/b/C.class"), in load order
+	 */
+	public static List<String> readClassList(final File classList) throws IOException {
+		return Files.readAllLines(classList.toPath(), StandardCharsets.UTF_8).stream()
+		        .map(String::trim)
+		        .filter(l -> l.isEmpty() == false && l.startsWith("#") == false && l.startsWith("@") == false)
+		        .map(l -> {
+			        final Matcher m = xlogClassLoad.matcher(l);
+			        if (l.startsWith("[") && m.matches()) {
+				        return m.group(1);
+			        }
+			        return l.split("\\s+")[0];
+		        })
+		        .map(className -> className.replace('.', '/') + ".class")
+		        .distinct()
+		        .collect(Collectors.toUnmodifiableList());
+	}
+
+	private int getRank(final String entryName) {
+		if (entryName.equals("META-INF/")) {
+			return -3;
+		} else if (entryName.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+			return -2;
+		} else if (signatureFile.matcher(entryName).matches()) {
+			return -1;
+		}
+		String name = entryName;
+		if (name.startsWith(versionsPrefix)) {
+			final int slash = name.indexOf('/', versionsPrefix.length());
+			if (slash > -1) {
+				name = name.substring(slash + 1);
+			}
+		}
+		return trainingOrder.getOrDefault(name, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Replace jar by its repacked version.
+	 */
+	public void repack(final File jar) throws IOException {
+		final File repacked = new File(jar.getPath() + ".repack");
+		try (ZipFile in = new ZipFile(jar);
+		     ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(repacked)))) {
+			out.setMethod(ZipOutputStream.STORED);
+
+			final List<? extends ZipEntry> entries = in.stream()
+			        .sorted(Comparator.<ZipEntry> comparingInt(e -> getRank(e.getName())).thenComparing(ZipEntry::getName))
+			        .collect(Collectors.toUnmodifiableList());
+
+			for (final ZipEntry entry : entries) {
+				final byte[] content;
+				try (InputStream entryIn = in.getInputStream(entry)) {
+					content = entryIn.readAllBytes();
+				}
+				final CRC32 crc = new CRC32();
+				crc.update(content);
+
+				final ZipEntry storedEntry = ClassPathLayout.newEntry(entry.getName());
+				storedEntry.setMethod(ZipEntry.STORED);
+				storedEntry.setSize(content.length);
+				storedEntry.setCompressedSize(content.length);
+				storedEntry.setCrc(crc.getValue());
+				out.putNextEntry(storedEntry);
+				out.write(content);
+				out.closeEntry();
+			}
+		} catch (final IOException e) {
+			Files.deleteIfExists(repacked.toPath());
+			throw e;
+		}
+		log.debug("Repack {} ({} -> {} bytes)", jar.getName(), jar.length(), repacked.length());
+		Files.move(repacked.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
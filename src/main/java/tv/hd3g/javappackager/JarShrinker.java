@@ -0,0 +1,375 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remove from the lib jars the classes that can't be reached from the main class.
+ * The reachability is on class level, from the class files constant pools: all the class names, descriptors and signatures,
+ * and the strings that are a known class name (like for Class.forName). It can't see the others reflection usages: use keep rules for them.
+ * A service provider (META-INF/services) is kept if its service interface is reached, or if it's not in the jars (like a JDK interface).
+ * Resources, module-info, package-info and all META-INF entries are always kept, signed jars are never shrunk.
+ */
+public class JarShrinker {
+	private static Logger log = LogManager.getLogger();
+
+	static final String reportBaseName = "javappackager-shrink";
+	private static final String classExt = ".class";
+	private static final String versionsPrefix = "META-INF/versions/";
+	private static final String servicesPrefix = "META-INF/services/";
+	private static final Pattern descriptorClass = Pattern.compile("L([^;<>()\\[\\]]+)[;<]");
+
+	private final List<String> keepRules;
+	private final List<String> keepJars;
+
+	/**
+	 * @param keepRules class names to always keep, with its dependencies: "a.b.C", "a.b.*" for a package, "a.b.**" for a package and its sub packages
+	 * @param keepJars jar file names, or their start (like an artifactId), to never shrink
+	 */
+	public JarShrinker(final List<String> keepRules, final List<String> keepJars) {
+		this.keepRules = Objects.requireNonNull(keepRules, "\"keepRules\" can't to be null");
+		this.keepJars = Objects.requireNonNull(keepJars, "\"keepJars\" can't to be null");
+	}
+
+	boolean isKeepRule(final String className) {
+		final String dotted = className.replace('/', '.');
+		return keepRules.stream().anyMatch(rule -> {
+			if (rule.endsWith(".**")) {
+				return dotted.startsWith(rule.substring(0, rule.length() - 2));
+			} else if (rule.endsWith(".*")) {
+				final String packagePrefix = rule.substring(0, rule.length() - 1);
+				return dotted.startsWith(packagePrefix) && dotted.indexOf('.', packagePrefix.length()) == -1;
+			}
+			return dotted.equals(rule) || dotted.startsWith(rule + "$");
+		});
+	}
+
+	private boolean isKeepJar(final File jar, final ZipFile zip) {
+		if (keepJars.stream().anyMatch(jar.getName()::startsWith)) {
+			return true;
+		}
+		final boolean signed = zip.stream().map(ZipEntry::getName).anyMatch(n -> n.startsWith("META-INF/") && n.toUpperCase().endsWith(".SF"));
+		if (signed) {
+			log.info("Don't shrink signed jar {}", jar.getName());
+		}
+		return signed;
+	}
+
+	/**
+	 * @return the class name ("a/b/C") for a class entry, without the multi-release prefix, or null for a not shrinkable entry
+	 */
+	static String getClassName(final String entryName) {
+		if (entryName.endsWith(classExt) == false) {
+			return null;
+		}
+		String name = entryName.substring(0, entryName.length() - classExt.length());
+		if (name.startsWith(versionsPrefix)) {
+			final int slash = name.indexOf('/', versionsPrefix.length());
+			if (slash == -1) {
+				return null;
+			}
+			name = name.substring(slash + 1);
+		} else if (name.startsWith("META-INF/")) {
+			return null;
+		}
+		if (name.equals("module-info") || name.endsWith("/package-info") || name.equals("package-info")) {
+			return null;
+		}
+		return name;
+	}
+
+	/**
+	 * @return all the possible class names ("a/b/C") referenced by a class file constant pool: class entries, descriptors, signatures and strings.
+	 */
+	static Set<String> readReferences(final byte[] classFile) throws IOException {
+		final Set<String> references = new HashSet<>();
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile))) {
+			if (in.readInt() != 0xCAFEBABE) {
+				throw new IOException("Not a class file");
+			}
+			in.readUnsignedShort();
+			in.readUnsignedShort();
+			final int constantPoolCount = in.readUnsignedShort();
+			for (int pos = 1; pos < constantPoolCount; pos++) {
+				final int tag = in.readUnsignedByte();
+				switch (tag) {
+				case 1:
+					addReferences(in.readUTF(), references);
+					break;
+				case 7:
+				case 8:
+				case 16:
+				case 19:
+				case 20:
+					in.skipBytes(2);
+					break;
+				case 15:
+					in.skipBytes(3);
+					break;
+				case 3:
+				case 4:
+				case 9:
+				case 10:
+				case 11:
+				case 12:
+				case 17:
+				case 18:
+					in.skipBytes(4);
+					break;
+				case 5:
+				case 6:
+					in.skipBytes(8);
+					pos++;
+					break;
+				default:
+					throw new IOException("Invalid constant pool tag " + tag);
+				}
+			}
+		}
+		return references;
+	}
+
+	private static void addReferences(final String utf8, final Set<String> references) {
+		if (utf8.isEmpty()) {
+			return;
+		}
+		if (utf8.indexOf(';') == -1 && utf8.indexOf('(') == -1) {
+			references.add(utf8.replace('.', '/'));
+			return;
+		}
+		final Matcher m = descriptorClass.matcher(utf8);
+		while (m.find()) {
+			references.add(m.group(1));
+		}
+	}
+
+	private static List<String> readServiceProviders(final ZipFile zip, final ZipEntry entry) throws IOException {
+		try (InputStream in = zip.getInputStream(entry)) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8).lines()
+			        .map(l -> l.replaceAll("#.*$", "").trim())
+			        .filter(l -> l.isEmpty() == false)
+			        .map(l -> l.replace('.', '/'))
+			        .collect(Collectors.toUnmodifiableList());
+		}
+	}
+
+	/**
+	 * @param mainJar never shrunk, but its classes are only kept if they are reached
+	 * @param libJars can contains mainJar
+	 * @param mainClass like "a.b.Main"
+	 */
+	public Analysis analyse(final File mainJar, final Collection<File> libJars, final String mainClass) throws IOException {
+		final List<File> jars = new ArrayList<>();
+		jars.add(mainJar);
+		libJars.stream().filter(jar -> jar.equals(mainJar) == false).forEach(jars::add);
+
+		final Map<File, ZipFile> zips = new LinkedHashMap<>();
+		try {
+			final Map<String, List<ZipEntryRef>> classes = new HashMap<>();
+			final Map<String, List<String>> services = new HashMap<>();
+			final Set<File> wholeJars = new HashSet<>();
+			final Deque<String> toVisit = new ArrayDeque<>();
+
+			for (final File jar : jars) {
+				final ZipFile zip = new ZipFile(jar);
+				zips.put(jar, zip);
+				final boolean whole = jar.equals(mainJar) == false && isKeepJar(jar, zip);
+				if (whole) {
+					wholeJars.add(jar);
+				}
+				for (final ZipEntry entry : Collections.list(zip.entries())) {
+					if (entry.getName().startsWith(servicesPrefix) && entry.isDirectory() == false) {
+						services.computeIfAbsent(entry.getName().substring(servicesPrefix.length()).replace('.', '/'), k -> new ArrayList<>()).addAll(readServiceProviders(zip, entry));
+					}
+					final String className = getClassName(entry.getName());
+					if (className == null) {
+						continue;
+					}
+					classes.computeIfAbsent(className, k -> new ArrayList<>()).add(new ZipEntryRef(zip, entry));
+					if (whole || isKeepRule(className)) {
+						toVisit.add(className);
+					}
+				}
+			}
+
+			final String mainClassName = Objects.requireNonNull(mainClass, "\"mainClass\" can't to be null").replace('.', '/');
+			if (classes.containsKey(mainClassName) == false) {
+				throw new IOException("Can't found main class " + mainClass + " in " + mainJar.getName());
+			}
+			toVisit.add(mainClassName);
+			services.forEach((service, providers) -> {
+				if (classes.containsKey(service) == false) {
+					toVisit.addAll(providers);
+				}
+			});
+
+			final Set<String> reachable = new HashSet<>();
+			while (toVisit.isEmpty() == false) {
+				final String className = toVisit.poll();
+				if (classes.containsKey(className) == false || reachable.add(className) == false) {
+					continue;
+				}
+				toVisit.addAll(services.getOrDefault(className, List.of()));
+				for (final ZipEntryRef ref : classes.get(className)) {
+					final byte[] content;
+					try (InputStream in = ref.zip.getInputStream(ref.entry)) {
+						content = in.readAllBytes();
+					}
+					readReferences(content).stream().filter(classes::containsKey).filter(r -> reachable.contains(r) == false).forEach(toVisit::add);
+				}
+			}
+			log.info("{} reachable classes of {}, from {}", reachable.size(), classes.size(), mainClass);
+			return new Analysis(Collections.unmodifiableSet(reachable), Collections.unmodifiableSet(wholeJars));
+		} finally {
+			for (final ZipFile zip : zips.values()) {
+				zip.close();
+			}
+		}
+	}
+
+	private static class ZipEntryRef {
+		private final ZipFile zip;
+		private final ZipEntry entry;
+
+		private ZipEntryRef(final ZipFile zip, final ZipEntry entry) {
+			this.zip = zip;
+			this.entry = entry;
+		}
+	}
+
+	public static class Analysis {
+		private final Set<String> reachable;
+		private final Set<File> wholeJars;
+
+		private Analysis(final Set<String> reachable, final Set<File> wholeJars) {
+			this.reachable = reachable;
+			this.wholeJars = wholeJars;
+		}
+
+		public boolean isReachable(final String className) {
+			return reachable.contains(className.replace('.', '/'));
+		}
+
+		/**
+		 * Replace jar by a version without the unreachable classes, only if some classes are removed.
+		 * @return jar, classes, removedClasses, bytes and shrunkBytes
+		 */
+		public Map<String, Object> shrink(final File jar) throws IOException {
+			final File shrunk = new File(jar.getPath() + ".shrink");
+			int classes = 0;
+			int removedClasses = 0;
+			try (ZipFile in = new ZipFile(jar)) {
+				final boolean whole = wholeJars.contains(jar);
+				final List<ZipEntry> kept = new ArrayList<>();
+				for (final ZipEntry entry : Collections.list(in.entries())) {
+					final String className = getClassName(entry.getName());
+					if (className != null) {
+						classes++;
+						if (whole == false && reachable.contains(className) == false) {
+							removedClasses++;
+							continue;
+						}
+					}
+					kept.add(entry);
+				}
+
+				if (removedClasses > 0) {
+					try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(shrunk)))) {
+						for (final ZipEntry entry : kept) {
+							out.putNextEntry(ClassPathLayout.newEntry(entry.getName()));
+							try (InputStream entryIn = in.getInputStream(entry)) {
+								entryIn.transferTo(out);
+							}
+							out.closeEntry();
+						}
+					}
+				}
+			} catch (final IOException e) {
+				Files.deleteIfExists(shrunk.toPath());
+				throw e;
+			}
+
+			final long bytes = jar.length();
+			if (removedClasses > 0) {
+				Files.move(shrunk.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				log.info("Shrink {}: {}/{} classes removed, {} -> {} bytes", jar.getName(), removedClasses, classes, bytes, jar.length());
+			}
+
+			final Map<String, Object> report = new LinkedHashMap<>();
+			report.put("jar", jar.getName());
+			report.put("classes", classes);
+			report.put("removedClasses", removedClasses);
+			report.put("bytes", bytes);
+			report.put("shrunkBytes", jar.length());
+			return report;
+		}
+	}
+
+	/**
+	 * Write javappackager-shrink.json and javappackager-shrink.csv in dir, a line by jar.
+	 */
+	public static void writeReport(final List<Map<String, Object>> jars, final File dir) throws IOException {
+		final File jsonFile = new File(dir, reportBaseName + ".json");
+		try (PrintStream out = new PrintStream(jsonFile, "UTF-8")) {
+			out.println("[");
+			out.println(jars.stream().map(Json::object).collect(Collectors.joining("," + System.lineSeparator())));
+			out.println("]");
+		}
+
+		final File csvFile = new File(dir, reportBaseName + ".csv");
+		try (PrintStream out = new PrintStream(csvFile, "UTF-8")) {
+			if (jars.isEmpty() == false) {
+				out.println(String.join(",", jars.get(0).keySet()));
+			}
+			jars.forEach(j -> out.println(j.values().stream().map(String::valueOf).collect(Collectors.joining(","))));
+		}
+		log.info("Jars shrink report is in {}", jsonFile);
+	}
+
+}
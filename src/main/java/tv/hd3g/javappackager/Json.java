@@ -0,0 +1,83 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Minimal JSON writer, for the reports.
+ */
+class Json {
+
+	private Json() {
+	}
+
+	static String quote(final String value) {
+		if (value == null) {
+			return "null";
+		}
+		final StringBuilder sb = new StringBuilder(value.length() + 2);
+		sb.append('"');
+		for (int pos = 0; pos < value.length(); pos++) {
+			final char c = value.charAt(pos);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+
+	/**
+	 * @param fields values can be String, Number, Boolean or null
+	 * @return a JSON object, on one line, in fields order
+	 */
+	static String object(final Map<String, ?> fields) {
+		return fields.entrySet().stream().map(entry -> {
+			final Object value = entry.getValue();
+			final String jsonValue;
+			if (value == null || value instanceof Number || value instanceof Boolean) {
+				jsonValue = String.valueOf(value);
+			} else {
+				jsonValue = quote(value.toString());
+			}
+			return quote(entry.getKey()) + ":" + jsonValue;
+		}).collect(Collectors.joining(",", "{", "}"));
+	}
+
+}
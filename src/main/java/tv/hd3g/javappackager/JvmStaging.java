@@ -0,0 +1,187 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.plexus.util.SelectorUtils;
+
+import tv.hd3g.processlauncher.cmdline.ExecutableFinder;
+
+/**
+ * Copy a JAVA_HOME to the package, with include/exclude rules applied during the walk: excluded files are never copied.
+ * Rules are Ant-like patterns ("**", "*"), on "/" separated paths relative to JAVA_HOME.
+ */
+public class JvmStaging {
+	private static Logger log = LogManager.getLogger();
+
+	/**
+	 * Not needed for run an app.
+	 */
+	public static final List<String> DEFAULT_EXCLUDES = Collections.unmodifiableList(defaultExcludes());
+	/**
+	 * Never excluded by DEFAULT_EXCLUDES: the AppCDS training run and the startup benchmark start the packaged JVM with it, on a Windows host.
+	 */
+	public static final List<String> DEFAULT_KEPT = List.of("bin/java.exe");
+
+	private static List<String> defaultExcludes() {
+		final List<String> excludes = new ArrayList<>();
+		excludes.add("include/**");
+		excludes.add("jmods/**");
+		excludes.add("lib/src.zip");
+		ExecutableFinder.WINDOWS_EXEC_EXTENSIONS.forEach(ext -> excludes.add("bin/*." + ext.toLowerCase()));
+		return excludes;
+	}
+
+	public enum CopyStrategy {
+		/**
+		 * Hard link each file to the JAVA_HOME one: no data I/O. Fallback to COPY if the filesystem refuse it (like across volumes).
+		 */
+		HARDLINK,
+		/**
+		 * Let the JVM Files.copy choose the best way: on recent JVM and compatible filesystems, it's a copy-on-write clone (reflink).
+		 */
+		CLONE,
+		/**
+		 * Regular copy.
+		 */
+		COPY;
+
+		static CopyStrategy parse(final String value) {
+			if (value == null || value.trim().isEmpty()) {
+				return COPY;
+			}
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	private final File javaHome;
+	private final CopyStrategy copyStrategy;
+	private final List<String> includes;
+	private final List<String> excludes;
+
+	/**
+	 * @param includes if empty, include all
+	 * @param excludes added to DEFAULT_EXCLUDES
+	 */
+	public JvmStaging(final File javaHome, final CopyStrategy copyStrategy, final Collection<String> includes, final Collection<String> excludes) {
+		this.javaHome = Objects.requireNonNull(javaHome, "\"javaHome\" can't to be null");
+		this.copyStrategy = Objects.requireNonNull(copyStrategy, "\"copyStrategy\" can't to be null");
+		this.includes = includes.isEmpty() ? List.of("**") : List.copyOf(includes);
+		this.excludes = new ArrayList<>(DEFAULT_EXCLUDES);
+		this.excludes.addAll(excludes);
+	}
+
+	/**
+	 * For fingerprint the staging configuration.
+	 */
+	@Override
+	public String toString() {
+		return copyStrategy + " " + includes + " -" + excludes + " +" + DEFAULT_KEPT;
+	}
+
+	/**
+	 * A DEFAULT_KEPT file is only excluded by an explicit exclude.
+	 */
+	private boolean isExcluded(final String relativePath) {
+		final boolean kept = DEFAULT_KEPT.contains(relativePath);
+		return excludes.stream()
+		        .filter(p -> kept == false || DEFAULT_EXCLUDES.contains(p) == false)
+		        .anyMatch(p -> SelectorUtils.matchPath(p, relativePath, "/", true));
+	}
+
+	private boolean isIncluded(final String relativePath) {
+		return includes.stream().anyMatch(p -> SelectorUtils.matchPath(p, relativePath, "/", true));
+	}
+
+	/**
+	 * @param jvmDir will be deleted before, if exists.
+	 */
+	public void stage(final File jvmDir) throws IOException {
+		FileUtils.deleteQuietly(jvmDir);
+		final Path source = javaHome.toPath();
+		final Path dest = jvmDir.toPath();
+		final AtomicBoolean linkFallback = new AtomicBoolean(false);
+		final List<String> skipped = new ArrayList<>();
+
+		Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+				final String relativePath = toRelative(source, dir);
+				if (relativePath.isEmpty() == false && isExcluded(relativePath)) {
+					skipped.add(relativePath + "/");
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				Files.createDirectories(dest.resolve(source.relativize(dir)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				final String relativePath = toRelative(source, file);
+				if (isExcluded(relativePath) || isIncluded(relativePath) == false) {
+					skipped.add(relativePath);
+					return FileVisitResult.CONTINUE;
+				}
+				final Path destFile = dest.resolve(source.relativize(file));
+
+				if (copyStrategy == CopyStrategy.HARDLINK && linkFallback.get() == false) {
+					try {
+						Files.createLink(destFile, file);
+						return FileVisitResult.CONTINUE;
+					} catch (final IOException | UnsupportedOperationException e) {
+						log.warn("Can't hard link JVM files ({}), fallback to copy", e.getMessage());
+						linkFallback.set(true);
+					}
+				}
+
+				if (copyStrategy == CopyStrategy.COPY) {
+					FileUtils.copyFile(file.toFile(), destFile.toFile(), true);
+				} else {
+					Files.copy(file, destFile, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		log.debug("JVM files not copied: {}", skipped);
+	}
+
+	private static String toRelative(final Path root, final Path item) {
+		return root.relativize(item).toString().replace(File.separatorChar, '/');
+	}
+
+}
@@ -0,0 +1,190 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Launcher JVM options, from pom properties:
+ * "javappackager.profile" (throughput, lowlatency or lowmemory), "javappackager.heap" (like "50%" of the RAM, or "512m"),
+ * and "javappackager.vmargs" (space separated, added after). All are checked against the target JVM version.
+ */
+public class JvmTuning {
+	private static Logger log = LogManager.getLogger();
+
+	private static final Pattern heapPercent = Pattern.compile("^(\\d{1,2}(\\.\\d+)?)\\s*%$");
+	private static final Pattern heapSize = Pattern.compile("^\\d+[kKmMgG]?$");
+	private static final Pattern xxOption = Pattern.compile("^-XX:[+-]?(\\w+)(=.*)?$");
+
+	/**
+	 * -XX option name -> { first JVM version, first JVM version without it (0 for none) }
+	 */
+	private static final Map<String, int[]> optionVersions = Map.of(
+	        "UseZGC", new int[] { 11, 0 },
+	        "UseShenandoahGC", new int[] { 12, 0 },
+	        "UseConcMarkSweepGC", new int[] { 1, 14 },
+	        "UseParallelOldGC", new int[] { 1, 15 },
+	        "MaxRAMPercentage", new int[] { 10, 0 },
+	        "InitialRAMPercentage", new int[] { 10, 0 },
+	        "MinRAMPercentage", new int[] { 10, 0 },
+	        "UseContainerSupport", new int[] { 10, 0 });
+
+	/**
+	 * Options before this JVM version are only usable with -XX:+UnlockExperimentalVMOptions.
+	 */
+	private static final Map<String, Integer> experimentalUntil = Map.of(
+	        "UseZGC", 15,
+	        "UseShenandoahGC", 15);
+
+	public enum Profile {
+		/**
+		 * Batch and server apps: best throughput, longer GC pauses.
+		 */
+		THROUGHPUT("-XX:+UseParallelGC"),
+		/**
+		 * Interactive apps: short GC pauses. ZGC is production ready since Java 15, G1 with a pause goal before.
+		 */
+		LOWLATENCY("-XX:+UseZGC"),
+		/**
+		 * Small tools: smallest footprint and fastest startup, C1 only.
+		 */
+		LOWMEMORY("-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1", "-XX:MaxMetaspaceSize=128m", "-XX:ReservedCodeCacheSize=32m", "-Xss512k");
+
+		private final List<String> vmArgs;
+
+		Profile(final String... vmArgs) {
+			this.vmArgs = List.of(vmArgs);
+		}
+
+		List<String> getVMArgs(final int jvmVersion) {
+			if (this == LOWLATENCY && jvmVersion < 15) {
+				log.warn("ZGC is not production ready on Java {}, use G1 for the {} profile", jvmVersion, name().toLowerCase());
+				return List.of("-XX:+UseG1GC", "-XX:MaxGCPauseMillis=50");
+			}
+			return vmArgs;
+		}
+
+		static Optional<Profile> parse(final String value) {
+			if (value == null || value.trim().isEmpty()) {
+				return Optional.empty();
+			}
+			return Optional.of(valueOf(value.trim().replace("-", "").replace("_", "").toUpperCase()));
+		}
+	}
+
+	private final Optional<Profile> profile;
+	private final Optional<String> heap;
+	private final List<String> vmArgs;
+
+	public JvmTuning(final Properties properties) {
+		Objects.requireNonNull(properties, "\"properties\" can't to be null");
+		profile = Profile.parse(properties.getProperty("javappackager.profile"));
+		heap = Optional.ofNullable(properties.getProperty("javappackager.heap")).map(String::trim).filter(h -> h.isEmpty() == false);
+		vmArgs = Arrays.stream(properties.getProperty("javappackager.vmargs", "").trim().split("\\s+"))
+		        .filter(a -> a.isEmpty() == false)
+		        .collect(Collectors.toUnmodifiableList());
+	}
+
+	/**
+	 * @param jvmVersion like "11" or "1.8"
+	 */
+	static int getFeatureVersion(final String jvmVersion) {
+		final String version = Objects.requireNonNull(jvmVersion, "\"jvmVersion\" can't to be null").trim();
+		final String feature = version.startsWith("1.") ? version.substring(2) : version;
+		final Matcher m = Pattern.compile("^\\d+").matcher(feature);
+		if (m.find() == false) {
+			throw new IllegalArgumentException("Invalid JVM version: " + jvmVersion);
+		}
+		return Integer.parseInt(m.group());
+	}
+
+	private static List<String> getHeapVMArgs(final String heap, final int jvmVersion) {
+		final Matcher percent = heapPercent.matcher(heap);
+		if (percent.find()) {
+			if (jvmVersion < 10) {
+				throw new IllegalArgumentException("Heap as RAM percentage (\"" + heap + "\") needs Java 10 or more, target JVM is " + jvmVersion);
+			}
+			final String value = String.valueOf(Double.parseDouble(percent.group(1)));
+			return List.of("-XX:InitialRAMPercentage=" + value, "-XX:MaxRAMPercentage=" + value);
+		} else if (heapSize.matcher(heap).find()) {
+			return List.of("-Xmx" + heap);
+		}
+		throw new IllegalArgumentException("Invalid javappackager.heap value: \"" + heap + "\", use a RAM percentage like \"50%\", or a size like \"512m\"");
+	}
+
+	/**
+	 * Throw an IllegalArgumentException if an option is unknown by the target JVM, or removed.
+	 */
+	static void checkVMArgs(final List<String> vmArgs, final int jvmVersion) {
+		final boolean unlockExperimental = vmArgs.contains("-XX:+UnlockExperimentalVMOptions");
+		final List<String> gcs = vmArgs.stream().filter(a -> a.matches("^-XX:\\+Use\\w+GC$")).distinct().collect(Collectors.toUnmodifiableList());
+		if (gcs.size() > 1) {
+			throw new IllegalArgumentException("Only one GC can be selected: " + gcs);
+		}
+		vmArgs.forEach(arg -> {
+			if (arg.startsWith("-") == false) {
+				throw new IllegalArgumentException("Invalid JVM option \"" + arg + "\"");
+			}
+			final Matcher m = xxOption.matcher(arg);
+			if (m.find() == false) {
+				return;
+			}
+			final String name = m.group(1);
+			Optional.ofNullable(optionVersions.get(name)).ifPresent(versions -> {
+				if (jvmVersion < versions[0]) {
+					throw new IllegalArgumentException("JVM option \"" + arg + "\" needs Java " + versions[0] + " or more, target JVM is " + jvmVersion);
+				} else if (versions[1] > 0 && jvmVersion >= versions[1]) {
+					throw new IllegalArgumentException("JVM option \"" + arg + "\" was removed on Java " + versions[1] + ", target JVM is " + jvmVersion);
+				}
+			});
+			if (unlockExperimental == false && arg.startsWith("-XX:+") && jvmVersion < experimentalUntil.getOrDefault(name, 0)) {
+				throw new IllegalArgumentException("JVM option \"" + arg + "\" is experimental on Java " + jvmVersion + ", add -XX:+UnlockExperimentalVMOptions before");
+			}
+		});
+	}
+
+	/**
+	 * @param jvmVersion target JVM version, like "11" or "1.8"
+	 * @return profile options, then heap options, then "javappackager.vmargs", checked against the target JVM version
+	 */
+	public List<String> getVMArgs(final String jvmVersion) {
+		final int version = getFeatureVersion(jvmVersion);
+		final List<String> result = new ArrayList<>();
+		profile.ifPresent(p -> result.addAll(p.getVMArgs(version)));
+		heap.ifPresent(h -> result.addAll(getHeapVMArgs(h, version)));
+		result.addAll(vmArgs);
+		checkVMArgs(result, version);
+		if (result.isEmpty() == false) {
+			log.debug("JVM options for Java {}: {}", version, result);
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+}
@@ -0,0 +1,270 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.maven.model.License;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Parent;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.eclipse.aether.artifact.Artifact;
+
+/**
+ * Make a THIRD-PARTY.txt file (like the license:add-third-party maven goal) in this JVM, from the dependency poms (and their parents)
+ * in the local repository, or from the META-INF/LICENSE* files embedded in jars.
+ * Results are cached by groupId:artifactId:version in a properties file shared by all the projects, except for snapshots and reactor modules.
+ */
+public class LicenseAggregator {
+	private static Logger log = LogManager.getLogger();
+
+	static final String cacheFileName = "javappackager-licenses.properties";
+	private static final int maxParentDepth = 10;
+
+	/**
+	 * cache file -> GAV -> third-party line, shared by all the aggregators of this JVM.
+	 */
+	private static final Map<File, Map<String, String>> caches = new ConcurrentHashMap<>();
+
+	/**
+	 * Known license texts, for the embedded license files. First match wins (a LGPL text talks about GPL).
+	 */
+	private static final Map<Pattern, String> knownLicenseTexts = new LinkedHashMap<>();
+
+	static {
+		knownLicenseTexts.put(Pattern.compile("Apache License.{0,80}Version 2\\.0", Pattern.CASE_INSENSITIVE | Pattern.DOTALL), "Apache License, Version 2.0");
+		knownLicenseTexts.put(Pattern.compile("Eclipse Public License.{0,20}(v|version )2\\.0", Pattern.CASE_INSENSITIVE | Pattern.DOTALL), "Eclipse Public License 2.0");
+		knownLicenseTexts.put(Pattern.compile("Eclipse Public License", Pattern.CASE_INSENSITIVE), "Eclipse Public License 1.0");
+		knownLicenseTexts.put(Pattern.compile("GNU LESSER GENERAL PUBLIC LICENSE", Pattern.CASE_INSENSITIVE), "GNU Lesser General Public License");
+		knownLicenseTexts.put(Pattern.compile("GNU GENERAL PUBLIC LICENSE", Pattern.CASE_INSENSITIVE), "GNU General Public License");
+		knownLicenseTexts.put(Pattern.compile("Permission is hereby granted, free of charge", Pattern.CASE_INSENSITIVE), "MIT License");
+		knownLicenseTexts.put(Pattern.compile("Redistribution and use in source and binary forms", Pattern.CASE_INSENSITIVE), "BSD License");
+	}
+
+	private final File localRepositoryDir;
+	private final File cacheFile;
+	private final Map<String, String> cache;
+
+	/**
+	 * @param cacheFile GAV keyed cache, like javappackager-licenses.properties in the user maven dir
+	 */
+	public LicenseAggregator(final File localRepositoryDir, final File cacheFile) {
+		this.localRepositoryDir = Objects.requireNonNull(localRepositoryDir, "\"localRepositoryDir\" can't to be null").getAbsoluteFile();
+		this.cacheFile = Objects.requireNonNull(cacheFile, "\"cacheFile\" can't to be null").getAbsoluteFile();
+		cache = caches.computeIfAbsent(this.cacheFile, LicenseAggregator::loadCache);
+	}
+
+	/**
+	 * @return "javappackager.licenses.cache" system property, or javappackager-licenses.properties next to the local repository dir.
+	 */
+	public static File getDefaultCacheFile(final File localRepositoryDir) {
+		return Optional.ofNullable(System.getProperty("javappackager.licenses.cache")).map(File::new).orElseGet(() -> new File(localRepositoryDir.getAbsoluteFile().getParentFile(), cacheFileName));
+	}
+
+	private static Properties readCacheFile(final File cacheFile) {
+		final Properties properties = new Properties();
+		if (cacheFile.exists()) {
+			try (InputStream in = Files.newInputStream(cacheFile.toPath())) {
+				properties.load(in);
+			} catch (final IOException e) {
+				log.warn("Can't read license cache {}, ignore it", cacheFile, e);
+			}
+		}
+		return properties;
+	}
+
+	private static Map<String, String> loadCache(final File cacheFile) {
+		final Map<String, String> cache = new ConcurrentHashMap<>();
+		readCacheFile(cacheFile).forEach((k, v) -> cache.put((String) k, (String) v));
+		log.debug("Load {} license(s) from cache {}", cache.size(), cacheFile);
+		return cache;
+	}
+
+	/**
+	 * Merge with the current file content (another JVM can write it too), and replace it.
+	 */
+	private void saveCache() throws IOException {
+		synchronized (cache) {
+			readCacheFile(cacheFile).forEach((k, v) -> cache.putIfAbsent((String) k, (String) v));
+			final Properties properties = new Properties();
+			properties.putAll(cache);
+
+			Files.createDirectories(cacheFile.getParentFile().toPath());
+			final File temp = new File(cacheFile.getPath() + "." + ProcessHandle.current().pid() + ".tmp");
+			try (PrintStream out = new PrintStream(temp, StandardCharsets.ISO_8859_1)) {
+				properties.store(out, "javappackager third-party licenses, by groupId:artifactId:version");
+			}
+			Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	private boolean isCacheable(final Artifact artifact) {
+		return artifact.isSnapshot() == false && artifact.getFile() != null && artifact.getFile().getAbsolutePath().startsWith(localRepositoryDir.getPath());
+	}
+
+	private File getPomFile(final String groupId, final String artifactId, final String version) {
+		return Path.of(localRepositoryDir.getPath(), groupId.split("\\.")).resolve(Path.of(artifactId, version, artifactId + "-" + version + ".pom")).toFile();
+	}
+
+	private static Optional<Model> readPom(final File pomFile) {
+		if (pomFile.exists() == false) {
+			return Optional.empty();
+		}
+		try (InputStream in = Files.newInputStream(pomFile.toPath())) {
+			return Optional.of(new MavenXpp3Reader().read(in, false));
+		} catch (final IOException | XmlPullParserException e) {
+			log.warn("Can't read pom {}", pomFile, e);
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * @return license names from the META-INF/LICENSE* files of this jar
+	 */
+	private static List<String> readEmbeddedLicenses(final File jar) {
+		if (jar == null || jar.isFile() == false) {
+			return List.of();
+		}
+		try (ZipFile zip = new ZipFile(jar)) {
+			final List<? extends ZipEntry> entries = zip.stream()
+			        .filter(e -> e.isDirectory() == false && e.getName().toUpperCase().startsWith("META-INF/LICENSE"))
+			        .collect(Collectors.toUnmodifiableList());
+			final List<String> names = new ArrayList<>();
+			for (final ZipEntry entry : entries) {
+				final String head;
+				try (BufferedReader reader = new BufferedReader(new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8))) {
+					head = reader.lines().limit(40).collect(Collectors.joining("\n"));
+				}
+				final String name = knownLicenseTexts.entrySet().stream()
+				        .filter(known -> known.getKey().matcher(head).find())
+				        .map(Map.Entry::getValue)
+				        .findFirst()
+				        .orElseGet(() -> head.lines().map(String::trim).filter(l -> l.isEmpty() == false).findFirst().orElse(""));
+				if (name.isEmpty() == false && names.contains(name) == false) {
+					names.add(name.length() > 80 ? name.substring(0, 80) : name);
+				}
+			}
+			return names;
+		} catch (final IOException e) {
+			log.warn("Can't read jar {}", jar, e);
+			return List.of();
+		}
+	}
+
+	/**
+	 * @return a license plugin like line: "(License) Name (groupId:artifactId:version - url)"
+	 */
+	private String describe(final Artifact artifact) {
+		final String gav = artifact.getGroupId() + ":" + artifact.getArtifactId() + ":" + artifact.getBaseVersion();
+		final Optional<Model> pom = readPom(getPomFile(artifact.getGroupId(), artifact.getArtifactId(), artifact.getBaseVersion()));
+
+		final String name = pom.map(Model::getName).filter(n -> n.isBlank() == false).orElse(artifact.getArtifactId());
+		String url = pom.map(Model::getUrl).orElse(null);
+		List<String> licenses = pom.map(Model::getLicenses).orElse(List.of()).stream().map(License::getName).filter(Objects::nonNull).collect(Collectors.toUnmodifiableList());
+
+		Optional<Parent> parent = pom.map(Model::getParent);
+		for (int depth = 0; licenses.isEmpty() && parent.isPresent() && depth < maxParentDepth; depth++) {
+			final Parent p = parent.get();
+			final Optional<Model> parentPom = readPom(getPomFile(p.getGroupId(), p.getArtifactId(), p.getVersion()));
+			licenses = parentPom.map(Model::getLicenses).orElse(List.of()).stream().map(License::getName).filter(Objects::nonNull).collect(Collectors.toUnmodifiableList());
+			if (url == null) {
+				/**
+				 * Like maven url inheritance, the child artifactId is added to the parent url.
+				 */
+				url = parentPom.map(Model::getUrl).map(u -> u.endsWith("/") ? u + artifact.getArtifactId() : u + "/" + artifact.getArtifactId()).orElse(null);
+			}
+			parent = parentPom.map(Model::getParent);
+		}
+
+		if (licenses.isEmpty()) {
+			licenses = readEmbeddedLicenses(artifact.getFile());
+		}
+		if (licenses.isEmpty()) {
+			licenses = List.of("Unknown license");
+		}
+
+		final String fullUrl = Optional.ofNullable(url)
+		        .map(u -> u.replace("${project.groupId}", artifact.getGroupId()).replace("${project.artifactId}", artifact.getArtifactId()).replace("${project.version}", artifact.getBaseVersion()))
+		        .orElse("no url defined");
+		return licenses.stream().map(l -> "(" + l.trim() + ")").collect(Collectors.joining(" ")) + " " + name.trim() + " (" + gav + " - " + fullUrl + ")";
+	}
+
+	/**
+	 * Parallel license search, with cache.
+	 */
+	public void writeThirdParty(final Collection<Artifact> dependencies, final File thirdPartyFile) throws IOException {
+		final AtomicInteger added = new AtomicInteger(0);
+		final List<String> lines = dependencies.parallelStream().map(artifact -> {
+			if (isCacheable(artifact) == false) {
+				return describe(artifact);
+			}
+			final String gav = artifact.getGroupId() + ":" + artifact.getArtifactId() + ":" + artifact.getBaseVersion();
+			final String cached = cache.get(gav);
+			if (cached != null) {
+				return cached;
+			}
+			final String line = describe(artifact);
+			if (cache.putIfAbsent(gav, line) == null) {
+				added.incrementAndGet();
+			}
+			return line;
+		}).distinct().sorted(String.CASE_INSENSITIVE_ORDER).collect(Collectors.toUnmodifiableList());
+
+		if (added.get() > 0) {
+			saveCache();
+		}
+		log.debug("{} third-party license(s), {} new in cache {}", lines.size(), added.get(), cacheFile);
+
+		Files.createDirectories(thirdPartyFile.getAbsoluteFile().getParentFile().toPath());
+		try (PrintStream out = new PrintStream(thirdPartyFile, StandardCharsets.UTF_8)) {
+			out.println();
+			if (lines.isEmpty()) {
+				out.println("The project has no dependencies.");
+			} else {
+				out.println("Lists of " + lines.size() + " third-party dependencies.");
+				lines.forEach(l -> out.println("     " + l));
+			}
+		}
+	}
+
+}
@@ -17,19 +17,31 @@
 package tv.hd3g.javappackager;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-
-import tv.hd3g.javappackager.AppToPackage.Destination;
-import tv.hd3g.processlauncher.cmdline.ExecutableFinder;
+import org.apache.logging.log4j.ThreadContext;
 
 public class MainApp {
 
@@ -38,85 +50,111 @@ public class MainApp {
 	public static void main(final String[] args) throws Exception {
 		final DefaultParser parser = new DefaultParser();
 		final Options options = new Options();
-		options.addRequiredOption("d", "root-dir", true, "App root directory (with pom file)");
+		options.addOption("d", "root-dir", true, "App root directory (with pom file)");
+		options.addOption("b", "batch", true, "Text file with an app root directory per line, for package all in one run");
+		options.addOption("p", "parallel", true, "With batch, max projects packaged at the same time (default: 2)");
+		options.addOption("i", "incremental", false, "Keep the previous package, and only re-do the stages with changed inputs");
+		options.addOption("w", "watch", false, "With a root directory, keep running: watch the project files and re-package on each change (incremental)");
+		options.addOption("r", "dry-run", false, "With a root directory, only print the planned packaging stages graph");
+		options.addOption("s", "startup-bench", true, "Compare the startup of packaged apps: package dirs, comma separated");
+		options.addOption("n", "runs", true, "With startup-bench, runs by launcher (default: 10)");
+		options.addOption("t", "timeout", true, "With startup-bench, max seconds by run, before stop the app (default: 30)");
 		// options.addOption("j", "copy-jvm", false, "Copy this current JVM (" + System.getenv("JAVA_HOME") + ") to new package");
 		// TODO solution for logging (maybe to windows logs ?)
 
 		CommandLine cmd = null;
 		try {
 			cmd = parser.parse(options, args);
+			if (Stream.of("d", "b", "s").filter(cmd::hasOption).count() != 1) {
+				throw new ParseException("Set a root directory (-d), a batch file (-b) or package dirs to benchmark (-s)");
+			}
 		} catch (final ParseException e) {
 			final HelpFormatter formatter = new HelpFormatter();
-			formatter.printHelp("javappackager -d <root directory>", "Package simple java/mvn app for Windows statup", options, "");// [-j]
+			formatter.printHelp("javappackager -d <root directory> | -b <batch file> [-p <parallel>] [-i] [-w] [-r] | -s <package dirs> [-n <runs>] [-t <timeout>]", "Package simple java/mvn app for Windows statup", options, "");// [-j]
 			System.err.println(e.getMessage());
 			System.exit(1);
 		}
 
-		final File rootDir = new File(cmd.getOptionValue("d"));
-		final boolean copyJVM = true; // cmd.hasOption("j");
-
-		final GitInfo gitInfo = new GitInfo(rootDir);
-		final AppToPackage app = new AppToPackage(rootDir, gitInfo);
-
-		final ExecutableFinder execFinder = new ExecutableFinder();
-		app.getMainConfigDir().ifPresent(execFinder::addPath);
-		app.getMainResourceDir().ifPresent(execFinder::addPath);
-
-		final Destination dest = app.getDestination();
-		log.info("Get and move main jar to lib dir");
-		dest.moveToDest(app.mavenPackage(), "lib");
-
-		log.info("Get and move dependencies to lib dir");
-		app.mavenCopyDependencies().forEach(dep -> {
-			log.trace("Move {} to lib dir", dep.getPath());
-			dest.moveToDest(dep, "lib");
-		});
-
-		log.info("Get and move dependencies licenses to licenses dir");
-		dest.moveToLicensesDir(app.mavenLicenses());
-
-		app.getExternalDeps(execFinder).forEach(dep -> {
-			log.info("Copy {} to bin dir", dep.getPath());
-			dest.copyToDest(dep, "bin");
-		});
-
-		app.getMainConfigDir().ifPresent(dir -> {
-			log.info("Copy {} to config dir", dir.getPath());
-			dest.copyToDest(dir, "config");
-		});
-
-		final WinRun4J wrj = new WinRun4J(execFinder, app.getAppName(), app.getAppVersion(), app.getGitVersion(), app.getAppUrl());
+		if (cmd.hasOption("d") && cmd.hasOption("w")) {
+			new PackageWatcher(new File(cmd.getOptionValue("d"))).run();
+			return;
+		} else if (cmd.hasOption("d")) {
+			final Packager packager = new Packager(new File(cmd.getOptionValue("d")), cmd.hasOption("i"));
+			packager.setDryRun(cmd.hasOption("r"));
+			packager.process();
+			return;
+		}
 
-		wrj.setClassPath(Arrays.asList("lib/*.jar", "lib", "bin", "config"));
-		wrj.setMainClass(app.getMainClass());
-		wrj.setMinVMVersion(app.getJVMVersion());
+		if (cmd.hasOption("s")) {
+			final List<File> packageDirs = Arrays.stream(cmd.getOptionValue("s").split(",")).map(String::trim).filter(d -> d.isEmpty() == false).map(File::new).collect(Collectors.toUnmodifiableList());
+			final StartupBenchmark benchmark = new StartupBenchmark(Integer.parseInt(cmd.getOptionValue("n", "10")), Duration.ofSeconds(Long.parseLong(cmd.getOptionValue("t", "30"))));
+			benchmark.compare(packageDirs, packageDirs.get(0).getAbsoluteFile().getParentFile());
+			return;
+		}
 
-		if (copyJVM) {
-			final File javaHome = new File(System.getenv("JAVA_HOME"));
-			if (javaHome.exists() && javaHome.isDirectory()) {
-				final File jvmDir = dest.getTargetJVMDir();
-				log.info("Copy JRE/JDK {} to current {} dir", jvmDir.getPath(), jvmDir.getName());
+		final List<File> rootDirs = readBatchFile(new File(cmd.getOptionValue("b")));
+		final int parallel = Integer.parseInt(cmd.getOptionValue("p", "2"));
+		final boolean incremental = cmd.hasOption("i");
+		if (batch(rootDirs, parallel, incremental) == false) {
+			System.exit(2);
+		}
+	}
 
-				FileUtils.copyDirectory(javaHome, jvmDir);
-				FileUtils.deleteQuietly(new File(jvmDir.getPath() + File.separator + "include"));
-				FileUtils.deleteQuietly(new File(jvmDir.getPath() + File.separator + "jmods"));
-				FileUtils.deleteQuietly(new File(jvmDir.getPath() + File.separator + "lib" + File.separator + "src.zip"));
-				FileUtils.listFiles(new File(jvmDir.getPath() + File.separator + "bin"), ExecutableFinder.WINDOWS_EXEC_EXTENSIONS.toArray(new String[0]), false).forEach(file -> {
-					file.delete();
-				});
+	/**
+	 * One root dir by line, relative to the batch file dir. Empty and "#" lines are ignored.
+	 */
+	private static List<File> readBatchFile(final File batchFile) throws IOException {
+		final File baseDir = batchFile.getAbsoluteFile().getParentFile();
+		return Files.readAllLines(batchFile.toPath(), StandardCharsets.UTF_8).stream().map(String::trim).filter(l -> l.isEmpty() == false && l.startsWith("#") == false).map(l -> {
+			final File dir = new File(l);
+			if (dir.isAbsolute()) {
+				return dir;
+			}
+			return new File(baseDir, l);
+		}).collect(Collectors.toUnmodifiableList());
+	}
 
-				wrj.setJVMDir(jvmDir.getName());
+	/**
+	 * Package all rootDirs on a bounded pool. A failed project don't stop the others.
+	 * @return true if all projects are packaged
+	 */
+	static boolean batch(final List<File> rootDirs, final int parallel, final boolean incremental) throws InterruptedException {
+		log.info("Package {} project(s), {} at the same time", rootDirs.size(), parallel);
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallel));
+		final Map<File, Future<File>> results = new LinkedHashMap<>();
+		final Map<File, Long> durations = new ConcurrentHashMap<>();
+
+		rootDirs.forEach(rootDir -> results.put(rootDir, executor.submit(() -> {
+			ThreadContext.put("project", rootDir.getName());
+			final long start = System.currentTimeMillis();
+			try {
+				return new Packager(rootDir, incremental).process();
+			} catch (final Exception e) {
+				log.error("Can't package " + rootDir, e);
+				throw e;
+			} finally {
+				durations.put(rootDir, System.currentTimeMillis() - start);
+				ThreadContext.remove("project");
+			}
+		})));
+		executor.shutdown();
+
+		final List<String> summary = new ArrayList<>();
+		int failed = 0;
+		for (final Map.Entry<File, Future<File>> result : results.entrySet()) {
+			final String name = result.getKey().getName();
+			try {
+				final File packageDir = result.getValue().get();
+				summary.add(String.format("OK      %-30s %8.1f s  %s", name, durations.get(result.getKey()) / 1000f, packageDir.getPath()));
+			} catch (final ExecutionException e) {
+				failed++;
+				summary.add(String.format("FAILED  %-30s %8.1f s  %s", name, durations.getOrDefault(result.getKey(), 0L) / 1000f, e.getCause().getMessage()));
 			}
 		}
 
-		log.info("Starts rcedit to prepare final exe file");
-		wrj.makeExecFile(dest.getTargetExecFile(), app.getWindowsIcon());
-
-		wrj.copyLicenseTo(dest.getTargetLicensesDir());
-		dest.makeAppLicenseFile();
-		dest.makeVersionFile();
-
-		log.info("You can found package here: " + dest.getDir().getPath());
+		log.info("Batch summary: {} packaged, {} failed", results.size() - failed, failed);
+		summary.forEach(log::info);
+		return failed == 0;
 	}
 
 }
@@ -0,0 +1,107 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+
+/**
+ * Send maven logs to the log file of the project currently built by maven.
+ * Only one maven run at a time (maven use global System properties), so only one target log file at a time.
+ */
+class MavenLogAppender extends AbstractAppender {
+
+	private static final String appenderName = "Maven log file";
+	private static MavenLogAppender instance;
+
+	private OutputStream current;
+
+	private MavenLogAppender(final PatternLayout layout) {
+		super(appenderName, null, layout, true, Property.EMPTY_ARRAY);
+	}
+
+	/**
+	 * Inject maven log configuration, only for the first call.
+	 */
+	static synchronized MavenLogAppender getInstance() {
+		if (instance != null) {
+			return instance;
+		}
+		final LoggerContext ctx = (LoggerContext) LogManager.getContext(false);
+		final Configuration config = ctx.getConfiguration();
+
+		final PatternLayout layout = PatternLayout.newBuilder().withConfiguration(config).withPattern("%m%n").build();
+		instance = new MavenLogAppender(layout);
+		instance.start();
+		config.addAppender(instance);
+
+		final AppenderRef ref = AppenderRef.createAppenderRef(appenderName, null, null);
+		final AppenderRef[] refs = new AppenderRef[] { ref };
+
+		Stream.of("org.apache.maven", "Sisu", "org.codehaus.mojo").forEach(loggerName -> {
+			final LoggerConfig loggerConfig = LoggerConfig.createLogger(false, Level.INFO, loggerName, "true", refs, null, config, null);
+			loggerConfig.addAppender(instance, Level.INFO, null);
+			config.addLogger(loggerName, loggerConfig);
+		});
+
+		ctx.updateLoggers();
+		return instance;
+	}
+
+	/**
+	 * @param logFile append next maven logs to this file, or stop writing logs if null.
+	 */
+	synchronized void redirect(final File logFile) throws IOException {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+		if (logFile != null) {
+			FileUtils.forceMkdirParent(logFile);
+			current = new BufferedOutputStream(new FileOutputStream(logFile, true));
+		}
+	}
+
+	@Override
+	public synchronized void append(final LogEvent event) {
+		if (current == null) {
+			return;
+		}
+		try {
+			current.write(getLayout().toByteArray(event));
+		} catch (final IOException e) {
+			error("Can't write maven log", event, e);
+		}
+	}
+
+}
@@ -0,0 +1,218 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.maven.eventspy.AbstractEventSpy;
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.project.DependencyResolutionRequest;
+import org.apache.maven.project.DependencyResolutionResult;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Loaded by the embedded maven container, declared in META-INF/plexus/components.xml
+ * (the embedded core realm has no URLs of its own, so the sisu index scanning can't see this class).
+ * Record session, project, phase, mojo and dependency resolution timings, in target/javappackager-maven-timing.jsonl (one JSON object by line).
+ * Lines are written by a background thread, so the build don't wait for the disk.
+ */
+public class MavenTimingSpy extends AbstractEventSpy {
+	private static Logger log = LogManager.getLogger();
+
+	static final String reportFileName = "javappackager-maven-timing.jsonl";
+
+	private final Map<String, Long> starts;
+	private final Map<String, Phase> phases;
+	/**
+	 * Dependency resolution request and result are not linked, but they are on the same thread.
+	 */
+	private final Map<Long, String> resolvingProjects;
+	private ExecutorService writerThread;
+	private BufferedWriter writer;
+	private long sessionStart;
+
+	private static class Phase {
+		private long start = Long.MAX_VALUE;
+		private long end = Long.MIN_VALUE;
+		private boolean failed;
+		private int mojos;
+	}
+
+	public MavenTimingSpy() {
+		starts = new ConcurrentHashMap<>();
+		phases = new LinkedHashMap<>();
+		resolvingProjects = new ConcurrentHashMap<>();
+	}
+
+	private static String getProjectId(final MavenProject project) {
+		return project.getGroupId() + ":" + project.getArtifactId() + ":" + project.getVersion();
+	}
+
+	private static String getMojoId(final MojoExecution mojo) {
+		return mojo.getGroupId() + ":" + mojo.getArtifactId() + ":" + mojo.getVersion() + ":" + mojo.getGoal() + " (" + mojo.getExecutionId() + ")";
+	}
+
+	@Override
+	public void onEvent(final Object event) throws Exception {
+		final long now = System.currentTimeMillis();
+		if (event instanceof ExecutionEvent) {
+			onExecutionEvent((ExecutionEvent) event, now);
+		} else if (event instanceof DependencyResolutionRequest) {
+			final MavenProject project = ((DependencyResolutionRequest) event).getMavenProject();
+			if (project != null) {
+				starts.put("resolution|" + Thread.currentThread().getId(), now);
+				resolvingProjects.put(Thread.currentThread().getId(), getProjectId(project));
+			}
+		} else if (event instanceof DependencyResolutionResult) {
+			final String projectId = resolvingProjects.remove(Thread.currentThread().getId());
+			final Long start = starts.remove("resolution|" + Thread.currentThread().getId());
+			if (projectId != null && start != null) {
+				final boolean failed = ((DependencyResolutionResult) event).getCollectionErrors().isEmpty() == false;
+				record("resolution", projectId, null, null, start, now, failed);
+			}
+		}
+	}
+
+	private void onExecutionEvent(final ExecutionEvent event, final long now) throws IOException {
+		final MavenProject project = event.getProject();
+		final MojoExecution mojo = event.getMojoExecution();
+
+		switch (event.getType()) {
+		case SessionStarted:
+			open(event.getSession().getRequest());
+			sessionStart = now;
+			break;
+		case SessionEnded:
+			record("session", null, null, null, sessionStart, now, event.getSession().getResult().hasExceptions());
+			break;
+		case ProjectStarted:
+			starts.put(getProjectId(project), now);
+			break;
+		case ProjectSucceeded:
+		case ProjectFailed:
+			endProject(project, now, event.getType() == ExecutionEvent.Type.ProjectFailed);
+			break;
+		case MojoStarted:
+			starts.put(getProjectId(project) + "|" + getMojoId(mojo), now);
+			break;
+		case MojoSucceeded:
+		case MojoFailed:
+			final String projectId = getProjectId(project);
+			final Long start = starts.remove(projectId + "|" + getMojoId(mojo));
+			if (start == null) {
+				break;
+			}
+			final boolean failed = event.getType() == ExecutionEvent.Type.MojoFailed;
+			final String phaseName = Optional.ofNullable(mojo.getLifecyclePhase()).orElse("(direct)");
+			record("mojo", projectId, phaseName, getMojoId(mojo), start, now, failed);
+
+			synchronized (phases) {
+				final Phase phase = phases.computeIfAbsent(projectId + "|" + phaseName, k -> new Phase());
+				phase.start = Math.min(phase.start, start);
+				phase.end = Math.max(phase.end, now);
+				phase.failed |= failed;
+				phase.mojos++;
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void endProject(final MavenProject project, final long now, final boolean failed) {
+		final String projectId = getProjectId(project);
+		synchronized (phases) {
+			phases.entrySet().removeIf(entry -> {
+				final String[] key = entry.getKey().split("\\|", 2);
+				if (key[0].equals(projectId) == false) {
+					return false;
+				}
+				final Phase phase = entry.getValue();
+				record("phase", projectId, key[1], phase.mojos + " mojo(s)", phase.start, phase.end, phase.failed);
+				return true;
+			});
+		}
+		Optional.ofNullable(starts.remove(projectId)).ifPresent(start -> record("project", projectId, null, null, start, now, failed));
+	}
+
+	private void open(final MavenExecutionRequest request) throws IOException {
+		final File baseDir = Optional.ofNullable(request.getMultiModuleProjectDirectory()).orElseGet(() -> new File(request.getBaseDirectory()));
+		final File report = new File(new File(baseDir, "target"), reportFileName);
+		Files.createDirectories(report.getParentFile().toPath());
+		writer = Files.newBufferedWriter(report.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		writerThread = Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r, "Maven timing report writer");
+			t.setDaemon(true);
+			return t;
+		});
+		log.debug("Write maven timings to {}", report);
+	}
+
+	private void record(final String type, final String project, final String phase, final String name, final long start, final long end, final boolean failed) {
+		if (writerThread == null) {
+			return;
+		}
+		final Map<String, Object> fields = new LinkedHashMap<>();
+		fields.put("type", type);
+		fields.put("project", project);
+		fields.put("phase", phase);
+		fields.put("name", name);
+		fields.put("start", start);
+		fields.put("end", end);
+		fields.put("durationMs", end - start);
+		fields.put("outcome", failed ? "FAILED" : "SUCCEEDED");
+		fields.put("thread", Thread.currentThread().getName());
+		final String line = Json.object(fields);
+
+		writerThread.execute(() -> {
+			try {
+				writer.write(line);
+				writer.newLine();
+			} catch (final IOException e) {
+				log.warn("Can't write maven timing", e);
+			}
+		});
+	}
+
+	@Override
+	public void close() throws Exception {
+		if (writerThread == null) {
+			return;
+		}
+		writerThread.shutdown();
+		writerThread.awaitTermination(1, TimeUnit.MINUTES);
+		writer.close();
+		writerThread = null;
+	}
+
+}
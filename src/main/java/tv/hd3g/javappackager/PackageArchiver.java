@@ -0,0 +1,673 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Make a zip or a tar.gz archive from a package dir, with parallel compression and fixed entries order, dates and owners:
+ * a same package dir always produce the same bytes.
+ * Zip entries are deflated in parallel, file by file, and already compressed files (jars, jimage modules...) are stored.
+ * Tar.gz is compressed by blocks in parallel (like pigz).
+ */
+public class PackageArchiver {
+	private static Logger log = LogManager.getLogger();
+
+	/**
+	 * Like ClassPathLayout zip entries. 1980-01-01 is a special value in zip files.
+	 */
+	private static final LocalDateTime entryTime = LocalDateTime.of(1980, 2, 1, 0, 0);
+	private static final int dosDate = (entryTime.getYear() - 1980) << 9 | entryTime.getMonthValue() << 5 | entryTime.getDayOfMonth();
+	private static final int dosTime = 0;
+	private static final long tarTime = entryTime.toEpochSecond(ZoneOffset.UTC);
+
+	private static final Set<String> storedExtensions = Set.of("jar", "war", "zip", "gz", "tgz", "xz", "zst", "bz2", "7z", "png", "jpg", "jpeg", "gif", "sym", "jmod");
+	private static final Set<String> storedNames = Set.of("modules");
+
+	private static final long zip64Limit = 0xFFFFFFFFL;
+
+	public enum Format {
+		ZIP("zip"),
+		TAR_GZ("tar.gz");
+
+		private final String extension;
+
+		Format(final String extension) {
+			this.extension = extension;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		/**
+		 * @return empty for null, empty or "none"
+		 */
+		public static Optional<Format> parse(final String value) {
+			if (value == null || value.isBlank() || value.trim().equalsIgnoreCase("none")) {
+				return Optional.empty();
+			}
+			return Optional.of(Arrays.stream(values())
+			        .filter(f -> f.extension.equalsIgnoreCase(value.trim()) || f.name().equalsIgnoreCase(value.trim()))
+			        .findFirst()
+			        .orElseThrow(() -> new IllegalArgumentException("Unknown archive format \"" + value + "\", use zip or tar.gz")));
+		}
+	}
+
+	private final Format format;
+	private final int threads;
+	private final int level;
+	private final boolean keepDir;
+
+	public PackageArchiver(final Format format, final int threads, final int level, final boolean keepDir) {
+		this.format = Objects.requireNonNull(format, "\"format\" can't to be null");
+		this.threads = Math.max(1, threads);
+		this.level = level;
+		this.keepDir = keepDir;
+	}
+
+	/**
+	 * From "javappackager.archive" (zip or tar.gz), "javappackager.archive.threads", "javappackager.archive.level" (0-9)
+	 * and "javappackager.archive.keepdir" (true by default, false for delete the package dir after the archive) pom properties.
+	 * @return empty if no archive is asked
+	 */
+	public static Optional<PackageArchiver> fromProperties(final Properties properties) {
+		return Format.parse(properties.getProperty("javappackager.archive")).map(format -> {
+			final int threads = Integer.parseInt(properties.getProperty("javappackager.archive.threads", String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+			final int level = Integer.parseInt(properties.getProperty("javappackager.archive.level", String.valueOf(Deflater.DEFAULT_COMPRESSION)).trim());
+			final boolean keepDir = Boolean.parseBoolean(properties.getProperty("javappackager.archive.keepdir", "true").trim());
+			return new PackageArchiver(format, threads, level, keepDir);
+		});
+	}
+
+	/**
+	 * @return the date of all the entries, as set by an extraction of a tar.gz (a zip entry date is in local time)
+	 */
+	static FileTime getEntryTime() {
+		return FileTime.from(tarTime, TimeUnit.SECONDS);
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public boolean isKeepDir() {
+		return keepDir;
+	}
+
+	private static boolean isStored(final File file) {
+		final String name = file.getName().toLowerCase();
+		final int dot = name.lastIndexOf('.');
+		return storedNames.contains(name) || dot > -1 && storedExtensions.contains(name.substring(dot + 1));
+	}
+
+	/**
+	 * @return all dirs and files, sorted by archive path
+	 */
+	private static List<Path> listContent(final File packageDir) throws IOException {
+		final Path root = packageDir.toPath();
+		try (Stream<Path> walk = Files.walk(root)) {
+			return walk.filter(p -> p.equals(root) == false)
+			        .sorted((l, r) -> toArchivePath(root, l).compareTo(toArchivePath(root, r)))
+			        .collect(Collectors.toUnmodifiableList());
+		}
+	}
+
+	private static String toArchivePath(final Path root, final Path item) {
+		return root.relativize(item).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @param rootName the top dir name in the archive
+	 * @return archiveFile
+	 */
+	public File archive(final File packageDir, final File archiveFile, final String rootName) throws IOException {
+		final List<Path> content = listContent(packageDir);
+		log.info("Make {} archive {} with {} items", format.getExtension(), archiveFile.getName(), content.size());
+
+		final File temp = new File(archiveFile.getPath() + ".tmp");
+		final ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			final Thread t = new Thread(r, "Archive compression");
+			t.setDaemon(true);
+			return t;
+		});
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 256 * 1024)) {
+			if (format == Format.ZIP) {
+				new ZipWriter(out, pool).write(packageDir.toPath(), content, rootName);
+			} else {
+				try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, pool)) {
+					writeTar(gzip, packageDir.toPath(), content, rootName);
+				}
+			}
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp.toPath());
+			throw e;
+		} finally {
+			pool.shutdownNow();
+		}
+		Files.move(temp.toPath(), archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.info("Archive {} is done ({} bytes)", archiveFile, archiveFile.length());
+		return archiveFile;
+	}
+
+	private static <T> T getResult(final Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted during archive compression", e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Can't compress", e.getCause());
+		}
+	}
+
+	/**
+	 * Keep the order, and a bounded count of prepared results in memory.
+	 */
+	private <T> void pipeline(final ExecutorService pool, final List<Callable<T>> tasks, final ResultConsumer<T> consumer) throws IOException {
+		final Deque<Future<T>> window = new ArrayDeque<>();
+		for (final Callable<T> task : tasks) {
+			window.add(pool.submit(task));
+			if (window.size() >= threads * 2) {
+				consumer.accept(getResult(window.poll()));
+			}
+		}
+		while (window.isEmpty() == false) {
+			consumer.accept(getResult(window.poll()));
+		}
+	}
+
+	@FunctionalInterface
+	private interface ResultConsumer<T> {
+		void accept(T result) throws IOException;
+	}
+
+	private static int getUnixMode(final Path item) {
+		if (Files.isDirectory(item)) {
+			return 0755;
+		}
+		return Files.isExecutable(item) ? 0755 : 0644;
+	}
+
+	private static class PreparedEntry {
+		private final Path file;
+		private final String name;
+		private final boolean directory;
+		private final int mode;
+		private boolean deflated;
+		private long crc;
+		private long size;
+		private long compressedSize;
+		private byte[] data;
+		private long offset;
+
+		private PreparedEntry(final Path file, final String name, final boolean directory, final int mode) {
+			this.file = file;
+			this.name = name;
+			this.directory = directory;
+			this.mode = mode;
+		}
+	}
+
+	private PreparedEntry prepareZipEntry(final Path root, final Path item, final String rootName) throws IOException {
+		final boolean directory = Files.isDirectory(item);
+		final String name = rootName + "/" + toArchivePath(root, item) + (directory ? "/" : "");
+		final PreparedEntry entry = new PreparedEntry(item, name, directory, getUnixMode(item));
+		if (directory) {
+			return entry;
+		}
+
+		final CRC32 crc = new CRC32();
+		if (isStored(item.toFile())) {
+			final byte[] buffer = new byte[64 * 1024];
+			long size = 0;
+			try (InputStream in = Files.newInputStream(item)) {
+				int read;
+				while ((read = in.read(buffer)) > -1) {
+					crc.update(buffer, 0, read);
+					size += read;
+				}
+			}
+			entry.size = size;
+			entry.compressedSize = size;
+		} else {
+			final byte[] content = Files.readAllBytes(item);
+			crc.update(content);
+			entry.size = content.length;
+			final byte[] compressed = deflate(content);
+			if (compressed.length < content.length) {
+				entry.deflated = true;
+				entry.data = compressed;
+			} else {
+				entry.data = content;
+			}
+			entry.compressedSize = entry.data.length;
+		}
+		entry.crc = crc.getValue();
+		return entry;
+	}
+
+	private byte[] deflate(final byte[] content) {
+		final Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(content);
+			deflater.finish();
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+			final byte[] buffer = new byte[64 * 1024];
+			while (deflater.finished() == false) {
+				final int len = deflater.deflate(buffer);
+				out.write(buffer, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Minimal zip writer (with zip64 when needed): ZipOutputStream can't take already deflated data.
+	 */
+	private class ZipWriter {
+		private final OutputStream out;
+		private final ExecutorService pool;
+		private final List<PreparedEntry> written;
+		private long position;
+
+		private ZipWriter(final OutputStream out, final ExecutorService pool) {
+			this.out = out;
+			this.pool = pool;
+			written = new ArrayList<>();
+		}
+
+		private void write(final byte[] bytes) throws IOException {
+			out.write(bytes);
+			position += bytes.length;
+		}
+
+		private void write(final Path root, final List<Path> content, final String rootName) throws IOException {
+			final List<Callable<PreparedEntry>> tasks = content.stream()
+			        .map(item -> (Callable<PreparedEntry>) () -> prepareZipEntry(root, item, rootName))
+			        .collect(Collectors.toUnmodifiableList());
+			pipeline(pool, tasks, this::writeEntry);
+			writeCentralDirectory();
+		}
+
+		private void writeEntry(final PreparedEntry entry) throws IOException {
+			entry.offset = position;
+			final byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+			final boolean zip64 = entry.size >= zip64Limit || entry.compressedSize >= zip64Limit;
+
+			final ByteBuffer header = ByteBuffer.allocate(30 + name.length + (zip64 ? 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(0x04034b50);
+			header.putShort((short) (zip64 ? 45 : 20));
+			header.putShort((short) 0x0800);
+			header.putShort((short) (entry.deflated ? 8 : 0));
+			header.putShort((short) dosTime);
+			header.putShort((short) dosDate);
+			header.putInt((int) entry.crc);
+			header.putInt((int) (zip64 ? zip64Limit : entry.compressedSize));
+			header.putInt((int) (zip64 ? zip64Limit : entry.size));
+			header.putShort((short) name.length);
+			header.putShort((short) (zip64 ? 20 : 0));
+			header.put(name);
+			if (zip64) {
+				header.putShort((short) 0x0001);
+				header.putShort((short) 16);
+				header.putLong(entry.size);
+				header.putLong(entry.compressedSize);
+			}
+			write(header.array());
+
+			if (entry.data != null) {
+				write(entry.data);
+				entry.data = null;
+			} else if (entry.directory == false) {
+				try (InputStream in = Files.newInputStream(entry.file)) {
+					final long copied = in.transferTo(out);
+					if (copied != entry.size) {
+						throw new IOException("File " + entry.file + " has changed during archive");
+					}
+					position += copied;
+				}
+			}
+			written.add(entry);
+		}
+
+		private void writeCentralDirectory() throws IOException {
+			final long centralStart = position;
+			for (final PreparedEntry entry : written) {
+				final byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+				final List<Long> zip64Values = new ArrayList<>();
+				if (entry.size >= zip64Limit) {
+					zip64Values.add(entry.size);
+				}
+				if (entry.compressedSize >= zip64Limit) {
+					zip64Values.add(entry.compressedSize);
+				}
+				if (entry.offset >= zip64Limit) {
+					zip64Values.add(entry.offset);
+				}
+				final int extraLength = zip64Values.isEmpty() ? 0 : 4 + 8 * zip64Values.size();
+
+				final ByteBuffer header = ByteBuffer.allocate(46 + name.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(0x02014b50);
+				header.putShort((short) (3 << 8 | 45));
+				header.putShort((short) (zip64Values.isEmpty() ? 20 : 45));
+				header.putShort((short) 0x0800);
+				header.putShort((short) (entry.deflated ? 8 : 0));
+				header.putShort((short) dosTime);
+				header.putShort((short) dosDate);
+				header.putInt((int) entry.crc);
+				header.putInt((int) Math.min(entry.compressedSize, zip64Limit));
+				header.putInt((int) Math.min(entry.size, zip64Limit));
+				header.putShort((short) name.length);
+				header.putShort((short) extraLength);
+				header.putShort((short) 0);
+				header.putShort((short) 0);
+				header.putShort((short) 0);
+				header.putInt(((entry.directory ? 0040000 : 0100000) | entry.mode) << 16 | (entry.directory ? 0x10 : 0));
+				header.putInt((int) Math.min(entry.offset, zip64Limit));
+				header.put(name);
+				if (extraLength > 0) {
+					header.putShort((short) 0x0001);
+					header.putShort((short) (8 * zip64Values.size()));
+					zip64Values.forEach(header::putLong);
+				}
+				write(header.array());
+			}
+			final long centralSize = position - centralStart;
+			final boolean zip64 = written.size() >= 0xFFFF || centralStart >= zip64Limit || centralSize >= zip64Limit;
+
+			if (zip64) {
+				final long zip64EndStart = position;
+				final ByteBuffer end64 = ByteBuffer.allocate(56 + 20).order(ByteOrder.LITTLE_ENDIAN);
+				end64.putInt(0x06064b50);
+				end64.putLong(44);
+				end64.putShort((short) (3 << 8 | 45));
+				end64.putShort((short) 45);
+				end64.putInt(0);
+				end64.putInt(0);
+				end64.putLong(written.size());
+				end64.putLong(written.size());
+				end64.putLong(centralSize);
+				end64.putLong(centralStart);
+				end64.putInt(0x07064b50);
+				end64.putInt(0);
+				end64.putLong(zip64EndStart);
+				end64.putInt(1);
+				write(end64.array());
+			}
+
+			final ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+			end.putInt(0x06054b50);
+			end.putShort((short) 0);
+			end.putShort((short) 0);
+			end.putShort((short) Math.min(written.size(), 0xFFFF));
+			end.putShort((short) Math.min(written.size(), 0xFFFF));
+			end.putInt((int) Math.min(centralSize, zip64Limit));
+			end.putInt((int) Math.min(centralStart, zip64Limit));
+			end.putShort((short) 0);
+			write(end.array());
+		}
+	}
+
+	private static void putTarField(final byte[] header, final int offset, final int length, final String value) throws IOException {
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > length) {
+			throw new IOException("Too long tar header value: " + value);
+		}
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+
+	private static void putTarOctal(final byte[] header, final int offset, final int length, final long value) throws IOException {
+		final String octal = Long.toOctalString(value);
+		if (octal.length() > length - 1) {
+			throw new IOException("Too big value for tar header: " + value);
+		}
+		putTarField(header, offset, length, "0".repeat(length - 1 - octal.length()) + octal);
+	}
+
+	private static void writeTarHeader(final OutputStream out, final String name, final int mode, final long size, final char type) throws IOException {
+		final byte[] header = new byte[512];
+		final int split = name.lastIndexOf('/', name.length() - 2);
+		if (name.getBytes(StandardCharsets.UTF_8).length <= 100) {
+			putTarField(header, 0, 100, name);
+		} else if (split > 0 && split <= 155 && name.length() - split - 1 <= 100 && name.length() == name.getBytes(StandardCharsets.UTF_8).length) {
+			putTarField(header, 345, 155, name.substring(0, split));
+			putTarField(header, 0, 100, name.substring(split + 1));
+		} else {
+			/**
+			 * POSIX pax extended header, with the full path, then an ustar header with a truncated path.
+			 */
+			final byte[] record = getPaxRecord("path", name);
+			writeTarHeader(out, "PaxHeaders/" + name.substring(0, Math.min(name.length(), 80)).replace('/', '_'), 0644, record.length, 'x');
+			out.write(record);
+			final int rest = record.length % 512;
+			if (rest > 0) {
+				out.write(new byte[512 - rest]);
+			}
+			final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			System.arraycopy(nameBytes, 0, header, 0, 100);
+		}
+		putTarOctal(header, 100, 8, mode);
+		putTarOctal(header, 108, 8, 0);
+		putTarOctal(header, 116, 8, 0);
+		putTarOctal(header, 124, 12, size);
+		putTarOctal(header, 136, 12, tarTime);
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		header[156] = (byte) type;
+		putTarField(header, 257, 6, "ustar");
+		putTarField(header, 263, 2, "00");
+		putTarField(header, 265, 32, "root");
+		putTarField(header, 297, 32, "root");
+		long checksum = 0;
+		for (final byte b : header) {
+			checksum += b & 0xFF;
+		}
+		putTarField(header, 148, 8, String.format("%06o", checksum) + "\0 ");
+		out.write(header);
+	}
+
+	/**
+	 * @return "length key=value\n", with length of all the record (length included)
+	 */
+	private static byte[] getPaxRecord(final String key, final String value) {
+		final int base = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+		int length = base + String.valueOf(base).length();
+		if (String.valueOf(length).length() != String.valueOf(base).length()) {
+			length = base + String.valueOf(length).length();
+		}
+		return (length + " " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * ustar format (pax for long paths), with fixed date and root owner.
+	 */
+	private static void writeTar(final OutputStream out, final Path root, final List<Path> content, final String rootName) throws IOException {
+		final byte[] padding = new byte[512];
+		for (final Path item : content) {
+			final boolean directory = Files.isDirectory(item);
+			final String name = rootName + "/" + toArchivePath(root, item) + (directory ? "/" : "");
+			final long size = directory ? 0 : Files.size(item);
+			writeTarHeader(out, name, getUnixMode(item), size, directory ? '5' : '0');
+
+			if (directory == false) {
+				try (InputStream in = Files.newInputStream(item)) {
+					final long copied = in.transferTo(out);
+					if (copied != size) {
+						throw new IOException("File " + item + " has changed during archive");
+					}
+				}
+				final int rest = (int) (size % 512);
+				if (rest > 0) {
+					out.write(padding, 0, 512 - rest);
+				}
+			}
+		}
+		out.write(padding);
+		out.write(padding);
+	}
+
+	/**
+	 * Gzip stream compressed by independent blocks, each one primed with the end of the previous block (like pigz).
+	 * The result is a regular single member gzip file.
+	 */
+	private class ParallelGzipOutputStream extends OutputStream {
+		private static final int blockSize = 1024 * 1024;
+		private static final int dictionarySize = 32 * 1024;
+
+		private final OutputStream out;
+		private final ExecutorService pool;
+		private final Deque<Future<byte[]>> window;
+		private final CRC32 crc;
+		private byte[] block;
+		private int blockLength;
+		private byte[] previousBlock;
+		private long totalSize;
+		private boolean closed;
+
+		private ParallelGzipOutputStream(final OutputStream out, final ExecutorService pool) throws IOException {
+			this.out = out;
+			this.pool = pool;
+			window = new ArrayDeque<>();
+			crc = new CRC32();
+			block = new byte[blockSize];
+			out.write(new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff });
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			int pos = off;
+			final int end = off + len;
+			while (pos < end) {
+				final int toCopy = Math.min(end - pos, blockSize - blockLength);
+				System.arraycopy(b, pos, block, blockLength, toCopy);
+				blockLength += toCopy;
+				pos += toCopy;
+				if (blockLength == blockSize) {
+					submitBlock(false);
+				}
+			}
+		}
+
+		private void submitBlock(final boolean last) throws IOException {
+			final byte[] input = block;
+			final int inputLength = blockLength;
+			final byte[] dictionary = previousBlock;
+			crc.update(input, 0, inputLength);
+			totalSize += inputLength;
+
+			window.add(pool.submit(() -> {
+				final Deflater deflater = new Deflater(level, true);
+				try {
+					if (dictionary != null) {
+						deflater.setDictionary(dictionary, dictionary.length - dictionarySize, dictionarySize);
+					}
+					deflater.setInput(input, 0, inputLength);
+					final ByteArrayOutputStream compressed = new ByteArrayOutputStream(inputLength / 2 + 64);
+					final byte[] buffer = new byte[64 * 1024];
+					if (last) {
+						deflater.finish();
+						while (deflater.finished() == false) {
+							compressed.write(buffer, 0, deflater.deflate(buffer));
+						}
+					} else {
+						int len;
+						do {
+							len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+							compressed.write(buffer, 0, len);
+						} while (len == buffer.length);
+					}
+					return compressed.toByteArray();
+				} finally {
+					deflater.end();
+				}
+			}));
+
+			previousBlock = inputLength == blockSize ? input : null;
+			block = new byte[blockSize];
+			blockLength = 0;
+
+			while (window.size() >= threads * 2) {
+				out.write(getResult(window.poll()));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			submitBlock(true);
+			while (window.isEmpty() == false) {
+				out.write(getResult(window.poll()));
+			}
+			final ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			trailer.putInt((int) crc.getValue());
+			trailer.putInt((int) totalSize);
+			out.write(trailer.array());
+			out.flush();
+		}
+	}
+
+}
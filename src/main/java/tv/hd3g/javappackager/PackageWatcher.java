@@ -0,0 +1,209 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * Watch mode: package a project, then watch its files and re-package on each change, with the same Packager, kept warm.
+ * The packaging is incremental: only the stages with changed inputs are done again.
+ * The pom and the git state (ignore rules, branch and commit) are only read again when they change.
+ */
+public class PackageWatcher {
+	private static Logger log = LogManager.getLogger();
+
+	/**
+	 * Wait for this quiet period after a change, for get all the changes of a save or a checkout in one packaging.
+	 */
+	private static final Duration quietPeriod = Duration.ofMillis(200);
+
+	private final Path rootDir;
+	private final Path gitDir;
+	private final Packager packager;
+	private final Map<WatchKey, Path> watchedDirs;
+	private GitInfo gitInfo;
+
+	public PackageWatcher(final File rootDir) throws IOException {
+		this.rootDir = Objects.requireNonNull(rootDir, "\"rootDir\" can't to be null").toPath().toAbsolutePath().normalize();
+		gitDir = this.rootDir.resolve(Constants.DOT_GIT);
+		packager = new Packager(rootDir, true);
+		packager.setKeepWarm(true);
+		watchedDirs = new HashMap<>();
+		gitInfo = new GitInfo(rootDir);
+	}
+
+	/**
+	 * Never watch the maven outputs (and the package itself), and the git ignored files.
+	 */
+	private boolean isExcluded(final Path path) {
+		if (path.startsWith(gitDir)) {
+			return false;
+		}
+		final Path name = path.getFileName();
+		if (name != null && name.toString().equals("target") && Files.exists(path.resolveSibling("pom.xml"))) {
+			return true;
+		}
+		return path.equals(rootDir) == false && gitInfo.test(path.toFile());
+	}
+
+	private void registerTree(final WatchService watchService, final Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path subDir, final BasicFileAttributes attrs) throws IOException {
+				if (subDir.equals(gitDir) || isExcluded(subDir)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				watchedDirs.put(subDir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), subDir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Only HEAD and the branches refs: a checkout or a commit change the package git version.
+	 */
+	private void registerGitRefs(final WatchService watchService) throws IOException {
+		if (Files.isDirectory(gitDir) == false) {
+			return;
+		}
+		watchedDirs.put(gitDir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), gitDir);
+		final Path heads = gitDir.resolve("refs").resolve("heads");
+		if (Files.isDirectory(heads)) {
+			registerTree(watchService, heads);
+		}
+	}
+
+	private boolean isGitRef(final Path path) {
+		return path.equals(gitDir.resolve(Constants.HEAD)) || path.startsWith(gitDir.resolve("refs").resolve("heads"));
+	}
+
+	/**
+	 * Package now, and log the result and the turnaround time. Errors are only logged.
+	 */
+	private void packageNow(final String reason) {
+		log.info("Package {} ({})", rootDir, reason);
+		final long start = System.currentTimeMillis();
+		try {
+			final File result = packager.process();
+			log.info("Package {} is up to date, in {} ms, watch for changes", result, System.currentTimeMillis() - start);
+		} catch (final Exception e) {
+			log.error("Can't package " + rootDir + ", watch for changes", e);
+		}
+	}
+
+	/**
+	 * Run until this thread is interrupted.
+	 */
+	public void run() throws IOException, InterruptedException {
+		try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+			registerTree(watchService, rootDir);
+			registerGitRefs(watchService);
+			log.info("Watch {} dir(s) in {}", watchedDirs.size(), rootDir);
+			packageNow("first run");
+
+			while (Thread.currentThread().isInterrupted() == false) {
+				final Set<Path> changes = new TreeSet<>();
+				boolean overflow = collect(watchService, watchService.take(), changes);
+				WatchKey next;
+				while ((next = watchService.poll(quietPeriod.toMillis(), TimeUnit.MILLISECONDS)) != null) {
+					overflow |= collect(watchService, next, changes);
+				}
+
+				boolean gitChanged = overflow;
+				boolean pomChanged = overflow;
+				boolean sourceChanged = overflow;
+				for (final Path path : changes) {
+					final String name = path.getFileName().toString();
+					if (path.startsWith(gitDir)) {
+						gitChanged |= isGitRef(path);
+					} else if (name.equals(Constants.DOT_GIT_IGNORE)) {
+						gitChanged = true;
+					} else if (name.equals("pom.xml")) {
+						pomChanged = true;
+					} else if (isExcluded(path) == false) {
+						sourceChanged = true;
+					}
+				}
+				if (gitChanged == false && pomChanged == false && sourceChanged == false) {
+					continue;
+				}
+
+				if (gitChanged) {
+					gitInfo = new GitInfo(rootDir.toFile());
+				}
+				if (gitChanged || pomChanged) {
+					packager.invalidateWarm(gitChanged);
+				}
+				log.debug("Changed files: {}", changes);
+				packageNow(changes.size() + " change(s)" + (gitChanged ? ", git state changed" : "") + (pomChanged ? ", pom changed" : ""));
+			}
+		}
+	}
+
+	/**
+	 * @return true if some events are lost
+	 */
+	private boolean collect(final WatchService watchService, final WatchKey key, final Set<Path> changes) throws IOException {
+		final Path dir = watchedDirs.get(key);
+		boolean overflow = false;
+		for (final WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW || dir == null) {
+				overflow = true;
+				continue;
+			}
+			final Path path = dir.resolve((Path) event.context());
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(path) && (path.startsWith(gitDir) == false || isGitRef(path))) {
+				if (isExcluded(path)) {
+					continue;
+				}
+				registerTree(watchService, path);
+			}
+			changes.add(path);
+		}
+		if (key.reset() == false) {
+			watchedDirs.remove(key);
+		}
+		return overflow;
+	}
+
+}
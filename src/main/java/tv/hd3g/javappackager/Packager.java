@@ -0,0 +1,429 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.maven.model.building.ModelBuildingException;
+import org.eclipse.aether.artifact.Artifact;
+
+import tv.hd3g.javappackager.AppToPackage.Destination;
+import tv.hd3g.javappackager.StageCache.Fingerprint;
+import tv.hd3g.processlauncher.cmdline.ExecutableFinder;
+
+/**
+ * Package one project (a single app, or all the app modules of an aggregator pom).
+ * All the state is owned by this instance, only the maven runs are serialized, so many Packagers can run at the same time.
+ */
+public class Packager {
+	private static Logger log = LogManager.getLogger();
+	private static final String cdsArchiveName = "app.jsa";
+
+	private final File rootDir;
+	private final boolean incremental;
+	private boolean dryRun;
+
+	/**
+	 * Kept between process() calls if keepWarm: git ignore rules, effective pom and maven embedder.
+	 */
+	private boolean keepWarm;
+	private GitInfo warmGitInfo;
+	private AppToPackage warmApp;
+
+	/**
+	 * @param rootDir project root directory (with pom file)
+	 * @param incremental keep the previous package, and only re-do the stages with changed inputs
+	 */
+	public Packager(final File rootDir, final boolean incremental) {
+		this.rootDir = Objects.requireNonNull(rootDir, "\"rootDir\" can't to be null");
+		this.incremental = incremental;
+	}
+
+	public File getRootDir() {
+		return rootDir;
+	}
+
+	/**
+	 * Only read the project, and log the planned packaging stages graph, without run it.
+	 */
+	public void setDryRun(final boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/**
+	 * For many process() calls on the same project, like for the watch mode: only for single app projects.
+	 */
+	synchronized void setKeepWarm(final boolean keepWarm) {
+		this.keepWarm = keepWarm;
+		if (keepWarm == false) {
+			invalidateWarm(true);
+		}
+	}
+
+	/**
+	 * The next process() call will read again the pom, and the git state if gitChanged.
+	 * @param gitChanged after a .gitignore, a branch or a commit change
+	 */
+	synchronized void invalidateWarm(final boolean gitChanged) {
+		Optional.ofNullable(warmApp).ifPresent(AppToPackage::close);
+		warmApp = null;
+		if (gitChanged) {
+			warmGitInfo = null;
+		}
+	}
+
+	/**
+	 * @return the package dir, or the package archive if the package dir is not kept
+	 */
+	public synchronized File process() throws IOException, ModelBuildingException {
+		final StageMetrics metrics = new StageMetrics(rootDir.getName());
+
+		final GitInfo gitInfo;
+		if (warmGitInfo != null) {
+			gitInfo = warmGitInfo;
+			metrics.upToDate("git");
+		} else {
+			gitInfo = metrics.measure("git", () -> new GitInfo(rootDir));
+		}
+		if (ReactorPackager.isAggregator(rootDir)) {
+			if (dryRun) {
+				log.warn("Dry-run is not managed for multi-module projects");
+				return rootDir;
+			}
+			if (incremental) {
+				log.warn("Incremental packaging is not managed for multi-module projects, do a full packaging");
+			}
+			final File result = metrics.measure("reactor", () -> new ReactorPackager(rootDir, gitInfo).process());
+			metrics.write(result.getParentFile());
+			return result;
+		}
+
+		final AppToPackage app;
+		if (warmApp != null) {
+			app = warmApp;
+			metrics.upToDate("model");
+		} else {
+			app = metrics.measure("model", () -> new AppToPackage(rootDir, gitInfo, incremental || dryRun));
+		}
+		if (keepWarm) {
+			warmGitInfo = gitInfo;
+			warmApp = app;
+			return process(app, metrics);
+		}
+		try {
+			return process(app, metrics);
+		} finally {
+			app.close();
+		}
+	}
+
+	private File process(final AppToPackage app, final StageMetrics metrics) throws IOException, ModelBuildingException {
+		final boolean copyJVM = true; // cmd.hasOption("j");
+		final StageCache stageCache = app.getStageCache();
+
+		final ExecutableFinder execFinder = new ExecutableFinder();
+		app.getMainConfigDir().ifPresent(execFinder::addPath);
+		app.getMainResourceDir().ifPresent(execFinder::addPath);
+
+		final Destination dest = app.getDestination();
+		final ClassPathLayout classPathLayout = app.getClassPathLayout(dest);
+		final List<String> vmArgs = app.getVMArgs();
+		final WinRun4J wrj = new WinRun4J(execFinder, app.getAppName(), app.getAppVersion(), app.getGitVersion(), app.getAppUrl());
+		final AtomicBoolean hasJvm = new AtomicBoolean(false);
+		final AtomicReference<List<String>> classPath = new AtomicReference<>();
+		final AtomicReference<Optional<File>> windowsIcon = new AtomicReference<>(Optional.empty());
+		final AtomicReference<Optional<File>> deltaDir = new AtomicReference<>(Optional.empty());
+		final AtomicReference<File> result = new AtomicReference<>(dest.getDir());
+
+		final StageScheduler scheduler = new StageScheduler(rootDir.getName());
+		scheduler.add("maven", () -> stageMaven(app, stageCache, metrics, dest, classPathLayout));
+		scheduler.add("bin", () -> {
+			final List<File> externalDeps = app.getExternalDeps(execFinder);
+			final Fingerprint binFingerprint = new Fingerprint();
+			externalDeps.forEach(binFingerprint::addFile);
+			if (stageCache.isUpToDate("bin", binFingerprint)) {
+				log.info("External dependencies are unchanged, keep previous bin dir");
+				metrics.upToDate("bin");
+				return;
+			}
+			stageCache.invalidate("bin");
+			dest.deleteDest("bin");
+			metrics.measure("bin", () -> externalDeps.forEach(dep -> {
+				log.info("Copy {} to bin dir", dep.getPath());
+				dest.copyToDest(dep, "bin");
+			}), new File(dest.getDir(), "bin"));
+			stageCache.update("bin", binFingerprint);
+		});
+		scheduler.add("config", () -> {
+			final Fingerprint configFingerprint = app.getConfigFingerprint();
+			if (stageCache.isUpToDate("config", configFingerprint)) {
+				log.info("Config dir is unchanged, keep previous config dir");
+				metrics.upToDate("config");
+				return;
+			}
+			stageCache.invalidate("config");
+			dest.deleteDest("config");
+			metrics.measure("config", () -> app.getMainConfigDir().ifPresent(dir -> {
+				log.info("Copy {} to config dir", dir.getPath());
+				dest.copyToDest(dir, "config");
+			}), new File(dest.getDir(), "config"));
+			stageCache.update("config", configFingerprint);
+		});
+		scheduler.add("icon", () -> windowsIcon.set(app.getWindowsIcon()));
+		if (copyJVM) {
+			// jlink needs the lib jars for found the modules, a JVM copy don't needs maven
+			final String[] jvmDependsOn = app.isJlinkRuntime() ? new String[] { "maven" } : new String[0];
+			scheduler.add("jvm", () -> hasJvm.set(metrics.measure("jvm", () -> stageJvm(app, stageCache, dest.getTargetJVMDir(), List.of(new File(dest.getTargetLibDir(), app.getMainJarName())), dest.getTargetLibDir()), dest.getTargetJVMDir())), jvmDependsOn);
+		} else {
+			scheduler.add("jvm", () -> {});
+		}
+		scheduler.add("classpath", () -> {
+			classPath.set(classPathLayout.getClassPath(app.getMainJarName(), app.getDependencyOrder()));
+			wrj.setClassPath(classPath.get());
+			wrj.setMainClass(app.getMainClass());
+			wrj.setMinVMVersion(app.getJVMVersion());
+			wrj.setVMArgs(vmArgs);
+		}, "maven", "bin", "config");
+		if (app.isCdsArchive()) {
+			scheduler.add("cds", () -> {
+				if (hasJvm.get()) {
+					wrj.setVMArgs(metrics.measure("cds", () -> stageCds(app, stageCache, dest.getDir(), dest.getTargetJVMDir(), cdsArchiveName, classPath.get(), vmArgs), new File(dest.getTargetJVMDir(), cdsArchiveName)));
+				}
+			}, "classpath", "jvm");
+		}
+		scheduler.add("exec", () -> {
+			if (hasJvm.get()) {
+				wrj.setJVMDir(dest.getTargetJVMDir().getName());
+			}
+			final Fingerprint execFingerprint = new Fingerprint().add(wrj.getIniContent());
+			windowsIcon.get().ifPresent(execFingerprint::addFile);
+			if (stageCache.isUpToDate("exec", execFingerprint, dest.getTargetExecFile())) {
+				log.info("Exec file is unchanged, keep previous {}", dest.getTargetExecFile().getName());
+				metrics.upToDate("exec");
+				return;
+			}
+			stageCache.invalidate("exec");
+			log.info("Prepare final exe file");
+			metrics.measure("exec", () -> wrj.makeExecFile(dest.getTargetExecFile(), windowsIcon.get()), dest.getTargetExecFile());
+			stageCache.update("exec", execFingerprint);
+		}, app.isCdsArchive() ? new String[] { "classpath", "jvm", "icon", "cds" } : new String[] { "classpath", "jvm", "icon" });
+		scheduler.add("classindex", () -> metrics.measure("classindex", () -> {
+			final ClassIndex classIndex = ClassIndex.build(dest.getDir(), classPath.get(), app.getCopyEngine());
+			classIndex.check(app.getClassPathConflictPolicy());
+			final File indexFile = new File(dest.getDir(), ClassIndex.indexFileName);
+			if (app.isClassIndex()) {
+				classIndex.write(indexFile);
+			} else {
+				FileUtils.deleteQuietly(indexFile);
+			}
+		}), "classpath");
+		scheduler.add("notices", () -> {
+			wrj.copyLicenseTo(dest.getTargetLicensesDir());
+			dest.makeAppLicenseFile();
+			dest.makeVersionFile();
+		}, "maven");
+		if (app.isContentManifest()) {
+			scheduler.add("manifest", () -> deltaDir.set(metrics.measure("manifest", () -> app.makeContentManifest(dest))), scheduler.getStageNames());
+		}
+
+		final Optional<PackageArchiver> archiver = app.getArchiver();
+		final String packageName = app.getAppName() + "-" + app.getAppVersion();
+		if (archiver.isPresent()) {
+			scheduler.add("archive", () -> {
+				result.set(metrics.measure("archive", () -> archive(archiver.get(), dest.getDir(), packageName, incremental), new File(dest.getDir().getParentFile(), packageName + "." + archiver.get().getFormat().getExtension())));
+				if (deltaDir.get().isPresent()) {
+					archive(archiver.get(), deltaDir.get().get(), packageName + "-delta", false);
+				}
+			}, scheduler.getStageNames());
+		}
+
+		final int stageThreads = app.getStageThreads();
+		if (dryRun) {
+			log.info("Packaging plan for {}, {} stage(s) at the same time, [wave] stage <- dependencies:", app.getAppName(), stageThreads);
+			scheduler.getPlan().forEach(log::info);
+			return dest.getDir();
+		}
+		scheduler.run(stageThreads);
+
+		metrics.write(dest.getDir().getParentFile());
+
+		log.info("You can found package here: " + result.get().getPath());
+		return result.get();
+	}
+
+	/**
+	 * Maven package, dependencies, licenses list and jars, only if the sources, the pom or the dependencies has changed.
+	 */
+	private static void stageMaven(final AppToPackage app, final StageCache stageCache, final StageMetrics metrics, final Destination dest, final ClassPathLayout classPathLayout) throws IOException, ModelBuildingException {
+		final Fingerprint mavenFingerprint = app.getMavenFingerprint();
+		if (stageCache.isUpToDate("maven", mavenFingerprint, new File(dest.getDir(), "lib"), dest.getTargetThirdPartyFile())) {
+			log.info("Sources, pom and dependencies are unchanged, keep previous lib dir");
+			Stream.of("maven package", "dependencies", "licenses").forEach(metrics::upToDate);
+			return;
+		}
+		stageCache.invalidate("maven");
+		if (stageCache.isEnabled()) {
+			app.cleanMavenOutputs();
+		}
+		dest.deleteDest("lib");
+		dest.deleteDest("licenses");
+
+		metrics.measure("maven package", () -> {
+			log.info("Run maven package and dependencies");
+			app.mavenBatch();
+
+			log.info("Get and move main jar to lib dir");
+			dest.moveToDest(app.mavenPackage(), "lib");
+		}, new File(dest.getTargetLibDir(), app.getMainJarName()));
+
+		final Map<String, Artifact> dependencies = metrics.measure("dependencies", () -> {
+			log.info("Resolve and copy dependencies to lib dir");
+			final Map<String, Artifact> resolved = app.resolveDependencies();
+			dest.copyToLibDir(resolved);
+			return resolved;
+		}, dest.getTargetLibDir());
+
+		metrics.measure("licenses", () -> {
+			log.info("Make dependencies licenses list");
+			app.makeThirdPartyLicenses(dependencies.values(), dest.getTargetThirdPartyFile());
+		}, dest.getTargetLicensesDir());
+
+		if (app.isShrinkJars()) {
+			metrics.measure("shrink", () -> dest.shrinkLibJars(app.getJarShrinker(), app.getMainJarName(), app.getMainClass()), dest.getTargetLibDir());
+		}
+
+		metrics.measure("jars", () -> {
+			classPathLayout.mergeJars(app.getMainJarName(), app.getDependencyOrder());
+			if (app.isRepackJars()) {
+				dest.repackLibJars(app.getJarRepacker());
+			}
+			if (app.isCdsArchive()) {
+				CdsArchive.setClassPathJarsTime(dest.getTargetLibDir());
+			}
+		}, dest.getTargetLibDir());
+		stageCache.update("maven", mavenFingerprint);
+	}
+
+	/**
+	 * Make packageName.zip/tar.gz next to packageDir, with a packageName root dir, and remove packageDir if it's not kept.
+	 * @return packageDir, or the archive if the package dir is not kept
+	 */
+	static File archive(final PackageArchiver archiver, final File packageDir, final String packageName, final boolean incremental) throws IOException {
+		final File archive = new File(packageDir.getParentFile(), packageName + "." + archiver.getFormat().getExtension());
+		archiver.archive(packageDir, archive, packageName);
+		if (archiver.isKeepDir()) {
+			return packageDir;
+		} else if (incremental) {
+			log.warn("Keep package dir {} for the next incremental packaging", packageDir);
+			return packageDir;
+		}
+		FileUtils.deleteDirectory(packageDir);
+		return archive;
+	}
+
+	/**
+	 * Make an AppCDS archive in jvmDir, with a training run, only if the jars, the JVM or the launcher options has changed.
+	 * @param classPath the launcher class path, relative to packageDir
+	 * @param vmArgs the launcher JVM options
+	 * @return vmArgs, with the AppCDS options if the archive is ready
+	 */
+	static List<String> stageCds(final AppToPackage app, final StageCache stageCache, final File packageDir, final File jvmDir, final String archiveName, final List<String> classPath, final List<String> vmArgs) throws IOException {
+		if (classPath.stream().anyMatch(entry -> entry.contains("*"))) {
+			log.warn("AppCDS archive can't be made with a wildcard class path, use explicit or merged layout");
+			return vmArgs;
+		}
+
+		final CdsArchive cdsArchive = new CdsArchive(packageDir, jvmDir, archiveName);
+		final Fingerprint cdsFingerprint = new Fingerprint().add(app.getMainClass()).add(String.valueOf(classPath)).add(String.valueOf(vmArgs))
+		        .addFile(new File(jvmDir, "release")).addFile(Path.of(jvmDir.getPath(), "lib", "modules").toFile()).addFile(new File(packageDir, "lib"));
+		final boolean hasArchive;
+		if (stageCache.isUpToDate("cds-" + archiveName, cdsFingerprint, cdsArchive.getArchiveFile())) {
+			log.info("Jars, JVM and launcher options are unchanged, keep previous AppCDS archive {}", archiveName);
+			hasArchive = true;
+		} else {
+			stageCache.invalidate("cds-" + archiveName);
+			final File logFile = new File(packageDir.getParentFile(), "javappackager-cds-" + archiveName + ".log");
+			hasArchive = cdsArchive.train(classPath, app.getMainClass(), vmArgs, app.getCdsTrainingTimeout(), logFile);
+			if (hasArchive) {
+				stageCache.update("cds-" + archiveName, cdsFingerprint);
+			}
+		}
+
+		if (hasArchive == false) {
+			return vmArgs;
+		}
+		return Stream.concat(vmArgs.stream(), cdsArchive.getLauncherVMArgs().stream()).collect(Collectors.toUnmodifiableList());
+	}
+
+	/**
+	 * Copy the current JAVA_HOME, or make a runtime image with jlink for mainJars and all the other jars in libDir.
+	 * @param mainJars the jdeps roots, in libDir
+	 * @return false if there is no JAVA_HOME to use
+	 */
+	static boolean stageJvm(final AppToPackage app, final StageCache stageCache, final File jvmDir, final Collection<File> mainJars, final File libDir) throws IOException {
+		final File javaHome = new File(System.getenv("JAVA_HOME"));
+		if (javaHome.exists() == false || javaHome.isDirectory() == false) {
+			return false;
+		}
+
+		final Fingerprint jvmFingerprint = new Fingerprint().add(javaHome.getAbsolutePath()).addFile(new File(javaHome, "release")).addFile(Path.of(javaHome.getPath(), "lib", "modules").toFile());
+		final JvmStaging jvmStaging = app.getJvmStaging(javaHome);
+		if (app.isJlinkRuntime()) {
+			jvmFingerprint.add("jlink").add(String.valueOf(app.getJlinkAddModules())).add(String.valueOf(app.isJlinkStripDebug())).add(String.valueOf(app.isCdsArchive())).addFile(libDir);
+		} else {
+			jvmFingerprint.add(jvmStaging.toString());
+		}
+
+		if (stageCache.isUpToDate("jvm", jvmFingerprint, jvmDir)) {
+			log.info("JRE/JDK {} is unchanged, keep previous {} dir", javaHome.getPath(), jvmDir.getName());
+		} else if (app.isJlinkRuntime()) {
+			stageCache.invalidate("jvm");
+			final RuntimeImage runtimeImage = new RuntimeImage(javaHome);
+			final List<File> libs = FileUtils.listFiles(libDir, new String[] { "jar" }, true).stream().filter(jar -> mainJars.contains(jar) == false).collect(Collectors.toUnmodifiableList());
+
+			final Set<String> modules = runtimeImage.findModules(mainJars, libs, app.getJVMVersion(), app.getJlinkAddModules());
+			log.info("Make minimal runtime image to {} dir with jlink", jvmDir.getName());
+			runtimeImage.link(modules, jvmDir, app.isJlinkStripDebug());
+			if (app.isCdsArchive()) {
+				CdsArchive.makeBaseArchive(jvmDir);
+			}
+			stageCache.update("jvm", jvmFingerprint);
+		} else {
+			stageCache.invalidate("jvm");
+			log.info("Copy JRE/JDK {} to current {} dir", javaHome.getPath(), jvmDir.getName());
+			jvmStaging.stage(jvmDir);
+			stageCache.update("jvm", jvmFingerprint);
+		}
+		return true;
+	}
+
+}
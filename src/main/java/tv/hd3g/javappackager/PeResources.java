@@ -0,0 +1,500 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * In-memory Windows PE (exe/dll) resources editor: parse the resource section, change some resources, and rebuild the executable.
+ * The resource section must be the last section of the file (like on WinRun4J launchers): it will be fully rewritten.
+ * It replaces the WinRun4J RCEDIT tool, so it can run on any OS, without temp files.
+ */
+public class PeResources {
+
+	public static final int RT_ICON = 3;
+	public static final int RT_GROUP_ICON = 14;
+	/**
+	 * WinRun4J embedded ini file.
+	 */
+	public static final int RT_INI_FILE = 687;
+	/**
+	 * WinRun4J checks this magic before read the embedded ini file.
+	 */
+	private static final byte[] INI_RES_MAGIC = "INI ".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * WinRun4J reads the embedded ini file as ANSI text: the same charset is used to write and to read it.
+	 */
+	public static final Charset INI_CHARSET = Charset.forName("windows-1252");
+	private static final int LANG_NEUTRAL = 0;
+
+	private static final int DATA_DIR_RESOURCE = 2;
+	private static final int DATA_DIR_SECURITY = 4;
+
+	private final byte[] image;
+	private final int sectionCount;
+	private final int optionalHeaderOffset;
+	private final int sectionHeaderOffset;
+	private final int dataDirectoriesOffset;
+	private final int sectionAlignment;
+	private final int fileAlignment;
+	private final int rsrcVirtualAddress;
+	private final int rsrcRawOffset;
+	private final int rsrcRawSize;
+	/**
+	 * type -> name -> language -> resource
+	 */
+	private final TreeMap<ResourceKey, TreeMap<ResourceKey, TreeMap<Integer, Resource>>> resources;
+	/**
+	 * Directory path (empty for the root) -> Characteristics, TimeDateStamp and versions, as read
+	 */
+	private final Map<List<ResourceKey>, byte[]> directoryHeaders;
+	/**
+	 * Code page of the first read resource, for the added resources
+	 */
+	private int defaultCodePage;
+
+	public PeResources(final byte[] peImage) throws IOException {
+		image = Objects.requireNonNull(peImage, "\"peImage\" can't to be null");
+		final ByteBuffer buffer = ByteBuffer.wrap(image).order(ByteOrder.LITTLE_ENDIAN);
+
+		if (image.length < 0x40 || buffer.getShort(0) != 0x5A4D) {
+			throw new IOException("Not a PE file (no MZ header)");
+		}
+		final int peOffset = buffer.getInt(0x3C);
+		if (buffer.getInt(peOffset) != 0x00004550) {
+			throw new IOException("Not a PE file (no PE signature)");
+		}
+		sectionCount = Short.toUnsignedInt(buffer.getShort(peOffset + 6));
+		final int optionalHeaderSize = Short.toUnsignedInt(buffer.getShort(peOffset + 20));
+		optionalHeaderOffset = peOffset + 24;
+		sectionHeaderOffset = optionalHeaderOffset + optionalHeaderSize;
+
+		final int magic = Short.toUnsignedInt(buffer.getShort(optionalHeaderOffset));
+		if (magic == 0x20B) {
+			dataDirectoriesOffset = optionalHeaderOffset + 112;
+		} else if (magic == 0x10B) {
+			dataDirectoriesOffset = optionalHeaderOffset + 96;
+		} else {
+			throw new IOException("Unknown PE optional header magic " + Integer.toHexString(magic));
+		}
+		sectionAlignment = buffer.getInt(optionalHeaderOffset + 32);
+		fileAlignment = buffer.getInt(optionalHeaderOffset + 36);
+
+		if (buffer.getInt(dataDirectoriesOffset + DATA_DIR_SECURITY * 8 + 4) != 0) {
+			throw new IOException("Can't change resources on a signed executable");
+		}
+		final int rsrcDirRva = buffer.getInt(dataDirectoriesOffset + DATA_DIR_RESOURCE * 8);
+
+		int lastSectionVa = -1;
+		int lastSectionRaw = -1;
+		int rsrcSection = -1;
+		for (int pos = 0; pos < sectionCount; pos++) {
+			final int header = sectionHeaderOffset + pos * 40;
+			final int va = buffer.getInt(header + 12);
+			final int raw = buffer.getInt(header + 20);
+			lastSectionVa = Math.max(lastSectionVa, va);
+			lastSectionRaw = Math.max(lastSectionRaw, raw);
+			if (rsrcDirRva != 0 && va == rsrcDirRva) {
+				rsrcSection = pos;
+			}
+		}
+		if (rsrcSection == -1) {
+			throw new IOException("Can't found a dedicated resource section in this PE file");
+		}
+		final int rsrcHeader = sectionHeaderOffset + rsrcSection * 40;
+		rsrcVirtualAddress = buffer.getInt(rsrcHeader + 12);
+		rsrcRawSize = buffer.getInt(rsrcHeader + 16);
+		rsrcRawOffset = buffer.getInt(rsrcHeader + 20);
+		if (rsrcVirtualAddress != lastSectionVa || rsrcRawOffset != lastSectionRaw) {
+			throw new IOException("The resource section is not the last PE section, it can't be rewritten");
+		}
+
+		resources = new TreeMap<>();
+		directoryHeaders = new HashMap<>();
+		defaultCodePage = -1;
+		readDirectory(buffer, 0, 0, new ResourceKey[2]);
+		defaultCodePage = Math.max(0, defaultCodePage);
+	}
+
+	private int rvaToOffset(final ByteBuffer buffer, final int rva) throws IOException {
+		for (int pos = 0; pos < sectionCount; pos++) {
+			final int header = sectionHeaderOffset + pos * 40;
+			final int va = buffer.getInt(header + 12);
+			final int size = Math.max(buffer.getInt(header + 8), buffer.getInt(header + 16));
+			if (rva >= va && rva < va + size) {
+				return rva - va + buffer.getInt(header + 20);
+			}
+		}
+		throw new IOException("Invalid RVA " + Integer.toHexString(rva));
+	}
+
+	private void readDirectory(final ByteBuffer buffer, final int dirOffset, final int level, final ResourceKey[] path) throws IOException {
+		final int base = rsrcRawOffset;
+		directoryHeaders.put(List.of(Arrays.copyOf(path, level)), Arrays.copyOfRange(image, base + dirOffset, base + dirOffset + 12));
+		final int entries = Short.toUnsignedInt(buffer.getShort(base + dirOffset + 12)) + Short.toUnsignedInt(buffer.getShort(base + dirOffset + 14));
+
+		for (int pos = 0; pos < entries; pos++) {
+			final int entry = base + dirOffset + 16 + pos * 8;
+			final int nameOrId = buffer.getInt(entry);
+			final int target = buffer.getInt(entry + 4);
+
+			final ResourceKey key;
+			if (nameOrId < 0) {
+				final int stringOffset = base + (nameOrId & 0x7FFFFFFF);
+				final int length = Short.toUnsignedInt(buffer.getShort(stringOffset));
+				key = new ResourceKey(new String(image, stringOffset + 2, length * 2, StandardCharsets.UTF_16LE));
+			} else {
+				key = new ResourceKey(nameOrId);
+			}
+
+			if (target < 0) {
+				if (level >= 2) {
+					throw new IOException("Too deep resource directory tree");
+				}
+				path[level] = key;
+				readDirectory(buffer, target & 0x7FFFFFFF, level + 1, path);
+			} else {
+				if (level != 2) {
+					throw new IOException("Unexpected resource data entry at level " + level);
+				}
+				final int dataEntry = base + target;
+				final int dataOffset = rvaToOffset(buffer, buffer.getInt(dataEntry));
+				final int size = buffer.getInt(dataEntry + 4);
+				final int codePage = buffer.getInt(dataEntry + 8);
+				if (defaultCodePage == -1) {
+					defaultCodePage = codePage;
+				}
+				put(path[0], path[1], key.id, Arrays.copyOfRange(image, dataOffset, dataOffset + size), codePage);
+			}
+		}
+	}
+
+	private void put(final ResourceKey type, final ResourceKey name, final int language, final byte[] data, final int codePage) {
+		resources.computeIfAbsent(type, t -> new TreeMap<>()).computeIfAbsent(name, n -> new TreeMap<>()).put(language, new Resource(data, codePage));
+	}
+
+	/**
+	 * Add or replace a resource. A replaced resource keeps its code page, an added one gets the code page of the other resources.
+	 */
+	public PeResources put(final int type, final int name, final int language, final byte[] data) {
+		final int codePage = Optional.ofNullable(resources.get(new ResourceKey(type))).map(t -> t.get(new ResourceKey(name))).map(n -> n.get(language)).map(r -> r.codePage).orElse(defaultCodePage);
+		put(new ResourceKey(type), new ResourceKey(name), language, data, codePage);
+		return this;
+	}
+
+	public PeResources removeType(final int type) {
+		resources.remove(new ResourceKey(type));
+		return this;
+	}
+
+	public byte[] get(final int type, final int name, final int language) {
+		return Optional.ofNullable(resources.get(new ResourceKey(type))).map(t -> t.get(new ResourceKey(name))).map(n -> n.get(language)).map(r -> r.data).orElse(null);
+	}
+
+	/**
+	 * Set the WinRun4J embedded ini file, like "RCEDIT /N".
+	 */
+	public PeResources setWinRun4JIni(final String ini) {
+		final byte[] iniContent = ini.getBytes(INI_CHARSET);
+		final byte[] data = new byte[INI_RES_MAGIC.length + iniContent.length + 1];
+		System.arraycopy(INI_RES_MAGIC, 0, data, 0, INI_RES_MAGIC.length);
+		System.arraycopy(iniContent, 0, data, INI_RES_MAGIC.length, iniContent.length);
+		return put(RT_INI_FILE, 1, LANG_NEUTRAL, data);
+	}
+
+	/**
+	 * @return the WinRun4J embedded ini file content, if any
+	 */
+	public Optional<String> getWinRun4JIni() {
+		return Optional.ofNullable(get(RT_INI_FILE, 1, LANG_NEUTRAL))
+		        .filter(data -> data.length >= INI_RES_MAGIC.length && Arrays.equals(data, 0, INI_RES_MAGIC.length, INI_RES_MAGIC, 0, INI_RES_MAGIC.length))
+		        .map(data -> new String(data, INI_RES_MAGIC.length, data.length - INI_RES_MAGIC.length, INI_CHARSET).replace("\0", "").trim());
+	}
+
+	/**
+	 * Replace all the executable icons by the images of an .ico file, like "RCEDIT /I".
+	 */
+	public PeResources setIcon(final byte[] icoFile) throws IOException {
+		final ByteBuffer ico = ByteBuffer.wrap(icoFile).order(ByteOrder.LITTLE_ENDIAN);
+		if (icoFile.length < 6 || ico.getShort(0) != 0 || ico.getShort(2) != 1) {
+			throw new IOException("Invalid .ico file");
+		}
+		final int count = Short.toUnsignedInt(ico.getShort(4));
+		if (count == 0 || icoFile.length < 6 + count * 16) {
+			throw new IOException("Invalid .ico file entries");
+		}
+
+		removeType(RT_ICON);
+		removeType(RT_GROUP_ICON);
+
+		/**
+		 * GRPICONDIR: same as ICONDIR, but with 14 bytes entries, image offset is replaced by a RT_ICON id.
+		 */
+		final ByteBuffer group = ByteBuffer.allocate(6 + count * 14).order(ByteOrder.LITTLE_ENDIAN);
+		group.putShort((short) 0).putShort((short) 1).putShort((short) count);
+		for (int pos = 0; pos < count; pos++) {
+			final int entry = 6 + pos * 16;
+			final int bytesInRes = ico.getInt(entry + 8);
+			final int imageOffset = ico.getInt(entry + 12);
+			if (imageOffset < 0 || bytesInRes < 0 || (long) imageOffset + bytesInRes > icoFile.length) {
+				throw new IOException("Invalid .ico file image #" + pos);
+			}
+			group.put(icoFile, entry, 12);
+			group.putShort((short) (pos + 1));
+			put(RT_ICON, pos + 1, LANG_NEUTRAL, Arrays.copyOfRange(icoFile, imageOffset, imageOffset + bytesInRes));
+		}
+		return put(RT_GROUP_ICON, 1, LANG_NEUTRAL, group.array());
+	}
+
+	private static int align(final int value, final int alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+	private byte[] buildResourceSection() {
+		/**
+		 * Layout: all directory tables, level by level, then data entries, then names strings, then data, with DWORD aligned data like the resource compilers.
+		 */
+		int directoriesSize = 16 + resources.size() * 8;
+		int dataEntriesCount = 0;
+		int stringsSize = 0;
+		final List<ResourceKey> keys = new ArrayList<>(resources.keySet());
+		for (final Map.Entry<ResourceKey, TreeMap<ResourceKey, TreeMap<Integer, Resource>>> type : resources.entrySet()) {
+			directoriesSize += 16 + type.getValue().size() * 8;
+			for (final Map.Entry<ResourceKey, TreeMap<Integer, Resource>> name : type.getValue().entrySet()) {
+				directoriesSize += 16 + name.getValue().size() * 8;
+				dataEntriesCount += name.getValue().size();
+				keys.add(name.getKey());
+			}
+		}
+		for (final ResourceKey key : keys) {
+			if (key.name != null) {
+				stringsSize += 2 + key.name.length() * 2;
+			}
+		}
+		final int dataEntriesOffset = directoriesSize;
+		final int stringsOffset = dataEntriesOffset + dataEntriesCount * 16;
+		final int dataOffset = align(stringsOffset + stringsSize, 8);
+
+		int totalSize = dataOffset;
+		for (final TreeMap<ResourceKey, TreeMap<Integer, Resource>> names : resources.values()) {
+			for (final TreeMap<Integer, Resource> languages : names.values()) {
+				for (final Resource resource : languages.values()) {
+					totalSize = align(totalSize + resource.data.length, 4);
+				}
+			}
+		}
+
+		final ByteBuffer section = ByteBuffer.allocate(totalSize).order(ByteOrder.LITTLE_ENDIAN);
+		int nameDirectory = 16 + resources.size() * 8;
+		for (final TreeMap<ResourceKey, TreeMap<Integer, Resource>> names : resources.values()) {
+			nameDirectory += 16 + names.size() * 8;
+		}
+		final int[] nextDirectory = { 16 + resources.size() * 8, nameDirectory };
+		final int[] nextDataEntry = { dataEntriesOffset };
+		final int[] nextString = { stringsOffset };
+		final int[] nextData = { dataOffset };
+
+		writeDirectoryHeader(section, 0, List.of(), resources.keySet());
+		int typePos = 0;
+		for (final Map.Entry<ResourceKey, TreeMap<ResourceKey, TreeMap<Integer, Resource>>> type : resources.entrySet()) {
+			final int typeDir = nextDirectory[0];
+			nextDirectory[0] += 16 + type.getValue().size() * 8;
+			writeEntry(section, 16 + typePos++ * 8, type.getKey(), typeDir | 0x80000000, nextString);
+			writeDirectoryHeader(section, typeDir, List.of(type.getKey()), type.getValue().keySet());
+
+			int namePos = 0;
+			for (final Map.Entry<ResourceKey, TreeMap<Integer, Resource>> name : type.getValue().entrySet()) {
+				final int nameDir = nextDirectory[1];
+				nextDirectory[1] += 16 + name.getValue().size() * 8;
+				writeEntry(section, typeDir + 16 + namePos++ * 8, name.getKey(), nameDir | 0x80000000, nextString);
+				writeDirectoryHeader(section, nameDir, List.of(type.getKey(), name.getKey()), List.of());
+				section.putShort(nameDir + 14, (short) name.getValue().size());
+				int langPos = 0;
+				for (final Map.Entry<Integer, Resource> language : name.getValue().entrySet()) {
+					final int dataEntry = nextDataEntry[0];
+					nextDataEntry[0] += 16;
+					section.putInt(nameDir + 16 + langPos * 8, language.getKey());
+					section.putInt(nameDir + 16 + langPos * 8 + 4, dataEntry);
+					langPos++;
+
+					final byte[] data = language.getValue().data;
+					section.putInt(dataEntry, rsrcVirtualAddress + nextData[0]);
+					section.putInt(dataEntry + 4, data.length);
+					section.putInt(dataEntry + 8, language.getValue().codePage);
+					section.position(nextData[0]);
+					section.put(data);
+					nextData[0] = align(nextData[0] + data.length, 4);
+				}
+			}
+		}
+		return section.array();
+	}
+
+	/**
+	 * Characteristics, TimeDateStamp and versions are the read ones, or the root directory ones for an added directory.
+	 */
+	private void writeDirectoryHeader(final ByteBuffer section, final int offset, final List<ResourceKey> path, final Iterable<ResourceKey> keys) {
+		final byte[] header = directoryHeaders.getOrDefault(path, directoryHeaders.get(List.of()));
+		section.position(offset);
+		section.put(header);
+		int named = 0;
+		int ids = 0;
+		for (final ResourceKey key : keys) {
+			if (key.name != null) {
+				named++;
+			} else {
+				ids++;
+			}
+		}
+		section.putShort(offset + 12, (short) named);
+		section.putShort(offset + 14, (short) ids);
+	}
+
+	private static void writeEntry(final ByteBuffer section, final int offset, final ResourceKey key, final int target, final int[] nextString) {
+		if (key.name != null) {
+			final int stringOffset = nextString[0];
+			section.putShort(stringOffset, (short) key.name.length());
+			final byte[] chars = key.name.getBytes(StandardCharsets.UTF_16LE);
+			section.position(stringOffset + 2);
+			section.put(chars);
+			nextString[0] += 2 + chars.length;
+			section.putInt(offset, stringOffset | 0x80000000);
+		} else {
+			section.putInt(offset, key.id);
+		}
+		section.putInt(offset + 4, target);
+	}
+
+	/**
+	 * @return the full PE file, with the rebuilt resource section and updated headers and checksum.
+	 */
+	public byte[] toBytes() {
+		final byte[] rsrc = buildResourceSection();
+		final int newRawSize = align(rsrc.length, fileAlignment);
+		final int overlayStart = rsrcRawOffset + rsrcRawSize;
+		final int overlaySize = Math.max(0, image.length - overlayStart);
+
+		final byte[] result = new byte[rsrcRawOffset + newRawSize + overlaySize];
+		System.arraycopy(image, 0, result, 0, rsrcRawOffset);
+		System.arraycopy(rsrc, 0, result, rsrcRawOffset, rsrc.length);
+		if (overlaySize > 0) {
+			System.arraycopy(image, overlayStart, result, rsrcRawOffset + newRawSize, overlaySize);
+		}
+
+		final ByteBuffer buffer = ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN);
+		for (int pos = 0; pos < sectionCount; pos++) {
+			final int header = sectionHeaderOffset + pos * 40;
+			if (buffer.getInt(header + 12) == rsrcVirtualAddress) {
+				buffer.putInt(header + 8, rsrc.length);
+				buffer.putInt(header + 16, newRawSize);
+			}
+		}
+		buffer.putInt(dataDirectoriesOffset + DATA_DIR_RESOURCE * 8 + 4, rsrc.length);
+		final int initializedData = buffer.getInt(optionalHeaderOffset + 8);
+		buffer.putInt(optionalHeaderOffset + 8, initializedData - rsrcRawSize + newRawSize);
+		buffer.putInt(optionalHeaderOffset + 56, align(rsrcVirtualAddress + rsrc.length, sectionAlignment));
+		buffer.putInt(optionalHeaderOffset + 64, 0);
+		buffer.putInt(optionalHeaderOffset + 64, computeChecksum(result, optionalHeaderOffset + 64));
+		return result;
+	}
+
+	/**
+	 * Same algorithm as imagehlp CheckSumMappedFile.
+	 */
+	static int computeChecksum(final byte[] file, final int checksumOffset) {
+		long sum = 0;
+		for (int pos = 0; pos < file.length; pos += 2) {
+			if (pos == checksumOffset || pos == checksumOffset + 2) {
+				continue;
+			}
+			final int low = file[pos] & 0xFF;
+			final int high = pos + 1 < file.length ? file[pos + 1] & 0xFF : 0;
+			sum += low | high << 8;
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		return (int) (sum + file.length);
+	}
+
+	private static class Resource {
+		private final byte[] data;
+		private final int codePage;
+
+		private Resource(final byte[] data, final int codePage) {
+			this.data = data;
+			this.codePage = codePage;
+		}
+	}
+
+	/**
+	 * Resource type, name or language: a string or an id. Strings are sorted before ids, as expected in a resource directory.
+	 */
+	private static class ResourceKey implements Comparable<ResourceKey> {
+		private final String name;
+		private final int id;
+
+		private ResourceKey(final String name) {
+			this.name = name;
+			id = -1;
+		}
+
+		private ResourceKey(final int id) {
+			name = null;
+			this.id = id;
+		}
+
+		@Override
+		public int compareTo(final ResourceKey o) {
+			if (name != null && o.name != null) {
+				return name.compareToIgnoreCase(o.name);
+			} else if (name != null) {
+				return -1;
+			} else if (o.name != null) {
+				return 1;
+			}
+			return Integer.compare(id, o.id);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			return obj instanceof ResourceKey && compareTo((ResourceKey) obj) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return name != null ? name.toUpperCase().hashCode() : id;
+		}
+
+		@Override
+		public String toString() {
+			return name != null ? name : String.valueOf(id);
+		}
+	}
+
+}
@@ -0,0 +1,308 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.maven.cli.MavenCli;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.building.ModelBuildingException;
+import org.codehaus.plexus.classworlds.ClassWorld;
+import org.eclipse.aether.artifact.Artifact;
+
+import tv.hd3g.javappackager.AppToPackage.Destination;
+import tv.hd3g.javappackager.ClassPathLayout.Layout;
+import tv.hd3g.processlauncher.cmdline.ExecutableFinder;
+
+/**
+ * Package all the app modules (jar packaging with a "javappackager.mainclass" property) of an aggregator pom, in one run:
+ * one reactor maven build, one shared lib dir with deduplicated jars, one JVM, and one launcher per app module.
+ */
+public class ReactorPackager {
+	private static Logger log = LogManager.getLogger();
+	private static final String destinationDirName = "javappackager";
+
+	private final File rootDir;
+	private final GitInfo gitInfo;
+	private final Model rootPom;
+	private final File targetDir;
+	private final File packageDir;
+	private final File libDir;
+	private final List<AppToPackage> apps;
+	private final ForkJoinPool pool;
+
+	private final Map<String, File> sharedJars;
+	private final Set<String> sharedJarNames;
+	private final AtomicInteger dedupJars;
+
+	/**
+	 * @return true if rootDir/pom.xml is an aggregator pom, with modules.
+	 */
+	public static boolean isAggregator(final File rootDir) throws ModelBuildingException {
+		final Model pom = AppToPackage.readEffectivePom(new File(rootDir, "pom.xml"));
+		return "pom".equalsIgnoreCase(pom.getPackaging()) && pom.getModules().isEmpty() == false;
+	}
+
+	public ReactorPackager(final File rootDir, final GitInfo gitInfo) throws IOException, ModelBuildingException {
+		this.rootDir = Objects.requireNonNull(rootDir, "\"rootDir\" can't to be null");
+		this.gitInfo = Objects.requireNonNull(gitInfo, "\"gitInfo\" can't to be null");
+		rootPom = AppToPackage.readEffectivePom(new File(rootDir, "pom.xml"));
+		targetDir = new File(rootDir.getAbsolutePath() + File.separator + "target");
+		packageDir = new File(targetDir, destinationDirName);
+		libDir = new File(packageDir, "lib");
+
+		FileUtils.deleteQuietly(targetDir);
+
+		final List<File> appModuleDirs = new ArrayList<>();
+		final Map<File, Model> allModules = new LinkedHashMap<>();
+		allModules.put(rootDir, rootPom);
+		searchAppModules(rootDir, rootPom, appModuleDirs, allModules);
+		if (appModuleDirs.isEmpty()) {
+			throw new IOException("Can't found app modules (jar packaging and javappackager.mainclass property) in " + rootDir);
+		}
+
+		apps = new ArrayList<>();
+		for (final File moduleDir : appModuleDirs) {
+			final AppToPackage app = new AppToPackage(moduleDir, gitInfo);
+			app.setReactorModules(allModules);
+			apps.add(app);
+		}
+
+		final int threads = Integer.parseInt(rootPom.getProperties().getProperty("javappackager.modules.threads", String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+		pool = new ForkJoinPool(Math.max(1, threads));
+
+		sharedJars = new ConcurrentHashMap<>();
+		sharedJarNames = ConcurrentHashMap.newKeySet();
+		dedupJars = new AtomicInteger();
+	}
+
+	private static void searchAppModules(final File dir, final Model pom, final List<File> appModuleDirs, final Map<File, Model> allModules) throws ModelBuildingException {
+		for (final String module : pom.getModules()) {
+			File moduleDir = new File(dir, module);
+			if (moduleDir.isFile()) {
+				moduleDir = moduleDir.getParentFile();
+			}
+			final Model modulePom = AppToPackage.readEffectivePom(new File(moduleDir, "pom.xml"));
+			allModules.put(moduleDir, modulePom);
+			if ("pom".equalsIgnoreCase(modulePom.getPackaging())) {
+				searchAppModules(moduleDir, modulePom, appModuleDirs, allModules);
+			} else if ("jar".equalsIgnoreCase(modulePom.getPackaging()) && modulePom.getProperties().getProperty("javappackager.mainclass") != null) {
+				log.info("Found app module {}", modulePom.getArtifactId());
+				appModuleDirs.add(moduleDir);
+			} else {
+				log.debug("Ignore module {} ({})", modulePom.getArtifactId(), modulePom.getPackaging());
+			}
+		}
+	}
+
+	private void forEachApp(final String operationName, final Consumer<AppToPackage> operation) {
+		try {
+			pool.submit(() -> apps.parallelStream().forEach(operation)).get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted during " + operationName, e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Can't " + operationName, e.getCause());
+		}
+	}
+
+	/**
+	 * Copy jar to the shared lib dir as jarName, only if there is not already a jar with the same name and the same content.
+	 * Never move: a module jar can be a dependency of another module, resolved from its target dir.
+	 * A same name with another content (like a different snapshot) goes in lib/artifactId.
+	 * @return the shared jar
+	 */
+	private File shareJar(final File jar, final String jarName, final String artifactId) throws IOException {
+		final String key = jarName + ":" + ContentManifest.sha256(jar);
+		final AtomicBoolean added = new AtomicBoolean(false);
+		final File shared = sharedJars.computeIfAbsent(key, k -> {
+			final File dest;
+			if (sharedJarNames.add(jarName)) {
+				dest = new File(libDir, jarName);
+			} else {
+				log.warn("Jar {} is not the same for all modules, keep a dedicated copy for {}", jarName, artifactId);
+				dest = new File(new File(libDir, artifactId), jarName);
+			}
+			try {
+				FileUtils.copyFile(jar, dest);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			added.set(true);
+			return dest;
+		});
+		if (added.get() == false) {
+			dedupJars.incrementAndGet();
+		}
+		return shared;
+	}
+
+	private ExecutableFinder getExecutableFinder(final AppToPackage app) {
+		final ExecutableFinder execFinder = new ExecutableFinder();
+		app.getMainConfigDir().ifPresent(execFinder::addPath);
+		app.getMainResourceDir().ifPresent(execFinder::addPath);
+		return execFinder;
+	}
+
+	/**
+	 * @return the package dir, or the package archive if the package dir is not kept
+	 */
+	public File process() throws IOException {
+		try {
+			return packageAll();
+		} finally {
+			apps.forEach(AppToPackage::close);
+			pool.shutdown();
+		}
+	}
+
+	private File packageAll() throws IOException {
+		if (apps.stream().anyMatch(AppToPackage::isCdsArchive)) {
+			CdsArchive.checkArchiveFormat(PackageArchiver.fromProperties(rootPom.getProperties()));
+		}
+		log.info("Run maven package and dependencies on reactor {} ({} app modules)", rootPom.getArtifactId(), apps.size());
+		final ClassWorld world = new ClassWorld("default", Thread.currentThread().getContextClassLoader());
+		final int result = AppToPackage.runMaven(new MavenCli(world), rootDir, rootPom.getProperties(), AppToPackage.batchGoals);
+		if (result != 0) {
+			System.err.println();
+		}
+		apps.forEach(app -> app.setBatchResult(result));
+
+		final Map<AppToPackage, List<File>> appJars = new ConcurrentHashMap<>();
+		forEachApp("collect modules", app -> {
+			final String artifactId = app.getArtifactId();
+			final Destination dest = app.getDestination(packageDir);
+			try {
+				final File packageJar = app.mavenPackage();
+				final File mainJar = shareJar(packageJar, packageJar.getName(), artifactId);
+				final List<File> dependencies = new ArrayList<>();
+				final Map<String, Artifact> resolved = app.resolveDependencies();
+				for (final Map.Entry<String, Artifact> dependency : resolved.entrySet()) {
+					dependencies.add(shareJar(dependency.getValue().getFile(), dependency.getKey(), artifactId));
+				}
+				final List<File> jars = new ArrayList<>(ClassPathLayout.orderJars(dependencies, mainJar.getName(), app.getDependencyOrder()));
+				jars.add(0, mainJar);
+				appJars.put(app, Collections.unmodifiableList(jars));
+
+				app.makeThirdPartyLicenses(resolved.values(), new File(dest.getTargetLicensesDir(), artifactId + "-THIRD-PARTY.txt"));
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			app.getExternalDeps(getExecutableFinder(app)).forEach(dep -> {
+				log.info("Copy {} to {} bin dir", dep.getPath(), artifactId);
+				dest.copyToDest(dep, artifactId, "bin");
+			});
+			app.getMainConfigDir().ifPresent(dir -> {
+				log.info("Copy {} to {} config dir", dir.getPath(), artifactId);
+				dest.copyToDest(dir, artifactId, "config");
+			});
+		});
+		log.info("{} jars in shared lib dir, {} duplicate jars ignored", sharedJars.size(), dedupJars.get());
+
+		/**
+		 * One JVM for all, with the first app module settings, and the modules needed by all the app modules main jars.
+		 */
+		if (apps.stream().anyMatch(AppToPackage::isCdsArchive)) {
+			CdsArchive.setClassPathJarsTime(libDir);
+		}
+		final AppToPackage firstApp = apps.get(0);
+		final File jvmDir = new File(packageDir, "jvm");
+		final StageCache noCache = new StageCache(new File(targetDir, "javappackager-stages.properties"), false);
+		final List<File> mainJars = apps.stream().map(app -> appJars.get(app).get(0)).collect(Collectors.toUnmodifiableList());
+		final boolean hasJvm = Packager.stageJvm(firstApp, noCache, jvmDir, mainJars, libDir);
+
+		forEachApp("make launchers", app -> {
+			final String artifactId = app.getArtifactId();
+			final Destination dest = app.getDestination(packageDir);
+			final ClassPathLayout classPathLayout = app.getClassPathLayout(dest);
+			if (classPathLayout.getLayout() != Layout.EXPLICIT) {
+				log.warn("Class path layout {} is not managed for multi-module packaging, use explicit layout for {}", classPathLayout.getLayout(), artifactId);
+			}
+			try {
+				final WinRun4J wrj = new WinRun4J(getExecutableFinder(app), app.getAppName(), app.getAppVersion(), app.getGitVersion(), app.getAppUrl());
+				final List<String> classPath = classPathLayout.getClassPath(appJars.get(app), List.of(artifactId + "/config", artifactId + "/bin"));
+				wrj.setClassPath(classPath);
+				wrj.setMainClass(app.getMainClass());
+				wrj.setMinVMVersion(app.getJVMVersion());
+				wrj.setVMArgs(app.getVMArgs());
+				if (hasJvm) {
+					wrj.setJVMDir(jvmDir.getName());
+					if (app.isCdsArchive()) {
+						wrj.setVMArgs(Packager.stageCds(app, noCache, packageDir, jvmDir, artifactId + ".jsa", classPath, app.getVMArgs()));
+					}
+				}
+				log.info("Prepare final exe file for {}", artifactId);
+				wrj.makeExecFile(dest.getTargetExecFile(), app.getWindowsIcon());
+				dest.makeAppLicenseFile();
+				if (app == firstApp) {
+					wrj.copyLicenseTo(dest.getTargetLicensesDir());
+				}
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+
+		final PrintStream out = new PrintStream(new File(packageDir, "VERSION.TXT"));
+		out.println(rootPom.getVersion());
+		out.println(gitInfo.getVersion());
+		out.close();
+
+		final Optional<File> deltaDir;
+		if (ContentManifest.isEnabled(rootPom.getProperties())) {
+			deltaDir = ContentManifest.makeFor(rootPom.getProperties(), rootDir, packageDir, apps.get(0).getCopyEngine());
+		} else {
+			deltaDir = Optional.empty();
+		}
+
+		final Optional<PackageArchiver> archiver = PackageArchiver.fromProperties(rootPom.getProperties());
+		final String packageName = rootPom.getArtifactId() + "-" + rootPom.getVersion();
+		final File output;
+		if (archiver.isPresent()) {
+			output = Packager.archive(archiver.get(), packageDir, packageName, false);
+			if (deltaDir.isPresent()) {
+				Packager.archive(archiver.get(), deltaDir.get(), packageName + "-delta", false);
+			}
+		} else {
+			output = packageDir;
+		}
+		log.info("You can found package here: " + output.getPath());
+		return output;
+	}
+
+}
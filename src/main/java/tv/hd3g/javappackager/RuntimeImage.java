@@ -0,0 +1,136 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.spi.ToolProvider;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Build a minimal runtime image with jlink, from the JAVA_HOME jmods, only with the modules needed by the app (found by jdeps).
+ * jdeps and jlink are started in-process (ToolProvider), so the current JVM must have the same version as the JAVA_HOME to package.
+ */
+public class RuntimeImage {
+	private static Logger log = LogManager.getLogger();
+
+	/**
+	 * Used if jdeps can't compute the needed modules.
+	 */
+	private static final String fallbackModule = "java.se";
+
+	private final File javaHome;
+	private final File jmodsDir;
+
+	public RuntimeImage(final File javaHome) throws IOException {
+		this.javaHome = Objects.requireNonNull(javaHome, "\"javaHome\" can't to be null");
+		jmodsDir = new File(javaHome.getPath() + File.separator + "jmods");
+		if (jmodsDir.exists() == false) {
+			throw new FileNotFoundException("Can't found jmods dir in " + javaHome + ", jlink needs a JDK");
+		}
+	}
+
+	private static ToolProvider getTool(final String name) {
+		return ToolProvider.findFirst(name).orElseThrow(() -> new IllegalStateException("Can't found " + name + " tool in this JVM (" + System.getProperty("java.home") + "), please use a JDK"));
+	}
+
+	private static String runTool(final String name, final List<String> args) throws IOException {
+		final StringWriter out = new StringWriter();
+		final StringWriter err = new StringWriter();
+		log.debug("Start {} {}", name, args);
+		final int result = getTool(name).run(new PrintWriter(out, true), new PrintWriter(err, true), args.toArray(new String[0]));
+		if (result != 0) {
+			throw new IOException("Failed " + name + " execution (" + result + "): " + err.toString().trim() + " " + out.toString().trim());
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @param jvmVersion like "11", for multi-release jars analysis
+	 * @param mainJars jdeps roots, like the main jar of each app packaged with this runtime image
+	 * @return sorted modules names needed by mainJars and libs, with extraModules (for reflection usages, not visible by jdeps).
+	 */
+	public Set<String> findModules(final Collection<File> mainJars, final Collection<File> libs, final String jvmVersion, final Collection<String> extraModules) {
+		final Set<String> modules = new TreeSet<>(extraModules);
+
+		final List<String> args = new ArrayList<>();
+		args.add("--print-module-deps");
+		args.add("--ignore-missing-deps");
+		args.add("--multi-release");
+		args.add(jvmVersion.startsWith("1.") ? "base" : jvmVersion);
+		if (libs.isEmpty() == false) {
+			args.add("--class-path");
+			args.add(libs.stream().map(File::getPath).collect(Collectors.joining(File.pathSeparator)));
+		}
+		mainJars.forEach(mainJar -> args.add(mainJar.getPath()));
+
+		try {
+			final String result = runTool("jdeps", args).trim();
+			Arrays.stream(result.split(",")).map(String::trim).filter(m -> m.isEmpty() == false).forEach(modules::add);
+		} catch (final IOException e) {
+			log.warn("Can't found app modules with jdeps, fallback to " + fallbackModule, e);
+			modules.add(fallbackModule);
+		}
+
+		if (modules.isEmpty()) {
+			modules.add("java.base");
+		}
+		return modules;
+	}
+
+	/**
+	 * @param outputDir will be deleted before, if exists.
+	 */
+	public void link(final Collection<String> modules, final File outputDir, final boolean stripDebug) throws IOException {
+		FileUtils.deleteQuietly(outputDir);
+
+		final List<String> args = new ArrayList<>();
+		args.add("--module-path");
+		args.add(jmodsDir.getPath());
+		args.add("--add-modules");
+		args.add(String.join(",", modules));
+		args.add("--output");
+		args.add(outputDir.getPath());
+		args.add("--compress=2");
+		args.add("--no-header-files");
+		args.add("--no-man-pages");
+		if (stripDebug) {
+			args.add("--strip-debug");
+		}
+
+		log.info("Make runtime image from {} with {}", javaHome, modules);
+		final String result = runTool("jlink", args).trim();
+		if (result.isEmpty() == false) {
+			log.debug(result);
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent manifest of the inputs fingerprints for each packaging stage.
+ * A stage with the same fingerprint as the last run, and with all its outputs still present, can be skipped.
+ */
+public class StageCache {
+	private static Logger log = LogManager.getLogger();
+
+	private final File manifestFile;
+	private final boolean enabled;
+	private final Properties manifest;
+
+	/**
+	 * @param enabled if false, nothing will be never up to date, but the manifest is still updated for a next incremental run.
+	 */
+	public StageCache(final File manifestFile, final boolean enabled) throws IOException {
+		this.manifestFile = Objects.requireNonNull(manifestFile, "\"manifestFile\" can't to be null");
+		this.enabled = enabled;
+		manifest = new Properties();
+
+		if (manifestFile.exists()) {
+			try (InputStream in = new FileInputStream(manifestFile)) {
+				manifest.load(in);
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param outputs all must exists for be up to date.
+	 */
+	public synchronized boolean isUpToDate(final String stageName, final Fingerprint fingerprint, final File... outputs) {
+		if (enabled == false) {
+			return false;
+		}
+		if (fingerprint.get().equals(manifest.getProperty(stageName)) == false) {
+			log.debug("Stage {} has changed", stageName);
+			return false;
+		}
+		final boolean outputsExists = Arrays.stream(outputs).allMatch(File::exists);
+		if (outputsExists == false) {
+			log.debug("Stage {} is unchanged, but some outputs are missing", stageName);
+		}
+		return outputsExists;
+	}
+
+	/**
+	 * Call it before run a stage: an interrupted stage must not be seen as done on the next run.
+	 */
+	public synchronized void invalidate(final String stageName) {
+		if (manifest.remove(stageName) != null) {
+			save();
+		}
+	}
+
+	/**
+	 * Call it after a stage is correctly done.
+	 */
+	public synchronized void update(final String stageName, final Fingerprint fingerprint) {
+		manifest.setProperty(stageName, fingerprint.get());
+		save();
+	}
+
+	private void save() {
+		try {
+			Files.createDirectories(manifestFile.getAbsoluteFile().getParentFile().toPath());
+			try (OutputStream out = new FileOutputStream(manifestFile)) {
+				manifest.store(out, "javappackager stages fingerprints");
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException("Can't write " + manifestFile, e);
+		}
+	}
+
+	/**
+	 * SHA-256 of stage inputs. Files are compared by path, size and last modified date, not by content.
+	 */
+	public static class Fingerprint {
+		private final MessageDigest digest;
+		private String result;
+
+		public Fingerprint() {
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (final NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public Fingerprint add(final String value) {
+			if (result != null) {
+				throw new IllegalStateException("Fingerprint is already computed");
+			}
+			digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			return this;
+		}
+
+		public Fingerprint addFile(final File file) {
+			return addTree(file, p -> false);
+		}
+
+		/**
+		 * @param file can be a regular file, a directory (walked, with sorted relative paths), or a non-existing file.
+		 */
+		public Fingerprint addTree(final File file, final Predicate<Path> exclude) {
+			if (file.exists() == false) {
+				return add("-" + file.getAbsolutePath());
+			} else if (file.isFile()) {
+				return add(file.getAbsolutePath()).add(String.valueOf(file.length())).add(String.valueOf(file.lastModified()));
+			}
+
+			add(file.getAbsolutePath());
+			final Path root = file.toPath();
+			try (Stream<Path> walk = Files.walk(root)) {
+				walk.filter(Files::isRegularFile).filter(exclude.negate()).map(p -> {
+					final File f = p.toFile();
+					return root.relativize(p).toString().replace(File.separatorChar, '/') + ":" + f.length() + ":" + f.lastModified();
+				}).sorted().collect(Collectors.toList()).forEach(this::add);
+			} catch (final IOException e) {
+				throw new RuntimeException("Can't walk " + file, e);
+			}
+			return this;
+		}
+
+		public synchronized String get() {
+			if (result == null) {
+				result = toHex(digest.digest());
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return get();
+		}
+
+		static String toHex(final byte[] bytes) {
+			final StringBuilder sb = new StringBuilder(bytes.length * 2);
+			for (final byte b : bytes) {
+				sb.append(Character.forDigit(b >> 4 & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.maven.model.building.ModelBuildingException;
+
+/**
+ * Measure each packaging stage: wall time, stage thread CPU time, bytes and files copied by the stage with a CopyEngine, process read/write bytes (Linux only),
+ * stage output size and files, and peak heap.
+ * IO and heap are process wide values: they are only set (else -1) for a stage measured alone, without any other stage, of any project, at the same time.
+ * With more than one stage thread (javappackager.stages.threads, 4 by default), it's rare: run with javappackager.stages.threads=1 for get them on all stages.
+ */
+public class StageMetrics {
+	private static Logger log = LogManager.getLogger();
+
+	static final String reportBaseName = "javappackager-metrics";
+	private static final Path procSelfIo = Path.of("/proc/self/io");
+	/**
+	 * Running measures, for all the projects
+	 */
+	private static final AtomicInteger running = new AtomicInteger();
+	private static final AtomicLong started = new AtomicLong();
+	/**
+	 * Copies counter of the stage running on this thread
+	 */
+	private static final ThreadLocal<CopyCounter> stageCopies = new ThreadLocal<>();
+
+	private final String project;
+	private final List<Map<String, Object>> stages;
+
+	@FunctionalInterface
+	public interface Stage<T> {
+		T run() throws IOException, ModelBuildingException;
+	}
+
+	@FunctionalInterface
+	public interface VoidStage {
+		void run() throws IOException, ModelBuildingException;
+	}
+
+	/**
+	 * Thread safe, for the copy pool threads.
+	 */
+	static class CopyCounter {
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong files = new AtomicLong();
+
+		void add(final long copiedBytes) {
+			bytes.addAndGet(copiedBytes);
+			files.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the counter of the stage measured on the current thread, or a counter outside any stage, never read.
+	 */
+	static CopyCounter getStageCopyCounter() {
+		final CopyCounter counter = stageCopies.get();
+		if (counter == null) {
+			return new CopyCounter();
+		}
+		return counter;
+	}
+
+	public StageMetrics(final String project) {
+		this.project = project;
+		stages = Collections.synchronizedList(new ArrayList<>());
+	}
+
+	/**
+	 * @return CPU time of the stage thread only (not the copy pool threads), or -1
+	 */
+	private static long getThreadCpuTime() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads.isCurrentThreadCpuTimeSupported() == false) {
+			return -1;
+		}
+		return threads.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * @return rchar and wchar from /proc/self/io, or -1
+	 */
+	private static long[] getProcessIo() {
+		final long[] io = new long[] { -1, -1 };
+		if (Files.isReadable(procSelfIo) == false) {
+			return io;
+		}
+		try {
+			for (final String line : Files.readAllLines(procSelfIo)) {
+				if (line.startsWith("rchar:")) {
+					io[0] = Long.parseLong(line.substring(6).trim());
+				} else if (line.startsWith("wchar:")) {
+					io[1] = Long.parseLong(line.substring(6).trim());
+				}
+			}
+		} catch (final IOException | NumberFormatException e) {
+			log.trace("Can't read {}", procSelfIo, e);
+		}
+		return io;
+	}
+
+	private static List<MemoryPoolMXBean> getHeapPools() {
+		return ManagementFactory.getMemoryPoolMXBeans().stream().filter(p -> p.getType() == MemoryType.HEAP && p.isValid()).collect(Collectors.toUnmodifiableList());
+	}
+
+	/**
+	 * @return sum of regular files sizes and count, in outputs (files or dirs)
+	 */
+	private static long[] getOutputSize(final File... outputs) {
+		final long[] size = new long[] { 0, 0 };
+		for (final File output : outputs) {
+			if (output == null || output.exists() == false) {
+				continue;
+			}
+			try (Stream<Path> walk = Files.walk(output.toPath())) {
+				walk.filter(Files::isRegularFile).forEach(p -> {
+					size[0] += p.toFile().length();
+					size[1]++;
+				});
+			} catch (final IOException e) {
+				log.trace("Can't walk {}", output, e);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @param outputs files and dirs made by this stage, for count bytes and files
+	 */
+	public <T> T measure(final String name, final Stage<T> stage, final File... outputs) throws IOException, ModelBuildingException {
+		final List<MemoryPoolMXBean> heapPools = getHeapPools();
+		final boolean aloneAtStart = running.getAndIncrement() == 0;
+		final long startedId = started.incrementAndGet();
+		if (aloneAtStart) {
+			/**
+			 * Never reset during an other measure, it would falsify its peak.
+			 */
+			heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+		}
+		final CopyCounter parentCopies = stageCopies.get();
+		final CopyCounter copies = new CopyCounter();
+		stageCopies.set(copies);
+		final long[] ioStart = getProcessIo();
+		final long cpuStart = getThreadCpuTime();
+		final long start = System.currentTimeMillis();
+		final long startNano = System.nanoTime();
+
+		String outcome = "FAILED";
+		try {
+			final T result = stage.run();
+			outcome = "DONE";
+			return result;
+		} finally {
+			final long wallMs = (System.nanoTime() - startNano) / 1_000_000L;
+			final long cpuEnd = getThreadCpuTime();
+			final long[] ioEnd = getProcessIo();
+			final long peakHeap = heapPools.stream().mapToLong(p -> p.getPeakUsage().getUsed()).sum();
+			final boolean alone = aloneAtStart && started.get() == startedId;
+			running.decrementAndGet();
+			if (parentCopies == null) {
+				stageCopies.remove();
+			} else {
+				/**
+				 * A sub stage copies are also the parent stage copies.
+				 */
+				parentCopies.bytes.addAndGet(copies.bytes.get());
+				parentCopies.files.addAndGet(copies.files.get());
+				stageCopies.set(parentCopies);
+			}
+			final long[] outputSize = getOutputSize(outputs);
+
+			final Map<String, Object> metrics = new LinkedHashMap<>();
+			metrics.put("stage", name);
+			metrics.put("outcome", outcome);
+			metrics.put("start", start);
+			metrics.put("wallMs", wallMs);
+			metrics.put("cpuMs", cpuStart < 0 || cpuEnd < 0 ? -1 : (cpuEnd - cpuStart) / 1_000_000L);
+			metrics.put("copiedBytes", copies.bytes.get());
+			metrics.put("copiedFiles", copies.files.get());
+			metrics.put("readBytes", alone == false || ioStart[0] < 0 || ioEnd[0] < 0 ? -1 : ioEnd[0] - ioStart[0]);
+			metrics.put("writeBytes", alone == false || ioStart[1] < 0 || ioEnd[1] < 0 ? -1 : ioEnd[1] - ioStart[1]);
+			metrics.put("outputBytes", outputSize[0]);
+			metrics.put("outputFiles", outputSize[1]);
+			metrics.put("peakHeapBytes", alone ? peakHeap : -1);
+			stages.add(metrics);
+			log.debug("Stage {}: {}", name, metrics);
+		}
+	}
+
+	public void measure(final String name, final VoidStage stage, final File... outputs) throws IOException, ModelBuildingException {
+		measure(name, () -> {
+			stage.run();
+			return null;
+		}, outputs);
+	}
+
+	/**
+	 * For a stage not done, because its previous outputs are up to date.
+	 */
+	public void upToDate(final String name) {
+		final Map<String, Object> metrics = new LinkedHashMap<>();
+		metrics.put("stage", name);
+		metrics.put("outcome", "UP-TO-DATE");
+		metrics.put("start", System.currentTimeMillis());
+		Stream.of("wallMs", "cpuMs", "copiedBytes", "copiedFiles", "readBytes", "writeBytes", "outputBytes", "outputFiles", "peakHeapBytes").forEach(k -> metrics.put(k, 0));
+		stages.add(metrics);
+	}
+
+	/**
+	 * Write javappackager-metrics.json and javappackager-metrics.csv in dir.
+	 */
+	public void write(final File dir) throws IOException {
+		final List<Map<String, Object>> allStages;
+		synchronized (stages) {
+			allStages = new ArrayList<>(stages);
+		}
+
+		final File jsonFile = new File(dir, reportBaseName + ".json");
+		try (PrintStream out = new PrintStream(jsonFile, "UTF-8")) {
+			out.println("{");
+			out.println("\"project\":" + Json.quote(project) + ",");
+			out.println("\"stages\":[");
+			out.println(allStages.stream().map(Json::object).collect(Collectors.joining("," + System.lineSeparator())));
+			out.println("]}");
+		}
+
+		final File csvFile = new File(dir, reportBaseName + ".csv");
+		try (PrintStream out = new PrintStream(csvFile, "UTF-8")) {
+			if (allStages.isEmpty() == false) {
+				out.println("project," + String.join(",", allStages.get(0).keySet()));
+			}
+			allStages.forEach(s -> out.println(project + "," + s.values().stream().map(String::valueOf).collect(Collectors.joining(","))));
+		}
+		log.info("Packaging metrics are in {}", jsonFile);
+	}
+
+}
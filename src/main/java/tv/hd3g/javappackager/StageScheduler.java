@@ -0,0 +1,200 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.maven.model.building.ModelBuildingException;
+
+import tv.hd3g.javappackager.StageMetrics.VoidStage;
+
+/**
+ * Packaging stages as a dependency graph: each stage starts as soon as all its dependencies are done, on a bounded pool.
+ * A stage can only depends on previously added stages, so the graph can't have cycles.
+ * On the first failed stage, the not started stages are cancelled, and the running ones are interrupted.
+ */
+public class StageScheduler {
+	private static Logger log = LogManager.getLogger();
+
+	private final String project;
+	private final Map<String, Node> stages;
+
+	private static class Node {
+		private final VoidStage action;
+		private final List<String> dependsOn;
+		private final int wave;
+
+		private Node(final VoidStage action, final List<String> dependsOn, final int wave) {
+			this.action = action;
+			this.dependsOn = dependsOn;
+			this.wave = wave;
+		}
+	}
+
+	public StageScheduler(final String project) {
+		this.project = Objects.requireNonNull(project, "\"project\" can't to be null");
+		stages = new LinkedHashMap<>();
+	}
+
+	/**
+	 * @param dependsOn names of previously added stages
+	 */
+	public StageScheduler add(final String name, final VoidStage action, final String... dependsOn) {
+		Objects.requireNonNull(name, "\"name\" can't to be null");
+		Objects.requireNonNull(action, "\"action\" can't to be null");
+		if (stages.containsKey(name)) {
+			throw new IllegalArgumentException("Stage " + name + " is already added");
+		}
+		int wave = 1;
+		for (final String dependency : dependsOn) {
+			final Node node = stages.get(dependency);
+			if (node == null) {
+				throw new IllegalArgumentException("Stage " + name + " depends on the unknown stage " + dependency);
+			}
+			wave = Math.max(wave, node.wave + 1);
+		}
+		stages.put(name, new Node(action, List.of(dependsOn), wave));
+		return this;
+	}
+
+	/**
+	 * @return all the stages names, for a stage that must run after all the others
+	 */
+	public String[] getStageNames() {
+		return stages.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * @return the planned graph, a line by stage, with its wave (the stages in the same wave can run at the same time) and its dependencies
+	 */
+	public List<String> getPlan() {
+		return stages.entrySet().stream()
+		        .sorted((l, r) -> Integer.compare(l.getValue().wave, r.getValue().wave))
+		        .map(s -> String.format("[%d] %-12s%s", s.getValue().wave, s.getKey(), s.getValue().dependsOn.isEmpty() ? "" : " <- " + String.join(", ", s.getValue().dependsOn)))
+		        .map(String::stripTrailing)
+		        .collect(Collectors.toUnmodifiableList());
+	}
+
+	/**
+	 * Run all stages, and wait for all of them.
+	 * @param parallelism max stages at the same time, 1 for run all stages one by one, in add order when possible
+	 */
+	public void run(final int parallelism) throws IOException, ModelBuildingException {
+		final Map<String, Integer> waiting = new HashMap<>();
+		final Map<String, List<String>> dependents = new HashMap<>();
+		stages.forEach((name, node) -> {
+			waiting.put(name, node.dependsOn.size());
+			node.dependsOn.forEach(d -> dependents.computeIfAbsent(d, k -> new ArrayList<>()).add(name));
+		});
+
+		final Map<String, String> threadContext = ThreadContext.getImmutableContext();
+		final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+			final Thread t = new Thread(r, "Packaging stage");
+			t.setDaemon(true);
+			return t;
+		});
+		final CompletionService<String> done = new ExecutorCompletionService<>(pool);
+		log.debug("Run {} stages for {}, {} at the same time", stages.size(), project, parallelism);
+
+		final Map<Future<String>, String> submitted = new HashMap<>();
+		int running = 0;
+		Throwable failure = null;
+		try {
+			for (final String name : stages.keySet()) {
+				if (waiting.get(name) == 0) {
+					submitted.put(submit(done, name, threadContext), name);
+					running++;
+				}
+			}
+
+			while (running > 0) {
+				final Future<String> result = done.take();
+				running--;
+				try {
+					final String name = result.get();
+					if (failure != null) {
+						continue;
+					}
+					for (final String dependent : dependents.getOrDefault(name, List.of())) {
+						if (waiting.merge(dependent, -1, Integer::sum) == 0) {
+							submitted.put(submit(done, dependent, threadContext), dependent);
+							running++;
+						}
+					}
+				} catch (final ExecutionException e) {
+					if (failure != null) {
+						log.debug("Stage {} ends after the cancel", submitted.get(result), e.getCause());
+						continue;
+					}
+					failure = e.getCause();
+					final List<Runnable> cancelled = pool.shutdownNow();
+					running -= cancelled.size();
+					log.error("Stage {} fails, cancel {} waiting and {} running stage(s)", submitted.get(result), cancelled.size(), running);
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted during packaging", e);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof ModelBuildingException) {
+			throw (ModelBuildingException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IOException("Packaging stage fails", failure);
+		}
+	}
+
+	private Future<String> submit(final CompletionService<String> done, final String name, final Map<String, String> threadContext) {
+		final VoidStage action = stages.get(name).action;
+		return done.submit(() -> {
+			ThreadContext.putAll(threadContext);
+			try {
+				log.debug("Start stage {}", name);
+				action.run();
+				log.debug("Stage {} is done", name);
+				return name;
+			} finally {
+				ThreadContext.removeAll(threadContext.keySet());
+			}
+		});
+	}
+
+}
@@ -0,0 +1,414 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Start the packaged apps many times, like their WinRun4J launchers do (same JVM, class path and JVM options, read from the exe embedded ini),
+ * and compare the startup of many package dirs (packaging variants) side by side.
+ * Each run measures the time to main (JVM uptime when the main class is loaded), the time to exit, the peak RSS (Linux only) and the loaded classes.
+ * Apps should exit early when the "javappackager.training" system property is set, else they are stopped after the timeout.
+ * Cold runs are done after a page cache drop, only if this process can do it (root on Linux), else only the first run of each variant is cold.
+ * A variant with a packaged JVM that can't run on this host is started with the current JVM, without its CDS archive, and marked as not valid in the report.
+ */
+public class StartupBenchmark {
+	private static Logger log = LogManager.getLogger();
+
+	static final String reportBaseName = "javappackager-startup";
+	private static final String moduleDirVariable = "%WinRun4J:module.dir%";
+	private static final Path dropCaches = Path.of("/proc/sys/vm/drop_caches");
+
+	private final int runs;
+	private final Duration timeout;
+
+	/**
+	 * @param runs by variant, cold and warm
+	 * @param timeout by run
+	 */
+	public StartupBenchmark(final int runs, final Duration timeout) {
+		if (runs < 1) {
+			throw new IllegalArgumentException("Invalid runs count: " + runs);
+		}
+		this.runs = runs;
+		this.timeout = Objects.requireNonNull(timeout, "\"timeout\" can't to be null");
+	}
+
+	/**
+	 * A launcher to benchmark: a package dir exe, as a java command.
+	 */
+	static class Variant {
+		private final String name;
+		private final File packageDir;
+		private final String mainClass;
+		private final List<String> command;
+		private final File classLoadLog;
+		/**
+		 * Started by its packaged JVM
+		 */
+		private final boolean valid;
+
+		private Variant(final String name, final File packageDir, final String mainClass, final List<String> command, final File classLoadLog, final boolean valid) {
+			this.name = name;
+			this.packageDir = packageDir;
+			this.mainClass = mainClass;
+			this.command = command;
+			this.classLoadLog = classLoadLog;
+			this.valid = valid;
+		}
+	}
+
+	/**
+	 * Simple WinRun4J ini parser: "key=value" lines, no sections.
+	 */
+	static Map<String, String> parseIni(final String iniContent) {
+		final Map<String, String> ini = new LinkedHashMap<>();
+		iniContent.lines().map(String::trim).filter(l -> l.isEmpty() == false && l.startsWith(";") == false && l.contains("=")).forEach(l -> {
+			final int pos = l.indexOf('=');
+			ini.put(l.substring(0, pos).trim(), l.substring(pos + 1).trim());
+		});
+		return ini;
+	}
+
+	/**
+	 * @return "prefix.1", "prefix.2"... values, by number
+	 */
+	private static List<String> getNumberedValues(final Map<String, String> ini, final String prefix) {
+		final TreeMap<Integer, String> values = new TreeMap<>();
+		ini.forEach((k, v) -> {
+			if (k.startsWith(prefix + ".") && k.substring(prefix.length() + 1).matches("\\d+")) {
+				values.put(Integer.parseInt(k.substring(prefix.length() + 1)), v);
+			}
+		});
+		return new ArrayList<>(values.values());
+	}
+
+	/**
+	 * WinRun4J expands the file name wildcards of the class path entries, like "lib/*.jar".
+	 */
+	static List<String> expandClassPath(final File packageDir, final List<String> classPath) {
+		return classPath.stream().flatMap(entry -> {
+			if (entry.contains("*") == false) {
+				return Stream.of(entry);
+			}
+			final int lastSlash = Math.max(entry.lastIndexOf('/'), entry.lastIndexOf('\\'));
+			final String dir = lastSlash < 0 ? "" : entry.substring(0, lastSlash + 1);
+			final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + entry.substring(lastSlash + 1));
+			final File[] files = Optional.ofNullable(new File(packageDir, dir).listFiles(f -> f.isFile() && matcher.matches(f.toPath().getFileName()))).orElse(new File[0]);
+			return Arrays.stream(files).map(File::getName).sorted().map(name -> dir + name);
+		}).collect(Collectors.toUnmodifiableList());
+	}
+
+	/**
+	 * @return one variant by exe file with a WinRun4J ini, in packageDir
+	 */
+	List<Variant> readVariants(final File packageDir, final File workDir) throws IOException {
+		final File[] execFiles = Optional.ofNullable(packageDir.listFiles(f -> f.isFile() && f.getName().toLowerCase().endsWith(".exe"))).orElse(new File[0]);
+		final List<Variant> variants = new ArrayList<>();
+		for (final File execFile : execFiles) {
+			final Optional<String> iniContent = new PeResources(Files.readAllBytes(execFile.toPath())).getWinRun4JIni();
+			if (iniContent.isEmpty()) {
+				log.debug("No WinRun4J ini in {}", execFile);
+				continue;
+			}
+			final String name = packageDir.getName() + "/" + execFile.getName();
+			variants.add(makeVariant(name, packageDir, parseIni(iniContent.get()), new File(workDir, reportBaseName + "-" + variants.size() + "-" + execFile.getName() + ".log")));
+		}
+		if (variants.isEmpty()) {
+			throw new IOException("Can't found a WinRun4J launcher in " + packageDir);
+		}
+		return variants;
+	}
+
+	private static Variant makeVariant(final String name, final File packageDir, final Map<String, String> ini, final File classLoadLog) throws IOException {
+		final String mainClass = Optional.ofNullable(ini.get("main.class")).orElseThrow(() -> new IOException("No main.class in " + name + " ini"));
+
+		final Optional<File> packagedJvm = Optional.ofNullable(ini.get("vm.location"))
+		        .map(location -> location.replace('\\', '/'))
+		        .filter(location -> location.contains("/bin/"))
+		        .map(location -> new File(packageDir, location.substring(0, location.indexOf("/bin/"))));
+		final File javaExec;
+		final int javaVersion;
+		final Optional<File> packagedJavaExec = packagedJvm.flatMap(CdsArchive::findJavaExec);
+		if (packagedJavaExec.isPresent()) {
+			javaExec = packagedJavaExec.get();
+			javaVersion = CdsArchive.getJavaVersion(packagedJvm.get());
+		} else {
+			log.warn("The packaged JVM of {} can't run on this host, use the current JVM without CDS archive: its results will be marked as not valid", name);
+			final File javaHome = new File(System.getProperty("java.home"));
+			javaExec = CdsArchive.findJavaExec(javaHome).orElseThrow(() -> new IOException("Can't found a java exec in " + javaHome));
+			javaVersion = Runtime.version().feature();
+		}
+
+		final String moduleDir = packageDir.getAbsolutePath();
+		final List<String> command = new ArrayList<>();
+		command.add(javaExec.getPath());
+		getNumberedValues(ini, "vmarg").forEach(arg -> {
+			if (packagedJavaExec.isEmpty() && (arg.startsWith("-XX:SharedArchiveFile=") || arg.startsWith("-Xshare:"))) {
+				/**
+				 * The archive is made for the packaged JVM only.
+				 */
+				log.debug("Ignore {} for {}", arg, name);
+			} else if (arg.contains(moduleDirVariable)) {
+				command.add(arg.replace(moduleDirVariable, moduleDir).replace('\\', File.separatorChar));
+			} else {
+				command.add(arg);
+			}
+		});
+		command.add("-D" + CdsArchive.trainingProperty + "=true");
+		if (javaVersion >= 9) {
+			command.add("-Xlog:class+load=info:file=\"" + classLoadLog.getAbsolutePath() + "\":uptimenanos");
+		} else {
+			log.warn("No class loading log with Java {}, time to main and loaded classes will not be measured for {}", javaVersion, name);
+		}
+		command.add("-cp");
+		command.add(String.join(File.pathSeparator, expandClassPath(packageDir, getNumberedValues(ini, "classpath"))));
+		command.add(mainClass);
+		command.addAll(getNumberedValues(ini, "arg"));
+		log.debug("Startup command for {}: {}", name, command);
+		return new Variant(name, packageDir, mainClass, command, classLoadLog, packagedJavaExec.isPresent());
+	}
+
+	private static boolean dropPageCache() {
+		if (Files.isWritable(dropCaches) == false) {
+			return false;
+		}
+		try {
+			Files.writeString(dropCaches, "1");
+			return true;
+		} catch (final IOException e) {
+			log.debug("Can't drop page cache", e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return VmHWM (peak resident set size) from /proc/pid/status, in bytes, or -1
+	 */
+	private static long getPeakRss(final long pid) {
+		try {
+			return Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status")).stream()
+			        .filter(l -> l.startsWith("VmHWM:"))
+			        .map(l -> l.substring(6).replace("kB", "").trim())
+			        .findFirst()
+			        .map(kb -> Long.parseLong(kb) * 1024L)
+			        .orElse(-1L);
+		} catch (final IOException | NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private Map<String, Object> run(final Variant variant, final int runNumber, final boolean cold) throws IOException {
+		Files.deleteIfExists(variant.classLoadLog.toPath());
+		final long start = System.nanoTime();
+		final Process process = new ProcessBuilder(variant.command)
+		        .directory(variant.packageDir)
+		        .redirectErrorStream(true)
+		        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+		        .start();
+
+		long peakRss = -1;
+		boolean timedOut = false;
+		try {
+			final long deadline = start + timeout.toNanos();
+			while (process.waitFor(5, TimeUnit.MILLISECONDS) == false) {
+				peakRss = Math.max(peakRss, getPeakRss(process.pid()));
+				if (System.nanoTime() > deadline) {
+					timedOut = true;
+					process.destroy();
+					if (process.waitFor(10, TimeUnit.SECONDS) == false) {
+						process.destroyForcibly().waitFor();
+					}
+					break;
+				}
+			}
+		} catch (final InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted startup benchmark", e);
+		}
+		final long exitNanos = System.nanoTime() - start;
+
+		long timeToMain = -1;
+		long classes = -1;
+		long sharedClasses = -1;
+		if (variant.classLoadLog.exists()) {
+			final List<String> lines = Files.readAllLines(variant.classLoadLog.toPath(), StandardCharsets.UTF_8);
+			final String mainClassLoad = "] " + variant.mainClass + " source:";
+			classes = lines.stream().filter(l -> l.contains(" source: ")).count();
+			sharedClasses = lines.stream().filter(l -> l.contains(" source: shared objects file")).count();
+			timeToMain = lines.stream()
+			        .filter(l -> l.contains(mainClassLoad) && l.startsWith("["))
+			        .map(l -> l.substring(1, l.indexOf("ns]")))
+			        .findFirst()
+			        .map(ns -> Long.parseLong(ns) / 1_000_000L)
+			        .orElse(-1L);
+		}
+
+		final Map<String, Object> result = new LinkedHashMap<>();
+		result.put("variant", variant.name);
+		result.put("valid", variant.valid);
+		result.put("run", runNumber);
+		result.put("cold", cold);
+		result.put("timeToMainMs", timeToMain);
+		result.put("timeToExitMs", exitNanos / 1_000_000L);
+		result.put("peakRssBytes", peakRss);
+		result.put("classes", classes);
+		result.put("sharedClasses", sharedClasses);
+		result.put("exitCode", timedOut ? null : process.exitValue());
+		result.put("timedOut", timedOut);
+		log.debug("Startup run: {}", result);
+		return result;
+	}
+
+	/**
+	 * @return the nearest-rank percentile of the positive values, or -1
+	 */
+	static long percentile(final List<Long> values, final int percent) {
+		final List<Long> sorted = values.stream().filter(v -> v >= 0).sorted().collect(Collectors.toUnmodifiableList());
+		if (sorted.isEmpty()) {
+			return -1;
+		}
+		final int rank = (int) Math.ceil(percent / 100d * sorted.size());
+		return sorted.get(Math.max(0, rank - 1));
+	}
+
+	private static Map<String, Object> summarize(final Variant variant, final boolean cold, final List<Map<String, Object>> runs) {
+		final Map<String, Object> summary = new LinkedHashMap<>();
+		summary.put("variant", variant.name);
+		summary.put("valid", variant.valid);
+		summary.put("cold", cold);
+		summary.put("runs", runs.size());
+		final Map<String, ToLongFunction<Map<String, Object>>> metrics = new LinkedHashMap<>();
+		metrics.put("timeToMainMs", r -> (long) r.get("timeToMainMs"));
+		metrics.put("timeToExitMs", r -> (long) r.get("timeToExitMs"));
+		metrics.put("peakRssBytes", r -> (long) r.get("peakRssBytes"));
+		metrics.put("classes", r -> (long) r.get("classes"));
+		metrics.put("sharedClasses", r -> (long) r.get("sharedClasses"));
+		metrics.forEach((name, getter) -> {
+			final List<Long> values = runs.stream().map(getter::applyAsLong).collect(Collectors.toUnmodifiableList());
+			summary.put(name + "P50", percentile(values, 50));
+			if (name.startsWith("time")) {
+				summary.put(name + "P90", percentile(values, 90));
+				summary.put(name + "Max", percentile(values, 100));
+			}
+		});
+		summary.put("timeouts", runs.stream().filter(r -> (boolean) r.get("timedOut")).count());
+		return summary;
+	}
+
+	/**
+	 * Run all the launchers of all the package dirs, interleaved, then log a comparison and write javappackager-startup.json and .csv in reportDir.
+	 * @return summary by variant, cold then warm
+	 */
+	public List<Map<String, Object>> compare(final List<File> packageDirs, final File reportDir) throws IOException {
+		final List<Variant> variants = new ArrayList<>();
+		for (final File packageDir : packageDirs) {
+			variants.addAll(readVariants(packageDir, reportDir));
+		}
+		final boolean canDropCache = dropPageCache();
+		if (canDropCache == false) {
+			log.warn("Can't drop the page cache, only the first run of each variant will be cold");
+		}
+		log.info("Startup benchmark of {} launcher(s), {} run(s) each", variants.size(), runs);
+
+		final List<Map<String, Object>> allRuns = new ArrayList<>();
+		for (int runNumber = 1; runNumber <= runs; runNumber++) {
+			for (final Variant variant : variants) {
+				final boolean cold = runNumber == 1 || canDropCache && runNumber % 2 == 1;
+				if (cold && canDropCache) {
+					dropPageCache();
+				}
+				allRuns.add(run(variant, runNumber, cold));
+			}
+		}
+		variants.forEach(v -> v.classLoadLog.delete());
+
+		final List<Map<String, Object>> summaries = new ArrayList<>();
+		for (final Variant variant : variants) {
+			for (final boolean cold : List.of(true, false)) {
+				final List<Map<String, Object>> variantRuns = allRuns.stream()
+				        .filter(r -> variant.name.equals(r.get("variant")) && cold == (boolean) r.get("cold"))
+				        .collect(Collectors.toUnmodifiableList());
+				if (variantRuns.isEmpty() == false) {
+					summaries.add(summarize(variant, cold, variantRuns));
+				}
+			}
+		}
+
+		log.info(String.format("%-40s %-5s %-5s %4s %10s %10s %10s %10s %10s %8s %8s", "Variant", "Valid", "Cache", "Runs", "Main p50", "Main p90", "Exit p50", "Exit p90", "RSS MB", "Classes", "Shared"));
+		summaries.forEach(s -> log.info(String.format("%-40s %-5s %-5s %4d %10d %10d %10d %10d %10d %8d %8d",
+		        s.get("variant"), (boolean) s.get("valid") ? "yes" : "NO", (boolean) s.get("cold") ? "cold" : "warm", s.get("runs"),
+		        s.get("timeToMainMsP50"), s.get("timeToMainMsP90"), s.get("timeToExitMsP50"), s.get("timeToExitMsP90"),
+		        (long) s.get("peakRssBytesP50") < 0 ? -1 : (long) s.get("peakRssBytesP50") / 1024 / 1024, s.get("classesP50"), s.get("sharedClassesP50"))));
+
+		final long invalid = variants.stream().filter(v -> v.valid == false).count();
+		if (invalid > 0) {
+			log.warn("{} launcher(s) are not started by their packaged JVM, don't compare them with the others", invalid);
+		}
+
+		write(reportDir, Collections.unmodifiableList(allRuns), summaries);
+		return summaries;
+	}
+
+	private static void write(final File reportDir, final List<Map<String, Object>> allRuns, final List<Map<String, Object>> summaries) throws IOException {
+		final File jsonFile = new File(reportDir, reportBaseName + ".json");
+		try (PrintStream out = new PrintStream(jsonFile, "UTF-8")) {
+			out.println("{");
+			out.println("\"summary\":[");
+			out.println(summaries.stream().map(Json::object).collect(Collectors.joining("," + System.lineSeparator())));
+			out.println("],");
+			out.println("\"runs\":[");
+			out.println(allRuns.stream().map(Json::object).collect(Collectors.joining("," + System.lineSeparator())));
+			out.println("]}");
+		}
+
+		final File csvFile = new File(reportDir, reportBaseName + ".csv");
+		try (PrintStream out = new PrintStream(csvFile, "UTF-8")) {
+			if (summaries.isEmpty() == false) {
+				out.println(String.join(",", summaries.get(0).keySet()));
+			}
+			summaries.forEach(s -> out.println(s.values().stream().map(String::valueOf).collect(Collectors.joining(","))));
+		}
+		log.info("Startup benchmark report is in {}", jsonFile);
+	}
+
+}
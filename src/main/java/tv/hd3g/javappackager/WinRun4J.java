@@ -18,10 +18,13 @@ package tv.hd3g.javappackager;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
@@ -31,22 +34,23 @@ import java.util.Optional;
 
 import org.apache.commons.io.FileUtils;
 
-import tv.hd3g.processlauncher.Exec;
+import tv.hd3g.javappackager.StageCache.Fingerprint;
 import tv.hd3g.processlauncher.cmdline.ExecutableFinder;
 import tv.hd3g.processlauncher.cmdline.Parameters;
 
 public class WinRun4J {
 
 	private static final String winRun4jExecName = "WinRun4J64";
-	private static final String rceditExecName = "RCEDIT64";
-	private static final String rceditCdmlineIni = "/N <%exe_file%> <%ini_file%>";
-	private static final String rceditCdmlineIcon = "/I <%exe_file%> <%ico_file%>";
 	private static final String winRun4jLicenseFile = "WinRun4J-About.txt";
+	/**
+	 * vmarg.1 to vmarg.4 are the javappackager system properties.
+	 */
+	private static final int firstVMArgPos = 5;
 
-	private final ExecutableFinder executableFinder;
 	private final File winRun4jExec;
 	private final LinkedHashMap<String, String> iniContent;
 	private final List<String> classPath;
+	private final List<String> vmArgs;
 	private final Parameters appParameters;
 
 	private String mainClass;
@@ -55,12 +59,12 @@ public class WinRun4J {
 	private String jvmDir;
 
 	public WinRun4J(final ExecutableFinder executableFinder, final String appName, final String appVersion, final String gitVersion, final String appUrl) throws IOException {
-		this.executableFinder = Objects.requireNonNull(executableFinder, "\"executableFinder\" can't to be null");
+		Objects.requireNonNull(executableFinder, "\"executableFinder\" can't to be null");
 
 		winRun4jExec = getExecFile(executableFinder, winRun4jExecName, getClass());
-		getExecFile(executableFinder, rceditExecName, getClass());
 		iniContent = new LinkedHashMap<>();
 		classPath = new ArrayList<>();
+		vmArgs = new ArrayList<>();
 		appParameters = new Parameters();
 
 		iniContent.put("ini.override", "true");
@@ -83,13 +87,30 @@ public class WinRun4J {
 		// iniContent.put("vm.sysfirst", "true");
 	}
 
+	/**
+	 * @return the exec found by executableFinder, else the embedded one, extracted only one time in a content-addressed temp file.
+	 */
 	private static File getExecFile(final ExecutableFinder executableFinder, final String baseName, final Class<?> ressourceFromClass) throws IOException {
 		try {
 			return executableFinder.get(baseName);
 		} catch (final FileNotFoundException e) {
-			final File item = File.createTempFile(baseName, ".exe");
-
-			FileUtils.copyInputStreamToFile(ressourceFromClass.getResourceAsStream(baseName + ".exe"), item);
+			final byte[] content;
+			try (InputStream in = ressourceFromClass.getResourceAsStream(baseName + ".exe")) {
+				content = in.readAllBytes();
+			}
+
+			final String hash;
+			try {
+				hash = Fingerprint.toHex(MessageDigest.getInstance("SHA-256").digest(content));
+			} catch (final NoSuchAlgorithmException e1) {
+				throw new IllegalStateException(e1);
+			}
+			final File item = new File(System.getProperty("java.io.tmpdir"), "javappackager-" + baseName + "-" + hash + ".exe");
+			if (item.exists() == false || item.length() != content.length) {
+				final File tempFile = File.createTempFile(baseName, ".exe", item.getParentFile());
+				FileUtils.writeByteArrayToFile(tempFile, content);
+				Files.move(tempFile.toPath(), item.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
 			executableFinder.registerExecutable(baseName, item);
 			return item;
 		}
@@ -106,6 +127,15 @@ public class WinRun4J {
 		return this;
 	}
 
+	/**
+	 * @param vmArgs JVM options, added after the javappackager system properties
+	 */
+	public WinRun4J setVMArgs(final Collection<String> vmArgs) {
+		this.vmArgs.clear();
+		this.vmArgs.addAll(vmArgs);
+		return this;
+	}
+
 	public WinRun4J setMinVMVersion(final String minVMVersion) {
 		this.minVMVersion = new BigDecimal(minVMVersion);
 		return this;
@@ -124,18 +154,20 @@ public class WinRun4J {
 		jvmDir = name;
 	}
 
-	public void makeExecFile(final File targetExec, final Optional<File> windowsIcon) throws IOException {
-		FileUtils.copyFile(winRun4jExec, targetExec);
-
-		final Exec exec = new Exec(rceditExecName, executableFinder);
-		exec.getParameters().addBulkParameters(rceditCdmlineIni);
-		exec.getVarsToInject().put("exe_file", targetExec.getPath());
-
+	/**
+	 * @return the ini file content, as it will be embedded in the exec file.
+	 */
+	public String getIniContent() {
 		iniContent.putIfAbsent("main.class", mainClass);
 		if (minVMVersion != null) {
 			iniContent.putIfAbsent("vm.version.min", minVMVersion.toString());
 		}
 
+		iniContent.keySet().removeIf(k -> k.startsWith("vmarg.") && Integer.parseInt(k.substring(6)) >= firstVMArgPos);
+		for (int pos = 0; pos < vmArgs.size(); pos++) {
+			iniContent.put("vmarg." + (pos + firstVMArgPos), vmArgs.get(pos));
+		}
+
 		for (int pos = 0; pos < classPath.size(); pos++) {
 			iniContent.put("classpath." + (pos + 1), classPath.get(pos));
 		}
@@ -155,28 +187,27 @@ public class WinRun4J {
 			iniContent.putIfAbsent("vm.location", jvmDir + "/bin/server/jvm.dll");
 		}
 
-		final File iniFile = File.createTempFile(targetExec.getName(), ".ini");
-
-		try (FileOutputStream fos = new FileOutputStream(iniFile)) {
-			final PrintStream ps = new PrintStream(fos);
-			iniContent.forEach((k, v) -> {
-				ps.print(k);
-				ps.print("=");
-				ps.print(v);
-				ps.println();
-			});
-			ps.close();
-		}
-		exec.getVarsToInject().put("ini_file", iniFile.getPath());
+		final StringBuilder sb = new StringBuilder();
+		iniContent.forEach((k, v) -> {
+			sb.append(k);
+			sb.append("=");
+			sb.append(v);
+			sb.append(System.lineSeparator());
+		});
+		return sb.toString();
+	}
 
-		System.out.println(exec.runWaitGetText().getStdouterr(false, System.lineSeparator()));
+	/**
+	 * Embed ini and icon in a copy of the WinRun4J launcher, in one pass and in memory.
+	 */
+	public void makeExecFile(final File targetExec, final Optional<File> windowsIcon) throws IOException {
+		final PeResources launcher = new PeResources(Files.readAllBytes(winRun4jExec.toPath()));
+		launcher.setWinRun4JIni(getIniContent());
 
 		if (windowsIcon.isPresent()) {
-			exec.getParameters().clear();
-			exec.getParameters().addBulkParameters(rceditCdmlineIcon);
-			exec.getVarsToInject().put("ico_file", windowsIcon.get().getPath());
-			System.out.println(exec.runWaitGetText().getStdouterr(false, System.lineSeparator()));
+			launcher.setIcon(Files.readAllBytes(windowsIcon.get().toPath()));
 		}
+		FileUtils.writeByteArrayToFile(targetExec, launcher.toBytes());
 	}
 
 	public void copyLicenseTo(final File destDir) throws IOException {
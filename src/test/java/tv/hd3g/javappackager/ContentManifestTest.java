@@ -0,0 +1,132 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+public class ContentManifestTest extends TestCase {
+
+	private static final String abcHash = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	private File tempDir;
+	private File packageDir;
+	private CopyEngine copyEngine;
+
+	@Override
+	protected void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("javappackager-manifest").toFile();
+		packageDir = new File(tempDir, "package");
+		copyEngine = new CopyEngine(2);
+	}
+
+	@Override
+	protected void tearDown() {
+		copyEngine.close();
+		FileUtils.deleteQuietly(tempDir);
+	}
+
+	private void writeFile(final String path, final String content) throws IOException {
+		FileUtils.writeStringToFile(new File(packageDir, path), content, StandardCharsets.UTF_8);
+	}
+
+	public void testSha256() throws IOException {
+		writeFile("abc.txt", "abc");
+		assertEquals(abcHash, ContentManifest.sha256(new File(packageDir, "abc.txt")));
+	}
+
+	public void testRead() throws IOException {
+		final File manifestFile = new File(tempDir, "SUMS");
+		final String other = "0".repeat(63) + "1";
+		FileUtils.writeStringToFile(manifestFile, "# comment\n"
+		                                          + abcHash.toUpperCase() + "  dir/text file.txt\n"
+		                                          + other + " *bin/app.exe\n"
+		                                          + "\n", StandardCharsets.UTF_8);
+		final Map<String, String> hashes = ContentManifest.read(manifestFile).getHashes();
+		assertEquals(Map.of("dir/text file.txt", abcHash, "bin/app.exe", other), hashes);
+	}
+
+	public void testWriteRead() throws IOException {
+		writeFile("abc.txt", "abc");
+		writeFile("lib/a.jar", "jar");
+		final ContentManifest manifest = ContentManifest.compute(packageDir, copyEngine);
+		assertEquals(abcHash, manifest.getHashes().get("abc.txt"));
+		assertEquals(2, manifest.getHashes().size());
+
+		final File manifestFile = new File(tempDir, ContentManifest.manifestFileName);
+		manifest.write(manifestFile);
+		assertEquals(abcHash + "  abc.txt", Files.readAllLines(manifestFile.toPath()).get(0));
+		assertEquals(manifest.getHashes(), ContentManifest.read(manifestFile).getHashes());
+	}
+
+	public void testDelta() throws IOException {
+		writeFile("same.txt", "same");
+		writeFile("changed.txt", "v1");
+		writeFile("old/deleted.txt", "deleted");
+		final ContentManifest previous = ContentManifest.compute(packageDir, copyEngine);
+
+		writeFile("changed.txt", "v2");
+		FileUtils.deleteDirectory(new File(packageDir, "old"));
+		writeFile("new/added.txt", "added");
+		final ContentManifest current = ContentManifest.compute(packageDir, copyEngine);
+
+		final File deltaDir = new File(tempDir, "delta");
+		current.makeDelta(previous, packageDir, deltaDir, copyEngine);
+
+		assertEquals("v2", FileUtils.readFileToString(new File(deltaDir, "changed.txt"), StandardCharsets.UTF_8));
+		assertEquals("added", FileUtils.readFileToString(new File(deltaDir, "new/added.txt"), StandardCharsets.UTF_8));
+		assertFalse(new File(deltaDir, "same.txt").exists());
+		assertFalse(new File(deltaDir, "old").exists());
+		assertEquals("old/deleted.txt\n", FileUtils.readFileToString(new File(deltaDir, ContentManifest.deletedFileName), StandardCharsets.UTF_8));
+		assertEquals(current.getHashes(), ContentManifest.read(new File(deltaDir, ContentManifest.manifestFileName)).getHashes());
+	}
+
+	/**
+	 * The hashes computed during the copies must be the same as sha256(), and not reused after a change.
+	 */
+	public void testCopyHashes() throws IOException {
+		final byte[] big = new byte[700 * 1024 + 3];
+		new Random(0).nextBytes(big);
+		final File bigSource = new File(tempDir, "big.bin");
+		FileUtils.writeByteArrayToFile(bigSource, big);
+		final File smallSource = new File(tempDir, "abc.txt");
+		FileUtils.writeStringToFile(smallSource, "abc", StandardCharsets.UTF_8);
+
+		final File bigDest = new File(packageDir, "data/big.bin");
+		final File smallDest = new File(packageDir, "abc.txt");
+		copyEngine.setContentHash(true);
+		copyEngine.copyFiles(Map.of(bigSource, bigDest, smallSource, smallDest));
+
+		assertEquals(Optional.of(abcHash), copyEngine.getContentHash(smallDest));
+		assertEquals(Optional.of(ContentManifest.sha256(bigSource)), copyEngine.getContentHash(bigDest));
+		assertEquals(ContentManifest.sha256(bigDest), ContentManifest.compute(packageDir, copyEngine).getHashes().get("data/big.bin"));
+
+		FileUtils.writeStringToFile(smallDest, "abcd", StandardCharsets.UTF_8);
+		assertEquals(Optional.empty(), copyEngine.getContentHash(smallDest));
+		assertEquals(ContentManifest.sha256(smallDest), ContentManifest.compute(packageDir, copyEngine).getHashes().get("abc.txt"));
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.model.building.ModelBuildingException;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+public class CopyEngineTest extends TestCase {
+
+	private File tempDir;
+	private CopyEngine copyEngine;
+
+	@Override
+	protected void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("javappackager-copyengine").toFile();
+		copyEngine = new CopyEngine(2);
+	}
+
+	@Override
+	protected void tearDown() {
+		copyEngine.close();
+		FileUtils.deleteQuietly(tempDir);
+	}
+
+	/**
+	 * Like a watch mode config edit: the same engine copy again to a deleted dest dir.
+	 */
+	public void testDeleteThenCopy() throws IOException {
+		final File source = new File(tempDir, "source.txt");
+		Files.writeString(source.toPath(), "content", StandardCharsets.UTF_8);
+		final File configDir = new File(tempDir, "dst/config");
+		final File dest = new File(configDir, "sub/source.txt");
+
+		copyEngine.copyFiles(Map.of(source, dest));
+		assertTrue(dest.exists());
+
+		FileUtils.deleteDirectory(configDir);
+		copyEngine.copyFiles(Map.of(source, dest));
+		assertEquals("content", Files.readString(dest.toPath(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * The copies are counted by the measured stage, and its parent stage, even if they run on the pool threads.
+	 */
+	public void testStageCopies() throws IOException, ModelBuildingException {
+		final File source = new File(tempDir, "source.txt");
+		Files.writeString(source.toPath(), "content", StandardCharsets.UTF_8);
+		final File moved = new File(tempDir, "moved.txt");
+		Files.writeString(moved.toPath(), "moved", StandardCharsets.UTF_8);
+
+		final StageMetrics metrics = new StageMetrics("test");
+		metrics.measure("parent", () -> {
+			metrics.measure("copy", () -> copyEngine.copyFiles(Map.of(source, new File(tempDir, "dst/a.txt"), moved, new File(tempDir, "dst/b.txt"))));
+			copyEngine.moveFiles(Map.of(moved, new File(tempDir, "dst/moved.txt")));
+		});
+		copyEngine.copyFiles(Map.of(source, new File(tempDir, "dst/outside.txt")));
+
+		metrics.write(tempDir);
+		final List<String> csv = Files.readAllLines(new File(tempDir, StageMetrics.reportBaseName + ".csv").toPath());
+		final List<String> header = List.of(csv.get(0).split(","));
+		final int bytes = header.indexOf("copiedBytes");
+		final int files = header.indexOf("copiedFiles");
+		assertEquals(3, csv.size());
+		assertEquals("copy", csv.get(1).split(",")[1]);
+		assertEquals("12", csv.get(1).split(",")[bytes]);
+		assertEquals("2", csv.get(1).split(",")[files]);
+		assertEquals("parent", csv.get(2).split(",")[1]);
+		assertEquals("12", csv.get(2).split(",")[bytes]);
+		assertEquals("3", csv.get(2).split(",")[files]);
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+public class JarShrinkerTest extends TestCase {
+
+	private File tempDir;
+	private File mainJar;
+	private File libJar;
+
+	@Override
+	protected void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("javappackager-shrinker").toFile();
+		final File sources = new File(tempDir, "src");
+		writeSource(sources, "app/Main.java", "package app; public class Main { static java.util.List<lib.Generic> list; "
+		                                      + "public static void main(String[] a) throws Exception { new lib.Used(); Class.forName(\"lib.Reflected\"); "
+		                                      + "java.util.ServiceLoader.load(lib.Service.class); } }");
+		writeSource(sources, "lib/Used.java", "package lib; public class Used { lib.Arg call(lib.Arg arg) { return arg; } }");
+		writeSource(sources, "lib/Arg.java", "package lib; public class Arg {}");
+		writeSource(sources, "lib/Generic.java", "package lib; public class Generic {}");
+		writeSource(sources, "lib/Reflected.java", "package lib; public class Reflected {}");
+		writeSource(sources, "lib/Unused.java", "package lib; public class Unused { lib.Used used; }");
+		writeSource(sources, "lib/Service.java", "package lib; public interface Service {}");
+		writeSource(sources, "lib/ServiceImpl.java", "package lib; public class ServiceImpl implements Service {}");
+		writeSource(sources, "lib/Driver.java", "package lib; public abstract class Driver implements java.sql.Driver {}");
+		writeSource(sources, "keep/a/Kept.java", "package keep.a; public class Kept { lib.Arg arg; }");
+		writeSource(sources, "keep/a/sub/Deep.java", "package keep.a.sub; public class Deep {}");
+
+		final File classes = new File(tempDir, "classes");
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertNotNull("Tests needs a JDK", compiler);
+		final List<String> args = Stream.concat(Stream.of("-d", classes.getPath()), FileUtils.listFiles(sources, new String[] { "java" }, true).stream().map(File::getPath)).collect(Collectors.toList());
+		assertEquals(0, compiler.run(null, null, null, args.toArray(new String[0])));
+
+		mainJar = makeJar("app.jar", classes, Map.of(), "app/");
+		libJar = makeJar("lib.jar", classes, Map.of("META-INF/services/lib.Service", "lib.ServiceImpl # comment\n", "META-INF/services/java.sql.Driver", "lib.Driver\n", "lib/data.txt", "data"), "lib/", "keep/");
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtils.deleteQuietly(tempDir);
+	}
+
+	private static void writeSource(final File sources, final String path, final String content) throws IOException {
+		FileUtils.writeStringToFile(new File(sources, path), content, StandardCharsets.UTF_8);
+	}
+
+	private File makeJar(final String name, final File classes, final Map<String, String> resources, final String... packagePrefixes) throws IOException {
+		final File jar = new File(tempDir, name);
+		final Path root = classes.toPath();
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar)); Stream<Path> walk = Files.walk(root)) {
+			for (final Path classFile : walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+				final String entryName = root.relativize(classFile).toString().replace(File.separatorChar, '/');
+				if (Stream.of(packagePrefixes).anyMatch(entryName::startsWith)) {
+					out.putNextEntry(new ZipEntry(entryName));
+					out.write(Files.readAllBytes(classFile));
+					out.closeEntry();
+				}
+			}
+			for (final Map.Entry<String, String> resource : resources.entrySet()) {
+				out.putNextEntry(new ZipEntry(resource.getKey()));
+				out.write(resource.getValue().getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+		return jar;
+	}
+
+	private static Set<String> getEntries(final File jar) throws IOException {
+		try (ZipFile zip = new ZipFile(jar)) {
+			return Collections.list(zip.entries()).stream().map(ZipEntry::getName).collect(Collectors.toSet());
+		}
+	}
+
+	/**
+	 * A constant pool with long and double (two slots each), and all the fixed size tags around the UTF8 entries.
+	 */
+	public void testReadReferencesTags() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(55);
+		out.writeShort(14);
+		out.writeByte(5);
+		out.writeLong(Long.MAX_VALUE);
+		out.writeByte(6);
+		out.writeDouble(1.5d);
+		out.writeByte(1);
+		out.writeUTF("a/b/Target");
+		out.writeByte(7);
+		out.writeShort(5);
+		out.writeByte(3);
+		out.writeInt(42);
+		out.writeByte(15);
+		out.writeByte(6);
+		out.writeShort(5);
+		out.writeByte(1);
+		out.writeUTF("(La/b/Arg;[La/b/Array;I)Ljava/util/List<La/b/Generic;>;");
+		out.writeByte(12);
+		out.writeShort(5);
+		out.writeShort(9);
+		out.writeByte(8);
+		out.writeShort(12);
+		out.writeByte(1);
+		out.writeUTF("x.y.ByName");
+		out.writeByte(18);
+		out.writeShort(0);
+		out.writeShort(10);
+		out.writeShort(0);
+
+		final Set<String> references = JarShrinker.readReferences(bytes.toByteArray());
+		assertEquals(Set.of("a/b/Target", "a/b/Arg", "a/b/Array", "java/util/List", "a/b/Generic", "x/y/ByName"), references);
+	}
+
+	public void testReadReferencesInvalid() {
+		try {
+			JarShrinker.readReferences(new byte[] { 1, 2, 3, 4, 0, 0, 0, 0, 0, 2, 99 });
+			fail("Not a class file");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage().contains("Not a class"));
+		}
+		try {
+			JarShrinker.readReferences(new byte[] { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0, 0, 55, 0, 2, 99 });
+			fail("Invalid tag");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage().contains("tag 99"));
+		}
+	}
+
+	public void testReadReferencesCompiled() throws IOException {
+		try (ZipFile zip = new ZipFile(mainJar)) {
+			final Set<String> references = JarShrinker.readReferences(zip.getInputStream(zip.getEntry("app/Main.class")).readAllBytes());
+			assertTrue(references.containsAll(Set.of("lib/Used", "lib/Generic", "lib/Reflected", "lib/Service", "java/util/List")));
+			assertFalse(references.contains("lib/Unused"));
+		}
+	}
+
+	public void testGetClassName() {
+		assertEquals("a/b/C", JarShrinker.getClassName("a/b/C.class"));
+		assertEquals("a/b/C$D", JarShrinker.getClassName("META-INF/versions/11/a/b/C$D.class"));
+		assertNull(JarShrinker.getClassName("module-info.class"));
+		assertNull(JarShrinker.getClassName("META-INF/versions/9/module-info.class"));
+		assertNull(JarShrinker.getClassName("a/b/package-info.class"));
+		assertNull(JarShrinker.getClassName("META-INF/Other.class"));
+		assertNull(JarShrinker.getClassName("a/b/data.txt"));
+	}
+
+	public void testKeepRules() {
+		final JarShrinker shrinker = new JarShrinker(List.of("a.b.*", "c.**", "d.E"), List.of());
+		assertTrue(shrinker.isKeepRule("a/b/C"));
+		assertFalse(shrinker.isKeepRule("a/b/sub/C"));
+		assertFalse(shrinker.isKeepRule("a/bc/C"));
+		assertTrue(shrinker.isKeepRule("c/C"));
+		assertTrue(shrinker.isKeepRule("c/sub/deep/C"));
+		assertFalse(shrinker.isKeepRule("cc/C"));
+		assertTrue(shrinker.isKeepRule("d/E"));
+		assertTrue(shrinker.isKeepRule("d/E$Inner"));
+		assertFalse(shrinker.isKeepRule("d/EE"));
+	}
+
+	public void testShrink() throws IOException {
+		final JarShrinker.Analysis analysis = new JarShrinker(List.of("keep.a.*"), List.of()).analyse(mainJar, List.of(mainJar, libJar), "app.Main");
+		assertTrue(analysis.isReachable("lib.Used"));
+		assertTrue(analysis.isReachable("lib.Arg"));
+		assertTrue(analysis.isReachable("lib.Generic"));
+		assertTrue(analysis.isReachable("lib.Reflected"));
+		assertTrue(analysis.isReachable("lib.ServiceImpl"));
+		assertTrue(analysis.isReachable("lib.Driver"));
+		assertTrue(analysis.isReachable("keep.a.Kept"));
+		assertFalse(analysis.isReachable("keep.a.sub.Deep"));
+		assertFalse(analysis.isReachable("lib.Unused"));
+
+		final Map<String, Object> report = analysis.shrink(libJar);
+		assertEquals(2, report.get("removedClasses"));
+		final Set<String> entries = getEntries(libJar);
+		assertFalse(entries.contains("lib/Unused.class"));
+		assertFalse(entries.contains("keep/a/sub/Deep.class"));
+		assertTrue(entries.containsAll(Set.of("lib/Used.class", "lib/ServiceImpl.class", "keep/a/Kept.class", "lib/data.txt", "META-INF/services/lib.Service")));
+	}
+
+	public void testShrinkSubPackagesRule() throws IOException {
+		final JarShrinker.Analysis analysis = new JarShrinker(List.of("keep.a.**"), List.of()).analyse(mainJar, List.of(libJar), "app.Main");
+		assertTrue(analysis.isReachable("keep.a.Kept"));
+		assertTrue(analysis.isReachable("keep.a.sub.Deep"));
+		assertEquals(1, analysis.shrink(libJar).get("removedClasses"));
+	}
+
+	public void testKeepJar() throws IOException {
+		final JarShrinker.Analysis analysis = new JarShrinker(List.of(), List.of("lib")).analyse(mainJar, List.of(libJar), "app.Main");
+		assertTrue(analysis.isReachable("lib.Unused"));
+		final long size = libJar.length();
+		assertEquals(0, analysis.shrink(libJar).get("removedClasses"));
+		assertEquals(size, libJar.length());
+	}
+
+}
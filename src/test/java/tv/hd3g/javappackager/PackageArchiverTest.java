@@ -0,0 +1,193 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+public class PackageArchiverTest extends TestCase {
+
+	private static final String rootName = "app-1.0";
+	/**
+	 * Split in an ustar prefix and name (more than 100 bytes).
+	 */
+	private static final String longPath = "config/" + "d".repeat(60) + "/" + "e".repeat(40) + "/settings.txt";
+	/**
+	 * A name part over 100 bytes: needs a pax header. With the root name, its pax record is 512 bytes, without padding.
+	 */
+	private static final String paxPath = "config/" + "f".repeat(200) + "/" + "g".repeat(150) + "/" + "h".repeat(131) + ".txt";
+
+	private File tempDir;
+	private File packageDir;
+	/**
+	 * Archive path -> content, for the files only
+	 */
+	private Map<String, byte[]> expected;
+
+	@Override
+	protected void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("javappackager-archiver").toFile();
+		packageDir = new File(tempDir, "package");
+		expected = new TreeMap<>();
+
+		final Random random = new Random(0);
+		final byte[] big = new byte[3 * 1024 * 1024 + 17];
+		for (int pos = 0; pos < big.length; pos++) {
+			big[pos] = (byte) (pos % 7 == 0 ? random.nextInt() : pos / 1024);
+		}
+		final byte[] jar = new byte[1500];
+		random.nextBytes(jar);
+
+		addFile("bin/run.sh", "#!/bin/sh\necho run\n".getBytes(StandardCharsets.UTF_8));
+		addFile("lib/app.jar", jar);
+		addFile("data/big.bin", big);
+		addFile(longPath, "long=true\n".getBytes(StandardCharsets.UTF_8));
+		addFile(paxPath, "pax=true\n".getBytes(StandardCharsets.UTF_8));
+		addFile("empty.txt", new byte[0]);
+	}
+
+	private void addFile(final String path, final byte[] content) throws IOException {
+		FileUtils.writeByteArrayToFile(new File(packageDir, path), content);
+		expected.put(rootName + "/" + path, content);
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtils.deleteQuietly(tempDir);
+	}
+
+	private File archive(final PackageArchiver.Format format, final int threads, final String name) throws IOException {
+		final File archive = new File(tempDir, name + "." + format.getExtension());
+		return new PackageArchiver(format, threads, 6, true).archive(packageDir, archive, rootName);
+	}
+
+	public void testZip() throws IOException {
+		final File archive = archive(PackageArchiver.Format.ZIP, 4, "out");
+		final Map<String, byte[]> files = new TreeMap<>();
+		try (ZipFile zip = new ZipFile(archive)) {
+			for (final ZipEntry entry : Collections.list(zip.entries())) {
+				if (entry.isDirectory()) {
+					continue;
+				}
+				try (InputStream in = zip.getInputStream(entry)) {
+					files.put(entry.getName(), in.readAllBytes());
+				}
+				if (entry.getName().endsWith(".jar")) {
+					assertEquals(ZipEntry.STORED, entry.getMethod());
+				}
+			}
+			assertNotNull(zip.getEntry(rootName + "/config/"));
+		}
+		assertContent(files);
+	}
+
+	public void testTarGz() throws IOException {
+		final File archive = archive(PackageArchiver.Format.TAR_GZ, 4, "out");
+		try (InputStream in = new GZIPInputStream(new FileInputStream(archive))) {
+			assertContent(readTar(in));
+		}
+	}
+
+	public void testReproducible() throws IOException {
+		for (final PackageArchiver.Format format : PackageArchiver.Format.values()) {
+			final byte[] first = Files.readAllBytes(archive(format, 1, "first").toPath());
+			final byte[] second = Files.readAllBytes(archive(format, 4, "second").toPath());
+			assertTrue(format + " archives are not the same", Arrays.equals(first, second));
+		}
+	}
+
+	private void assertContent(final Map<String, byte[]> files) {
+		assertEquals(expected.keySet(), files.keySet());
+		expected.forEach((path, content) -> assertTrue("Invalid content for " + path, Arrays.equals(content, files.get(path))));
+	}
+
+	private static String getField(final byte[] header, final int offset, final int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0) {
+			end++;
+		}
+		return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Minimal ustar and pax "path" reader.
+	 * @return file path -> content
+	 */
+	private static Map<String, byte[]> readTar(final InputStream in) throws IOException {
+		final Map<String, byte[]> files = new TreeMap<>();
+		String paxPath = null;
+		while (true) {
+			final byte[] header = in.readNBytes(512);
+			assertEquals(512, header.length);
+			if (Arrays.equals(header, new byte[512])) {
+				assertTrue("Missing end of archive block", Arrays.equals(in.readNBytes(512), new byte[512]));
+				break;
+			}
+			long checksum = 0;
+			for (int pos = 0; pos < 512; pos++) {
+				checksum += pos >= 148 && pos < 156 ? ' ' : header[pos] & 0xFF;
+			}
+			assertEquals(checksum, Long.parseLong(getField(header, 148, 6), 8));
+			assertEquals("ustar", getField(header, 257, 6));
+
+			final char type = (char) header[156];
+			final long size = Long.parseLong(getField(header, 124, 12).trim(), 8);
+			final byte[] content = in.readNBytes((int) size);
+			assertEquals(size, content.length);
+			final int rest = (int) (size % 512);
+			if (rest > 0) {
+				in.readNBytes(512 - rest);
+			}
+
+			if (type == 'x') {
+				final String record = new String(content, StandardCharsets.UTF_8);
+				assertEquals(record.length(), Integer.parseInt(record.substring(0, record.indexOf(' '))));
+				paxPath = record.substring(record.indexOf("path=") + 5, record.length() - 1);
+				continue;
+			}
+			final String prefix = getField(header, 345, 155);
+			String name = prefix.isEmpty() ? getField(header, 0, 100) : prefix + "/" + getField(header, 0, 100);
+			if (paxPath != null) {
+				name = paxPath;
+				paxPath = null;
+			}
+			if (type == '0') {
+				files.put(name, content);
+			} else {
+				assertEquals('5', type);
+			}
+		}
+		return files;
+	}
+
+}
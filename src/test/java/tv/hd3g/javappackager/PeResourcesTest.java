@@ -0,0 +1,101 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Optional;
+
+import junit.framework.TestCase;
+
+public class PeResourcesTest extends TestCase {
+
+	private byte[] launcher;
+
+	@Override
+	protected void setUp() throws IOException {
+		try (InputStream in = PeResources.class.getResourceAsStream("WinRun4J64.exe")) {
+			launcher = in.readAllBytes();
+		}
+	}
+
+	private static int getChecksumOffset(final byte[] image) {
+		return ByteBuffer.wrap(image).order(ByteOrder.LITTLE_ENDIAN).getInt(0x3C) + 24 + 64;
+	}
+
+	private static void assertValidChecksum(final byte[] image) {
+		final int offset = getChecksumOffset(image);
+		assertEquals(ByteBuffer.wrap(image).order(ByteOrder.LITTLE_ENDIAN).getInt(offset), PeResources.computeChecksum(image, offset));
+	}
+
+	public void testChecksum() {
+		assertValidChecksum(launcher);
+	}
+
+	public void testStableRebuild() throws IOException {
+		final byte[] rebuilt = new PeResources(launcher).toBytes();
+		assertEquals(launcher.length, rebuilt.length);
+		assertValidChecksum(rebuilt);
+		assertTrue(Arrays.equals(rebuilt, new PeResources(rebuilt).toBytes()));
+	}
+
+	public void testIniRoundTrip() throws IOException {
+		final String ini = "main.class=tv.hd3g.\u00c9t\u00e9\r\nvmarg.1=-Dname=\u00d1and\u00fa\r\nclasspath.1=lib/app.jar\r\n";
+		final byte[] exec = new PeResources(launcher).setWinRun4JIni(ini).toBytes();
+
+		assertEquals(launcher.length, exec.length);
+		assertValidChecksum(exec);
+		final PeResources read = new PeResources(exec);
+		assertEquals(Optional.of(ini.trim()), read.getWinRun4JIni());
+
+		final byte[] data = read.get(PeResources.RT_INI_FILE, 1, 0);
+		assertEquals("INI ", new String(data, 0, 4, PeResources.INI_CHARSET));
+		assertEquals(0, data[data.length - 1]);
+		assertTrue(Arrays.equals(exec, read.toBytes()));
+	}
+
+	public void testIcon() throws IOException {
+		final byte[] image = new byte[40];
+		Arrays.fill(image, (byte) 7);
+		final ByteBuffer ico = ByteBuffer.allocate(6 + 16 + image.length).order(ByteOrder.LITTLE_ENDIAN);
+		ico.putShort((short) 0).putShort((short) 1).putShort((short) 1);
+		ico.put((byte) 16).put((byte) 16).put((byte) 0).put((byte) 0).putShort((short) 1).putShort((short) 32).putInt(image.length).putInt(22);
+		ico.put(image);
+
+		final PeResources read = new PeResources(new PeResources(launcher).setIcon(ico.array()).toBytes());
+		assertTrue(Arrays.equals(image, read.get(PeResources.RT_ICON, 1, 0)));
+		assertNull(read.get(PeResources.RT_ICON, 2, 0));
+		final ByteBuffer group = ByteBuffer.wrap(read.get(PeResources.RT_GROUP_ICON, 1, 0)).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(6 + 14, group.capacity());
+		assertEquals(1, group.getShort(4));
+		assertEquals(image.length, group.getInt(6 + 8));
+		assertEquals(1, group.getShort(6 + 12));
+	}
+
+	public void testInvalidFile() {
+		try {
+			new PeResources(new byte[100]);
+			fail("Not a PE file");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage().contains("MZ"));
+		}
+	}
+
+}
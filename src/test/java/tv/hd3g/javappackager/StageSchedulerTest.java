@@ -0,0 +1,165 @@
+/*
+ * This file is part of javappackager.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (C) hdsdi3g for hd3g.tv 2019
+ *
+*/
+package tv.hd3g.javappackager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.model.building.ModelBuildingException;
+
+import junit.framework.TestCase;
+
+public class StageSchedulerTest extends TestCase {
+
+	private List<String> done;
+
+	@Override
+	protected void setUp() {
+		done = Collections.synchronizedList(new ArrayList<>());
+	}
+
+	private StageMetrics.VoidStage record(final String name) {
+		return () -> done.add(name);
+	}
+
+	/**
+	 * a -> b, c -> d, and e alone
+	 */
+	private StageScheduler makeDiamond() {
+		return new StageScheduler("test")
+		        .add("a", record("a"))
+		        .add("b", record("b"), "a")
+		        .add("c", record("c"), "a")
+		        .add("d", record("d"), "b", "c")
+		        .add("e", record("e"));
+	}
+
+	public void testPlan() {
+		final StageScheduler scheduler = makeDiamond();
+		assertEquals(List.of("[1] a", "[1] e", "[2] b            <- a", "[2] c            <- a", "[3] d            <- b, c"), scheduler.getPlan());
+		assertEquals(List.of("a", "b", "c", "d", "e"), List.of(scheduler.getStageNames()));
+		assertTrue(done.isEmpty());
+	}
+
+	public void testAddErrors() {
+		final StageScheduler scheduler = makeDiamond();
+		try {
+			scheduler.add("a", record("a"));
+			fail("Duplicate stage");
+		} catch (final IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("already"));
+		}
+		try {
+			scheduler.add("f", record("f"), "z");
+			fail("Unknown dependency");
+		} catch (final IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("unknown stage z"));
+		}
+	}
+
+	public void testRunOneByOne() throws IOException, ModelBuildingException {
+		makeDiamond().run(1);
+		assertEquals(List.of("a", "e", "b", "c", "d"), done);
+	}
+
+	public void testRunParallel() throws IOException, ModelBuildingException {
+		for (int pos = 0; pos < 20; pos++) {
+			done.clear();
+			makeDiamond().run(4);
+			assertEquals(5, done.size());
+			assertTrue(done.indexOf("a") < done.indexOf("b"));
+			assertTrue(done.indexOf("a") < done.indexOf("c"));
+			assertTrue(done.indexOf("b") < done.indexOf("d"));
+			assertTrue(done.indexOf("c") < done.indexOf("d"));
+		}
+	}
+
+	/**
+	 * Two stages without dependencies must run at the same time.
+	 */
+	public void testSameWave() throws IOException, ModelBuildingException {
+		final CountDownLatch latch = new CountDownLatch(2);
+		final StageMetrics.VoidStage meet = () -> {
+			latch.countDown();
+			try {
+				if (latch.await(10, TimeUnit.SECONDS) == false) {
+					throw new IOException("Not started at the same time");
+				}
+			} catch (final InterruptedException e) {
+				throw new IOException(e);
+			}
+		};
+		new StageScheduler("test").add("a", meet).add("b", meet).run(2);
+	}
+
+	public void testFailure() throws ModelBuildingException {
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		final StageScheduler scheduler = new StageScheduler("test")
+		        .add("a", record("a"))
+		        .add("slow", () -> {
+			        slowStarted.countDown();
+			        try {
+				        Thread.sleep(10_000);
+				        done.add("slow");
+			        } catch (final InterruptedException e) {
+				        done.add("slow interrupted");
+			        }
+		        })
+		        .add("fail", () -> {
+			        try {
+				        slowStarted.await(10, TimeUnit.SECONDS);
+			        } catch (final InterruptedException e) {
+				        Thread.currentThread().interrupt();
+			        }
+			        throw new IOException("Stage fails");
+		        }, "a")
+		        .add("after", record("after"), "fail")
+		        .add("last", record("last"), "after", "slow");
+
+		final long start = System.currentTimeMillis();
+		try {
+			scheduler.run(4);
+			fail("The failed stage must stop the run");
+		} catch (final IOException e) {
+			assertEquals("Stage fails", e.getMessage());
+		}
+		assertTrue("The running stages are not interrupted", System.currentTimeMillis() - start < 5_000);
+		assertFalse(done.contains("after"));
+		assertFalse(done.contains("last"));
+		assertFalse(done.contains("slow"));
+	}
+
+	public void testRuntimeFailure() throws IOException, ModelBuildingException {
+		final StageScheduler scheduler = new StageScheduler("test")
+		        .add("a", () -> {
+			        throw new IllegalStateException("Bad state");
+		        })
+		        .add("b", record("b"), "a");
+		try {
+			scheduler.run(1);
+			fail("The failed stage must stop the run");
+		} catch (final IllegalStateException e) {
+			assertEquals("Bad state", e.getMessage());
+		}
+		assertTrue(done.isEmpty());
+	}
+
+}